@@ -0,0 +1,91 @@
+package org.everit.osgi.servicereference.benchmarks;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.servicereference.benchmarks.stub.StubBundleContext;
+import org.everit.osgi.servicereference.core.Reference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Calls via the proxy of a {@link Reference} that should not allocate anything when a service is available. A method
+ * without parameters is called as the proxy class allocates an array for the arguments of every other call. The
+ * benchmark should be run with the <code>-prof gc</code> option, see {@link AllocationCheck}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AllocationBenchmark {
+
+    private ServiceRegistration<BenchmarkService> registration;
+
+    private Reference reference;
+
+    private BenchmarkService proxyService;
+
+    private Reference statisticsReference;
+
+    private BenchmarkService statisticsProxyService;
+
+    @Benchmark
+    public int proxyCall() {
+        return proxyService.getValue();
+    }
+
+    @Benchmark
+    public int proxyCallWithStatistics() {
+        return statisticsProxyService.getValue();
+    }
+
+    @Setup
+    public void setUp() {
+        StubBundleContext context = new StubBundleContext();
+        registration = BenchmarkSupport.registerService(context, new BenchmarkServiceImpl(), 0);
+        reference = BenchmarkSupport.openReference(context, 1000);
+        proxyService = reference.getProxyInstance();
+        statisticsReference = BenchmarkSupport.openReference(context, 1000);
+        statisticsReference.setStatisticsEnabled(true);
+        statisticsProxyService = statisticsReference.getProxyInstance();
+    }
+
+    @TearDown
+    public void tearDown() {
+        reference.close();
+        statisticsReference.close();
+        registration.unregister();
+    }
+}
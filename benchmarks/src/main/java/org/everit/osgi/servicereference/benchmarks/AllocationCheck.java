@@ -0,0 +1,82 @@
+package org.everit.osgi.servicereference.benchmarks;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Running the {@link AllocationBenchmark} with the GC profiler of JMH and failing if any of the proxy calls allocates
+ * memory. It is run by the <code>allocation-check</code> profile of the build.
+ */
+public final class AllocationCheck {
+
+    /**
+     * The name of the secondary result of the GC profiler that contains the allocated bytes per operation.
+     */
+    private static final String ALLOCATION_RESULT = "gc.alloc.rate.norm";
+
+    /**
+     * The allocated bytes per operation that are tolerated as the measurement is not exact. The smallest object takes
+     * 16 bytes so an allocation in every call is detected.
+     */
+    private static final double TOLERATED_ALLOCATION = 1.0;
+
+    /**
+     * Running the check.
+     * 
+     * @param args
+     *            Not used.
+     * @throws RunnerException
+     *             if the benchmark could not be run.
+     * @throws IllegalStateException
+     *             if a proxy call allocates memory.
+     */
+    public static void main(final String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(AllocationBenchmark.class.getName())
+                .addProfiler(GCProfiler.class).build();
+        List<String> failures = new ArrayList<String>();
+        for (RunResult runResult : new Runner(options).run()) {
+            String benchmark = runResult.getParams().getBenchmark();
+            Result<?> allocation = runResult.getSecondaryResults().get(ALLOCATION_RESULT);
+            if (allocation == null) {
+                failures.add(benchmark + ": no allocation result");
+            } else if (allocation.getScore() > TOLERATED_ALLOCATION) {
+                failures.add(benchmark + ": " + allocation.getScore() + " " + allocation.getScoreUnit());
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Proxy calls allocate memory: " + failures);
+        }
+    }
+
+    private AllocationCheck() {
+    }
+}
@@ -0,0 +1,64 @@
+package org.everit.osgi.servicereference.benchmarks;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of the benchmarks jar. It passes the arguments to the JMH runner but unless a result format is specified
+ * the results are written in JSON format to {@value #DEFAULT_RESULT_FILE} so the results of different releases can be
+ * compared.
+ */
+public final class BenchmarkMain {
+
+    /**
+     * The file that the results are written to if no result file is specified.
+     */
+    private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    /**
+     * Running the benchmarks.
+     * 
+     * @param args
+     *            The same command line arguments that {@link org.openjdk.jmh.Main} accepts.
+     * @throws Exception
+     *             if the benchmarks could not be run.
+     */
+    public static void main(final String[] args) throws Exception {
+        List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+        if (!arguments.contains("-rf")) {
+            arguments.add("-rf");
+            arguments.add("json");
+            if (!arguments.contains("-rff")) {
+                arguments.add("-rff");
+                arguments.add(DEFAULT_RESULT_FILE);
+            }
+        }
+        org.openjdk.jmh.Main.main(arguments.toArray(new String[arguments.size()]));
+    }
+
+    private BenchmarkMain() {
+    }
+}
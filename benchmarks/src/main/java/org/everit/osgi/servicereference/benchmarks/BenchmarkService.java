@@ -0,0 +1,45 @@
+package org.everit.osgi.servicereference.benchmarks;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * Simple service interface that is called by the benchmarks directly and via the proxy of a Reference.
+ */
+public interface BenchmarkService {
+
+    /**
+     * Cheap function without parameters so the proxy object does not allocate an array for the arguments.
+     * 
+     * @return A small number that is boxed without allocation.
+     */
+    int getValue();
+
+    /**
+     * Cheap function so the measured time is dominated by the overhead of the call.
+     * 
+     * @param value
+     *            Any number.
+     * @return The value plus one.
+     */
+    int increment(int value);
+}
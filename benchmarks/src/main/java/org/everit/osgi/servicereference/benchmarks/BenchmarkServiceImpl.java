@@ -0,0 +1,39 @@
+package org.everit.osgi.servicereference.benchmarks;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * Implementation of {@link BenchmarkService} that is registered into the stub framework.
+ */
+public class BenchmarkServiceImpl implements BenchmarkService {
+
+    @Override
+    public int getValue() {
+        return 1;
+    }
+
+    @Override
+    public int increment(final int value) {
+        return value + 1;
+    }
+}
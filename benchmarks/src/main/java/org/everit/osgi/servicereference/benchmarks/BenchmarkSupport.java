@@ -0,0 +1,96 @@
+package org.everit.osgi.servicereference.benchmarks;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Hashtable;
+
+import org.everit.osgi.servicereference.core.Reference;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Helper functions that are used by the benchmarks to set up services and references in the stub framework.
+ */
+final class BenchmarkSupport {
+
+    /**
+     * The filter that the references and trackers of the benchmarks use.
+     */
+    static final String FILTER = "(benchmark=true)";
+
+    /**
+     * Creating the {@link Filter} object of {@link #FILTER}.
+     * 
+     * @param context
+     *            The context that creates the filter.
+     * @return The filter.
+     */
+    static Filter createFilter(final BundleContext context) {
+        try {
+            return context.createFilter(FILTER);
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creating and opening a {@link Reference} that tracks {@link BenchmarkService}s.
+     * 
+     * @param context
+     *            The context of the stub framework.
+     * @param timeout
+     *            The timeout of the reference.
+     * @return The opened reference.
+     */
+    static Reference openReference(final BundleContext context, final long timeout) {
+        Reference reference = new Reference(context, new Class<?>[] { BenchmarkService.class },
+                createFilter(context), timeout);
+        reference.open();
+        return reference;
+    }
+
+    /**
+     * Registering a {@link BenchmarkService} that matches {@link #FILTER}.
+     * 
+     * @param context
+     *            The context of the stub framework.
+     * @param service
+     *            The service object.
+     * @param ranking
+     *            The ranking of the service.
+     * @return The registration of the service.
+     */
+    static ServiceRegistration<BenchmarkService> registerService(final BundleContext context,
+            final BenchmarkService service, final int ranking) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("benchmark", "true");
+        properties.put(Constants.SERVICE_RANKING, ranking);
+        return context.registerService(BenchmarkService.class, service, properties);
+    }
+
+    private BenchmarkSupport() {
+    }
+}
@@ -0,0 +1,165 @@
+package org.everit.osgi.servicereference.benchmarks;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.servicereference.benchmarks.stub.StubBundleContext;
+import org.everit.osgi.servicereference.core.Reference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.util.tracker.ServiceTracker;
+
+/**
+ * Calling the same {@link Reference} proxy and the same {@link ServiceTracker} from 1 to 64 threads at the same time to
+ * see how the throughput scales. The cached calls get the same result from the cache of the method (see
+ * {@link Reference#enableResultCache(java.lang.reflect.Method, int, long)}) in every thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContentionBenchmark {
+
+    private ServiceRegistration<BenchmarkService> registration;
+
+    private ServiceTracker<Object, Object> serviceTracker;
+
+    private Reference reference;
+
+    private BenchmarkService proxyService;
+
+    private Reference cachedReference;
+
+    private BenchmarkService cachedProxyService;
+
+    @Benchmark
+    @Threads(1)
+    public int cachedCall01Thread() {
+        return cachedProxyService.increment(1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int cachedCall04Threads() {
+        return cachedProxyService.increment(1);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public int cachedCall16Threads() {
+        return cachedProxyService.increment(1);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public int cachedCall64Threads() {
+        return cachedProxyService.increment(1);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int proxyCall01Thread() {
+        return proxyService.increment(1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int proxyCall04Threads() {
+        return proxyService.increment(1);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public int proxyCall16Threads() {
+        return proxyService.increment(1);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public int proxyCall64Threads() {
+        return proxyService.increment(1);
+    }
+
+    @Setup
+    public void setUp() {
+        StubBundleContext context = new StubBundleContext();
+        registration = BenchmarkSupport.registerService(context, new BenchmarkServiceImpl(), 0);
+        serviceTracker = new ServiceTracker<Object, Object>(context, BenchmarkSupport.createFilter(context), null);
+        serviceTracker.open();
+        reference = BenchmarkSupport.openReference(context, 1000);
+        proxyService = reference.getProxyInstance();
+        cachedReference = BenchmarkSupport.openReference(context, 1000);
+        try {
+            cachedReference.enableResultCache(BenchmarkService.class.getMethod("increment", int.class), 1024, 0);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+        cachedProxyService = cachedReference.getProxyInstance();
+    }
+
+    @TearDown
+    public void tearDown() {
+        reference.close();
+        cachedReference.close();
+        serviceTracker.close();
+        registration.unregister();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object trackerGetService01Thread() {
+        return serviceTracker.getService();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object trackerGetService04Threads() {
+        return serviceTracker.getService();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Object trackerGetService16Threads() {
+        return serviceTracker.getService();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Object trackerGetService64Threads() {
+        return serviceTracker.getService();
+    }
+}
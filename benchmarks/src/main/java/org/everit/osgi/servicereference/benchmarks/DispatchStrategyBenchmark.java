@@ -0,0 +1,101 @@
+package org.everit.osgi.servicereference.benchmarks;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.servicereference.benchmarks.stub.StubBundleContext;
+import org.everit.osgi.servicereference.core.DispatchStrategy;
+import org.everit.osgi.servicereference.core.Reference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Measuring the cost of selecting the called service with the different {@link DispatchStrategy} values when a
+ * {@link Reference} tracks more services.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchStrategyBenchmark {
+
+    private static final int SERVICE_COUNT = 4;
+
+    @Param({ "HIGHEST_RANKED", "ROUND_ROBIN", "RANDOM", "LEAST_IN_FLIGHT", "THREAD_AFFINITY", "ARGUMENT_AFFINITY" })
+    private DispatchStrategy dispatchStrategy;
+
+    private final List<ServiceRegistration<BenchmarkService>> registrations =
+            new ArrayList<ServiceRegistration<BenchmarkService>>();
+
+    private Reference reference;
+
+    private BenchmarkService proxyService;
+
+    @Benchmark
+    public int proxyCall() {
+        return proxyService.increment(1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int proxyCallConcurrent() {
+        return proxyService.increment(1);
+    }
+
+    @Setup
+    public void setUp() {
+        StubBundleContext context = new StubBundleContext();
+        for (int i = 0; i < SERVICE_COUNT; i++) {
+            registrations.add(BenchmarkSupport.registerService(context, new BenchmarkServiceImpl(), i));
+        }
+        reference = BenchmarkSupport.openReference(context, 1000);
+        reference.setDispatchStrategy(dispatchStrategy);
+        proxyService = reference.getProxyInstance();
+    }
+
+    @TearDown
+    public void tearDown() {
+        reference.close();
+        for (ServiceRegistration<BenchmarkService> registration : registrations) {
+            registration.unregister();
+        }
+        registrations.clear();
+    }
+}
@@ -0,0 +1,99 @@
+package org.everit.osgi.servicereference.benchmarks;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.servicereference.benchmarks.stub.StubBundleContext;
+import org.everit.osgi.servicereference.core.CallInterceptor;
+import org.everit.osgi.servicereference.core.InterceptedCall;
+import org.everit.osgi.servicereference.core.Reference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Measuring the cost of the {@link CallInterceptor}s of a {@link Reference}. Without interceptors the call should cost
+ * the same as {@link AllocationBenchmark#proxyCall()} and it should not allocate anything either.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InterceptorBenchmark {
+
+    /**
+     * Interceptor that only passes the call to the next one.
+     */
+    private static final CallInterceptor PASS_THROUGH_INTERCEPTOR = new CallInterceptor() {
+
+        @Override
+        public Object intercept(final InterceptedCall call) throws Throwable {
+            return call.proceed();
+        }
+    };
+
+    @Param({ "0", "1", "3" })
+    private int interceptorCount;
+
+    private ServiceRegistration<BenchmarkService> registration;
+
+    private Reference reference;
+
+    private BenchmarkService proxyService;
+
+    @Benchmark
+    public int proxyCall() {
+        return proxyService.getValue();
+    }
+
+    @Setup
+    public void setUp() {
+        StubBundleContext context = new StubBundleContext();
+        registration = BenchmarkSupport.registerService(context, new BenchmarkServiceImpl(), 0);
+        reference = new Reference(context, new Class<?>[] { BenchmarkService.class },
+                BenchmarkSupport.createFilter(context), 1000);
+        for (int i = 0; i < interceptorCount; i++) {
+            reference.addInterceptor(PASS_THROUGH_INTERCEPTOR);
+        }
+        reference.open();
+        proxyService = reference.getProxyInstance();
+    }
+
+    @TearDown
+    public void tearDown() {
+        reference.close();
+        registration.unregister();
+    }
+}
@@ -0,0 +1,102 @@
+package org.everit.osgi.servicereference.benchmarks;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.servicereference.benchmarks.stub.StubBundleContext;
+import org.everit.osgi.servicereference.core.Reference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Comparing the cost of calling a service directly with calling it via the proxy of a {@link Reference}, with and
+ * without collecting statistics.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProxyInvocationBenchmark {
+
+    private ServiceRegistration<BenchmarkService> registration;
+
+    private Reference reference;
+
+    private BenchmarkService directService;
+
+    private BenchmarkService proxyService;
+
+    private Reference statisticsReference;
+
+    private BenchmarkService statisticsProxyService;
+
+    private int value;
+
+    @Benchmark
+    public int directCall() {
+        return directService.increment(value);
+    }
+
+    @Benchmark
+    public int proxyCall() {
+        return proxyService.increment(value);
+    }
+
+    @Benchmark
+    public int proxyCallWithStatistics() {
+        return statisticsProxyService.increment(value);
+    }
+
+    @Setup
+    public void setUp() {
+        StubBundleContext context = new StubBundleContext();
+        directService = new BenchmarkServiceImpl();
+        registration = BenchmarkSupport.registerService(context, directService, 0);
+        reference = BenchmarkSupport.openReference(context, 1000);
+        proxyService = reference.getProxyInstance();
+        statisticsReference = BenchmarkSupport.openReference(context, 1000);
+        statisticsReference.setStatisticsEnabled(true);
+        statisticsProxyService = statisticsReference.getProxyInstance();
+        value = 1;
+    }
+
+    @TearDown
+    public void tearDown() {
+        reference.close();
+        statisticsReference.close();
+        registration.unregister();
+    }
+}
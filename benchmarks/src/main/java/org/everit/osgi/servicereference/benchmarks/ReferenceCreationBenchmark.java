@@ -0,0 +1,90 @@
+package org.everit.osgi.servicereference.benchmarks;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.servicereference.benchmarks.stub.StubBundleContext;
+import org.everit.osgi.servicereference.core.Reference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Filter;
+
+/**
+ * Measuring the cost of creating a {@link Reference} and the share of the creation of its proxy object via
+ * {@link Proxy#newProxyInstance(ClassLoader, Class[], InvocationHandler)}. Running it with the <code>-prof gc</code>
+ * option shows the memory that is allocated per reference.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReferenceCreationBenchmark {
+
+    private StubBundleContext context;
+
+    private Filter filter;
+
+    private ClassLoader classLoader;
+
+    private Class<?>[] interfaces;
+
+    private InvocationHandler handler;
+
+    @Benchmark
+    public Reference createReference() {
+        return new Reference(context, interfaces, filter, 1000);
+    }
+
+    @Benchmark
+    public Object jdkProxyInstance() {
+        return Proxy.newProxyInstance(classLoader, interfaces, handler);
+    }
+
+    @Setup
+    public void setUp() {
+        context = new StubBundleContext();
+        filter = BenchmarkSupport.createFilter(context);
+        classLoader = ReferenceCreationBenchmark.class.getClassLoader();
+        interfaces = new Class<?>[] { BenchmarkService.class };
+        handler = new InvocationHandler() {
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,139 @@
+package org.everit.osgi.servicereference.benchmarks;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.servicereference.benchmarks.stub.StubBundleContext;
+import org.everit.osgi.servicereference.core.Reference;
+import org.everit.osgi.servicereference.core.ReferenceRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Comparing references that have an own service tracker each with references that share the service listener of a
+ * {@link ReferenceRegistry}. Every reference tracks a service with a different objectClass as it is usual when a
+ * bundle references many services. The cost of delivering a service event and the cost of opening and closing all of
+ * the references are measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReferenceRegistryBenchmark {
+
+    private static final String OBJECT_CLASS_PREFIX = "benchmark.Service";
+
+    @Param({ "100", "500" })
+    private int referenceCount;
+
+    @Param({ "true", "false" })
+    private boolean shared;
+
+    private ReferenceRegistry registry;
+
+    private final List<Reference> references = new ArrayList<Reference>();
+
+    private final List<ServiceRegistration<?>> registrations = new ArrayList<ServiceRegistration<?>>();
+
+    private Hashtable<String, Object> properties;
+
+    private void closeAll() {
+        if (shared) {
+            registry.closeAll();
+        } else {
+            for (Reference reference : references) {
+                reference.close();
+            }
+        }
+    }
+
+    private void openAll() {
+        if (shared) {
+            registry.openAll();
+        } else {
+            for (Reference reference : references) {
+                reference.open();
+            }
+        }
+    }
+
+    @Benchmark
+    public void reopenAll() {
+        closeAll();
+        openAll();
+    }
+
+    @Benchmark
+    public void serviceEvent() {
+        registrations.get(0).setProperties(properties);
+    }
+
+    @Setup
+    public void setUp() throws InvalidSyntaxException {
+        StubBundleContext context = new StubBundleContext();
+        registry = new ReferenceRegistry(context);
+        properties = new Hashtable<String, Object>();
+        properties.put("benchmark", "true");
+        for (int i = 0; i < referenceCount; i++) {
+            registrations.add(context.registerService(OBJECT_CLASS_PREFIX + i, new BenchmarkServiceImpl(),
+                    properties));
+            Filter filter = context.createFilter("(objectClass=" + OBJECT_CLASS_PREFIX + i + ")");
+            Class<?>[] interfaces = new Class<?>[] { BenchmarkService.class };
+            if (shared) {
+                references.add(registry.createReference(interfaces, filter, 1000));
+            } else {
+                references.add(new Reference(context, interfaces, filter, 1000));
+            }
+        }
+        openAll();
+    }
+
+    @TearDown
+    public void tearDown() {
+        closeAll();
+        references.clear();
+        for (ServiceRegistration<?> registration : registrations) {
+            registration.unregister();
+        }
+        registrations.clear();
+    }
+}
@@ -0,0 +1,88 @@
+package org.everit.osgi.servicereference.benchmarks;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.servicereference.benchmarks.stub.StubBundleContext;
+import org.everit.osgi.servicereference.core.Reference;
+import org.everit.osgi.servicereference.core.ServiceUnavailableException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measuring the path when no service is available and the caller waits until the timeout of the {@link Reference}
+ * expires. The timeout is {@value #TIMEOUT} ms so the interesting part of the result is how much the measured time
+ * exceeds it.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServiceTimeoutBenchmark {
+
+    /**
+     * The timeout of the reference in milliseconds.
+     */
+    private static final long TIMEOUT = 1;
+
+    private Reference reference;
+
+    private BenchmarkService proxyService;
+
+    @Benchmark
+    public Object proxyCallTimeout() {
+        try {
+            return proxyService.increment(1);
+        } catch (ServiceUnavailableException e) {
+            return e;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        reference = BenchmarkSupport.openReference(new StubBundleContext(), TIMEOUT);
+        proxyService = reference.getProxyInstance();
+    }
+
+    @TearDown
+    public void tearDown() {
+        reference.close();
+    }
+
+    @Benchmark
+    public boolean waitForServiceTimeout() throws InterruptedException {
+        return reference.waitForService(TIMEOUT);
+    }
+}
@@ -0,0 +1,403 @@
+package org.everit.osgi.servicereference.benchmarks.stub;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceObjects;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * In-process stand-in of a {@link BundleContext} that supports the service registry functions that are used by
+ * {@link org.everit.osgi.servicereference.core.Reference} and {@link org.osgi.util.tracker.ServiceTracker}. Service
+ * events are delivered synchronously on the thread that registers, modifies or unregisters a service. Functions that
+ * are not related to the service registry throw an {@link UnsupportedOperationException}.
+ */
+public class StubBundleContext implements BundleContext {
+
+    /**
+     * A registered service listener together with its filter.
+     */
+    private static final class ListenerEntry {
+
+        private final ServiceListener listener;
+
+        private final Filter filter;
+
+        ListenerEntry(final ServiceListener listener, final Filter filter) {
+            this.listener = listener;
+            this.filter = filter;
+        }
+
+        boolean matches(final ServiceReference<?> reference) {
+            return (filter == null) || filter.match(reference);
+        }
+    }
+
+    /**
+     * The id that the next registered service gets.
+     */
+    private final AtomicLong nextServiceId = new AtomicLong(1);
+
+    /**
+     * The currently registered services.
+     */
+    private final List<StubServiceRegistration> registrations = new CopyOnWriteArrayList<StubServiceRegistration>();
+
+    /**
+     * The registered service listeners.
+     */
+    private final List<ListenerEntry> listeners = new CopyOnWriteArrayList<ListenerEntry>();
+
+    /**
+     * The bundle of this context. Only {@link Bundle#adapt(Class)} with {@link BundleWiring} and
+     * {@link Bundle#getBundleContext()} are supported.
+     */
+    private final Bundle bundle;
+
+    /**
+     * Creating a context whose bundle uses the classloader of this class.
+     */
+    public StubBundleContext() {
+        final ClassLoader classLoader = StubBundleContext.class.getClassLoader();
+        final BundleWiring bundleWiring = (BundleWiring) Proxy.newProxyInstance(classLoader,
+                new Class<?>[] { BundleWiring.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("getClassLoader".equals(method.getName())) {
+                            return classLoader;
+                        }
+                        throw new UnsupportedOperationException(method.toString());
+                    }
+                });
+        bundle = (Bundle) Proxy.newProxyInstance(classLoader, new Class<?>[] { Bundle.class },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        String name = method.getName();
+                        if ("adapt".equals(name) && BundleWiring.class.equals(args[0])) {
+                            return bundleWiring;
+                        } else if ("getBundleContext".equals(name)) {
+                            return StubBundleContext.this;
+                        } else if ("hashCode".equals(name)) {
+                            return System.identityHashCode(proxy);
+                        } else if ("equals".equals(name)) {
+                            return proxy == args[0];
+                        }
+                        throw new UnsupportedOperationException(method.toString());
+                    }
+                });
+    }
+
+    @Override
+    public void addBundleListener(final BundleListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void addFrameworkListener(final FrameworkListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void addServiceListener(final ServiceListener listener) {
+        removeServiceListener(listener);
+        listeners.add(new ListenerEntry(listener, null));
+    }
+
+    @Override
+    public void addServiceListener(final ServiceListener listener, final String filter)
+            throws InvalidSyntaxException {
+        Filter filterObject = (filter == null) ? null : createFilter(filter);
+        removeServiceListener(listener);
+        listeners.add(new ListenerEntry(listener, filterObject));
+    }
+
+    @Override
+    public Filter createFilter(final String filter) throws InvalidSyntaxException {
+        return FrameworkUtil.createFilter(filter);
+    }
+
+    private void fireServiceEvent(final int type, final ServiceReference<?> reference) {
+        ServiceEvent event = new ServiceEvent(type, reference);
+        for (ListenerEntry entry : listeners) {
+            if (entry.matches(reference)) {
+                entry.listener.serviceChanged(event);
+            }
+        }
+    }
+
+    @Override
+    public ServiceReference<?>[] getAllServiceReferences(final String clazz, final String filter)
+            throws InvalidSyntaxException {
+        return getServiceReferences(clazz, filter);
+    }
+
+    @Override
+    public Bundle getBundle() {
+        return bundle;
+    }
+
+    @Override
+    public Bundle getBundle(final long id) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Bundle getBundle(final String location) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Bundle[] getBundles() {
+        return new Bundle[] { bundle };
+    }
+
+    @Override
+    public File getDataFile(final String filename) {
+        return null;
+    }
+
+    @Override
+    public String getProperty(final String key) {
+        if (Constants.FRAMEWORK_VERSION.equals(key)) {
+            // The version of the framework API that is implemented by the stub
+            return "1.8.0";
+        }
+        return System.getProperty(key);
+    }
+
+    @Override
+    public <S> S getService(final ServiceReference<S> reference) {
+        StubServiceRegistration registration = ((StubServiceReference) reference).getRegistration();
+        if (registration.isUnregistered()) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        S service = (S) registration.getService();
+        return service;
+    }
+
+    @Override
+    public <S> ServiceObjects<S> getServiceObjects(final ServiceReference<S> reference) {
+        StubServiceRegistration registration = ((StubServiceReference) reference).getRegistration();
+        if (registration.isUnregistered()) {
+            return null;
+        }
+        return new StubServiceObjects<S>(registration);
+    }
+
+    @Override
+    public <S> ServiceReference<S> getServiceReference(final Class<S> clazz) {
+        @SuppressWarnings("unchecked")
+        ServiceReference<S> result = (ServiceReference<S>) getServiceReference(clazz.getName());
+        return result;
+    }
+
+    @Override
+    public ServiceReference<?> getServiceReference(final String clazz) {
+        ServiceReference<?>[] references;
+        try {
+            references = getServiceReferences(clazz, null);
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+        if (references == null) {
+            return null;
+        }
+        ServiceReference<?> best = references[0];
+        for (int i = 1; i < references.length; i++) {
+            if (references[i].compareTo(best) > 0) {
+                best = references[i];
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public <S> Collection<ServiceReference<S>> getServiceReferences(final Class<S> clazz, final String filter)
+            throws InvalidSyntaxException {
+        ServiceReference<?>[] references = getServiceReferences(clazz.getName(), filter);
+        List<ServiceReference<S>> result = new ArrayList<ServiceReference<S>>();
+        if (references != null) {
+            for (ServiceReference<?> reference : references) {
+                @SuppressWarnings("unchecked")
+                ServiceReference<S> typedReference = (ServiceReference<S>) reference;
+                result.add(typedReference);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public ServiceReference<?>[] getServiceReferences(final String clazz, final String filter)
+            throws InvalidSyntaxException {
+        Filter filterObject = (filter == null) ? null : createFilter(filter);
+        List<ServiceReference<?>> result = new ArrayList<ServiceReference<?>>();
+        for (StubServiceRegistration registration : registrations) {
+            StubServiceReference reference = registration.getReference();
+            String[] objectClass = (String[]) reference.getProperty(Constants.OBJECTCLASS);
+            if (((clazz == null) || Arrays.asList(objectClass).contains(clazz))
+                    && ((filterObject == null) || filterObject.match(reference))) {
+                result.add(reference);
+            }
+        }
+        if (result.isEmpty()) {
+            return null;
+        }
+        return result.toArray(new ServiceReference<?>[result.size()]);
+    }
+
+    @Override
+    public Bundle installBundle(final String location) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Bundle installBundle(final String location, final InputStream input) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Changing the properties of a service and notifying the listeners the same way as a framework would do.
+     *
+     * @param registration
+     *            The registration of the service.
+     * @param properties
+     *            The new properties of the service.
+     */
+    void modifyService(final StubServiceRegistration registration, final Map<String, Object> properties) {
+        StubServiceReference reference = registration.getReference();
+        List<ListenerEntry> previouslyMatching = new ArrayList<ListenerEntry>();
+        for (ListenerEntry entry : listeners) {
+            if (entry.matches(reference)) {
+                previouslyMatching.add(entry);
+            }
+        }
+        reference.setProperties(properties);
+        ServiceEvent modifiedEvent = new ServiceEvent(ServiceEvent.MODIFIED, reference);
+        ServiceEvent endMatchEvent = new ServiceEvent(ServiceEvent.MODIFIED_ENDMATCH, reference);
+        for (ListenerEntry entry : listeners) {
+            if (entry.matches(reference)) {
+                entry.listener.serviceChanged(modifiedEvent);
+            } else if (previouslyMatching.contains(entry)) {
+                entry.listener.serviceChanged(endMatchEvent);
+            }
+        }
+    }
+
+    @Override
+    public ServiceRegistration<?> registerService(final String clazz, final Object service,
+            final Dictionary<String, ?> properties) {
+        return registerService(new String[] { clazz }, service, properties);
+    }
+
+    @Override
+    public ServiceRegistration<?> registerService(final String[] clazzes, final Object service,
+            final Dictionary<String, ?> properties) {
+        StubServiceRegistration registration = new StubServiceRegistration(this, clazzes, service,
+                nextServiceId.getAndIncrement(), properties);
+        registrations.add(registration);
+        fireServiceEvent(ServiceEvent.REGISTERED, registration.getReference());
+        return registration;
+    }
+
+    @Override
+    public <S> ServiceRegistration<S> registerService(final Class<S> clazz, final S service,
+            final Dictionary<String, ?> properties) {
+        @SuppressWarnings("unchecked")
+        ServiceRegistration<S> result = (ServiceRegistration<S>) registerService(clazz.getName(), service,
+                properties);
+        return result;
+    }
+
+    @Override
+    public <S> ServiceRegistration<S> registerService(final Class<S> clazz, final ServiceFactory<S> factory,
+            final Dictionary<String, ?> properties) {
+        @SuppressWarnings("unchecked")
+        ServiceRegistration<S> result = (ServiceRegistration<S>) registerService(clazz.getName(), factory,
+                properties);
+        return result;
+    }
+
+    @Override
+    public void removeBundleListener(final BundleListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void removeFrameworkListener(final FrameworkListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void removeServiceListener(final ServiceListener listener) {
+        for (ListenerEntry entry : listeners) {
+            if (entry.listener == listener) {
+                listeners.remove(entry);
+            }
+        }
+    }
+
+    @Override
+    public boolean ungetService(final ServiceReference<?> reference) {
+        return ((StubServiceReference) reference).getRegistration().ungetService();
+    }
+
+    /**
+     * Notifying the listeners about the unregistration of a service and removing it from the registry.
+     *
+     * @param registration
+     *            The registration of the service.
+     */
+    void unregisterService(final StubServiceRegistration registration) {
+        fireServiceEvent(ServiceEvent.UNREGISTERING, registration.getReference());
+        registrations.remove(registration);
+    }
+}
@@ -0,0 +1,68 @@
+package org.everit.osgi.servicereference.benchmarks.stub;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import org.osgi.framework.ServiceObjects;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * {@link ServiceObjects} of a service that is registered in a {@link StubBundleContext}.
+ *
+ * @param <S>
+ *            The type of the service.
+ */
+public class StubServiceObjects<S> implements ServiceObjects<S> {
+
+    /**
+     * The registration of the service.
+     */
+    private final StubServiceRegistration registration;
+
+    /**
+     * Simple constructor that sets the fields.
+     *
+     * @param registration
+     *            Value of {@link #registration}.
+     */
+    StubServiceObjects(final StubServiceRegistration registration) {
+        this.registration = registration;
+    }
+
+    @Override
+    public S getService() {
+        @SuppressWarnings("unchecked")
+        S service = (S) registration.getPrototypeService();
+        return service;
+    }
+
+    @Override
+    public ServiceReference<S> getServiceReference() {
+        @SuppressWarnings("unchecked")
+        ServiceReference<S> result = (ServiceReference<S>) (ServiceReference<?>) registration.getReference();
+        return result;
+    }
+
+    @Override
+    public void ungetService(final S service) {
+        registration.ungetPrototypeService(service);
+    }
+}
@@ -0,0 +1,127 @@
+package org.everit.osgi.servicereference.benchmarks.stub;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * {@link ServiceReference} of a service that is registered in a {@link StubBundleContext}.
+ */
+public class StubServiceReference implements ServiceReference<Object> {
+
+    /**
+     * The registration that this reference belongs to.
+     */
+    private final StubServiceRegistration registration;
+
+    /**
+     * The properties of the service. The map is replaced when the properties of the service are modified.
+     */
+    private volatile Map<String, Object> properties;
+
+    /**
+     * Simple constructor that sets the fields.
+     *
+     * @param registration
+     *            Value of {@link #registration}.
+     * @param properties
+     *            Value of {@link #properties}.
+     */
+    StubServiceReference(final StubServiceRegistration registration, final Map<String, Object> properties) {
+        this.registration = registration;
+        this.properties = properties;
+    }
+
+    /**
+     * Services are ordered by their ranking and in case of equal rankings the service with the lower id is the
+     * greater one. See {@link ServiceReference#compareTo(Object)}. <br>
+     * <br>
+     * {@inheritDoc}
+     */
+    @Override
+    public int compareTo(final Object reference) {
+        StubServiceReference other = (StubServiceReference) reference;
+        int ranking = getRanking();
+        int otherRanking = other.getRanking();
+        if (ranking != otherRanking) {
+            return (ranking < otherRanking) ? -1 : 1;
+        }
+        long id = getServiceId();
+        long otherId = other.getServiceId();
+        if (id == otherId) {
+            return 0;
+        }
+        return (id > otherId) ? -1 : 1;
+    }
+
+    @Override
+    public Bundle getBundle() {
+        if (registration.isUnregistered()) {
+            return null;
+        }
+        return registration.getBundleContext().getBundle();
+    }
+
+    @Override
+    public Object getProperty(final String key) {
+        return properties.get(key);
+    }
+
+    @Override
+    public String[] getPropertyKeys() {
+        return properties.keySet().toArray(new String[0]);
+    }
+
+    private int getRanking() {
+        Object ranking = properties.get(Constants.SERVICE_RANKING);
+        if (ranking instanceof Integer) {
+            return (Integer) ranking;
+        }
+        return 0;
+    }
+
+    StubServiceRegistration getRegistration() {
+        return registration;
+    }
+
+    private long getServiceId() {
+        return (Long) properties.get(Constants.SERVICE_ID);
+    }
+
+    @Override
+    public Bundle[] getUsingBundles() {
+        return null;
+    }
+
+    @Override
+    public boolean isAssignableTo(final Bundle bundle, final String className) {
+        return true;
+    }
+
+    void setProperties(final Map<String, Object> properties) {
+        this.properties = properties;
+    }
+}
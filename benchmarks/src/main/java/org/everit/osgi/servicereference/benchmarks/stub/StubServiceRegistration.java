@@ -0,0 +1,291 @@
+package org.everit.osgi.servicereference.benchmarks.stub;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.PrototypeServiceFactory;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * {@link ServiceRegistration} of a {@link StubBundleContext}. Modifying the properties or unregistering the service
+ * fires the same service events as a real framework would. If the registered object is a {@link ServiceFactory}, the
+ * service object is created by the factory when it is got for the first time and it is released when it is not used
+ * anymore. If the registered object is a {@link PrototypeServiceFactory}, the {@link StubServiceObjects} of the service
+ * create a new object every time.
+ */
+public class StubServiceRegistration implements ServiceRegistration<Object> {
+
+    /**
+     * The context that the service is registered in.
+     */
+    private final StubBundleContext bundleContext;
+
+    /**
+     * The registered service object.
+     */
+    private final Object service;
+
+    /**
+     * The interface names that the service is registered with.
+     */
+    private final String[] objectClass;
+
+    /**
+     * The service object that was created by the {@link ServiceFactory} or null.
+     */
+    private Object factoryServiceObject;
+
+    /**
+     * The number of times the service object is got and not released yet.
+     */
+    private int useCount = 0;
+
+    /**
+     * The objects that were created by the {@link PrototypeServiceFactory} and are not released yet.
+     */
+    private final List<Object> prototypeServiceObjects = new ArrayList<Object>();
+
+    /**
+     * The id of the registered service.
+     */
+    private final long serviceId;
+
+    /**
+     * The reference of the service.
+     */
+    private final StubServiceReference reference;
+
+    /**
+     * True if {@link #unregister()} has already been called.
+     */
+    private volatile boolean unregistered = false;
+
+    /**
+     * Constructor that creates the {@link #reference} of the service as well.
+     *
+     * @param bundleContext
+     *            Value of {@link #bundleContext}.
+     * @param objectClass
+     *            Value of {@link #objectClass}.
+     * @param service
+     *            Value of {@link #service}.
+     * @param serviceId
+     *            Value of {@link #serviceId}.
+     * @param properties
+     *            The properties of the service or null.
+     */
+    StubServiceRegistration(final StubBundleContext bundleContext, final String[] objectClass,
+            final Object service, final long serviceId, final Dictionary<String, ?> properties) {
+        this.bundleContext = bundleContext;
+        this.objectClass = objectClass.clone();
+        this.service = service;
+        this.serviceId = serviceId;
+        reference = new StubServiceReference(this, createProperties(properties));
+    }
+
+    /**
+     * Creating the property map of the service that contains the standard properties as well.
+     *
+     * @param properties
+     *            The properties that were passed during the registration or modification of the service.
+     * @return The new property map.
+     */
+    private Map<String, Object> createProperties(final Dictionary<String, ?> properties) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        if (properties != null) {
+            Enumeration<String> keys = properties.keys();
+            while (keys.hasMoreElements()) {
+                String key = keys.nextElement();
+                result.put(key, properties.get(key));
+            }
+        }
+        result.put(Constants.OBJECTCLASS, objectClass.clone());
+        result.put(Constants.SERVICE_ID, serviceId);
+        if (service instanceof PrototypeServiceFactory) {
+            result.put(Constants.SERVICE_SCOPE, Constants.SCOPE_PROTOTYPE);
+        } else if (service instanceof ServiceFactory) {
+            result.put(Constants.SERVICE_SCOPE, Constants.SCOPE_BUNDLE);
+        } else {
+            result.put(Constants.SERVICE_SCOPE, Constants.SCOPE_SINGLETON);
+        }
+        return result;
+    }
+
+    StubBundleContext getBundleContext() {
+        return bundleContext;
+    }
+
+    @Override
+    public StubServiceReference getReference() {
+        if (unregistered) {
+            throw new IllegalStateException("Service is already unregistered");
+        }
+        return reference;
+    }
+
+    /**
+     * Getting the service object and incrementing the use count of the service.
+     *
+     * @return The service object.
+     */
+    synchronized Object getService() {
+        if (!(service instanceof ServiceFactory)) {
+            useCount++;
+            return service;
+        }
+        if (factoryServiceObject == null) {
+            @SuppressWarnings("unchecked")
+            ServiceFactory<Object> factory = (ServiceFactory<Object>) service;
+            factoryServiceObject = factory.getService(bundleContext.getBundle(), this);
+            if (factoryServiceObject == null) {
+                return null;
+            }
+        }
+        useCount++;
+        return factoryServiceObject;
+    }
+
+    /**
+     * Getting a new object from the {@link PrototypeServiceFactory} or the same object as {@link #getService()} does
+     * if the service is not prototype scoped.
+     *
+     * @return The service object or null if the service is unregistered.
+     */
+    Object getPrototypeService() {
+        if (!(service instanceof PrototypeServiceFactory)) {
+            return unregistered ? null : getService();
+        }
+        synchronized (this) {
+            if (unregistered) {
+                return null;
+            }
+            @SuppressWarnings("unchecked")
+            PrototypeServiceFactory<Object> factory = (PrototypeServiceFactory<Object>) service;
+            Object serviceObject = factory.getService(bundleContext.getBundle(), this);
+            if (serviceObject != null) {
+                prototypeServiceObjects.add(serviceObject);
+            }
+            return serviceObject;
+        }
+    }
+
+    boolean isUnregistered() {
+        return unregistered;
+    }
+
+    /**
+     * Decrementing the use count of the service and releasing the object created by the {@link ServiceFactory} if the
+     * service is not used anymore.
+     *
+     * @return False if the service was not used or it is already unregistered.
+     */
+    synchronized boolean ungetService() {
+        if (unregistered || (useCount == 0)) {
+            return false;
+        }
+        useCount--;
+        if ((useCount == 0) && (factoryServiceObject != null)) {
+            @SuppressWarnings("unchecked")
+            ServiceFactory<Object> factory = (ServiceFactory<Object>) service;
+            factory.ungetService(bundleContext.getBundle(), this, factoryServiceObject);
+            factoryServiceObject = null;
+        }
+        return true;
+    }
+
+    /**
+     * Releasing an object that was got by {@link #getPrototypeService()}.
+     *
+     * @param serviceObject
+     *            The service object.
+     * @throws IllegalArgumentException
+     *             if the object was not got from this service or it is already released.
+     */
+    void ungetPrototypeService(final Object serviceObject) {
+        if (!(service instanceof PrototypeServiceFactory)) {
+            ungetService();
+            return;
+        }
+        synchronized (this) {
+            if (unregistered) {
+                return;
+            }
+            if (!removeIdentical(prototypeServiceObjects, serviceObject)) {
+                throw new IllegalArgumentException("The object is not a service object of this service");
+            }
+            @SuppressWarnings("unchecked")
+            PrototypeServiceFactory<Object> factory = (PrototypeServiceFactory<Object>) service;
+            factory.ungetService(bundleContext.getBundle(), this, serviceObject);
+        }
+    }
+
+    private static boolean removeIdentical(final List<Object> list, final Object element) {
+        for (int i = 0, n = list.size(); i < n; i++) {
+            if (list.get(i) == element) {
+                list.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void setProperties(final Dictionary<String, ?> properties) {
+        if (unregistered) {
+            throw new IllegalStateException("Service is already unregistered");
+        }
+        bundleContext.modifyService(this, createProperties(properties));
+    }
+
+    @Override
+    public void unregister() {
+        if (unregistered) {
+            throw new IllegalStateException("Service is already unregistered");
+        }
+        bundleContext.unregisterService(this);
+        synchronized (this) {
+            unregistered = true;
+            if (factoryServiceObject != null) {
+                @SuppressWarnings("unchecked")
+                ServiceFactory<Object> factory = (ServiceFactory<Object>) service;
+                factory.ungetService(bundleContext.getBundle(), this, factoryServiceObject);
+                factoryServiceObject = null;
+            }
+            if (!prototypeServiceObjects.isEmpty()) {
+                @SuppressWarnings("unchecked")
+                PrototypeServiceFactory<Object> factory = (PrototypeServiceFactory<Object>) service;
+                for (Object serviceObject : prototypeServiceObjects) {
+                    factory.ungetService(bundleContext.getBundle(), this, serviceObject);
+                }
+                prototypeServiceObjects.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.everit.osgi.servicereference.core;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+
+import org.everit.osgi.servicereference.core.internal.IdleServiceReleaser;
+import org.everit.osgi.servicereference.core.internal.ServicePool;
+
+/**
+ * Companion of a {@link Reference} that does not block the caller if no service is available. The calls are queued
+ * and executed when a service is added to the reference. If no service is added until the timeout of the reference,
+ * the futures of the queued calls are completed with a {@link ServiceUnavailableException}. The timeouts of all
+ * references are handled by one shared scheduler thread so no thread is blocked by a waiting call.<br>
+ * <br>
+ * If the service is available at the time of the call, the call is executed immediately on the thread of the caller.
+ * Queued calls are executed by the {@link Executor} of the async reference so they do not run on the thread that
+ * registers the service. If the instances of a prototype scoped service are pooled (see
+ * {@link Reference#setServicePoolSize(int)}), the call might wait for a free instance.
+ * 
+ * @param <S>
+ *            The type of the service.
+ */
+public class AsyncReference<S> {
+
+    /**
+     * The reference that tracks the services.
+     */
+    private final Reference reference;
+
+    /**
+     * The executor that runs the calls that were queued until the service was available.
+     */
+    private final Executor executor;
+
+    /**
+     * Constructor that uses the {@link ForkJoinPool#commonPool()} to execute the queued calls.
+     * 
+     * @param reference
+     *            Value of {@link #reference}.
+     */
+    public AsyncReference(final Reference reference) {
+        this(reference, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Simple constructor that sets the fields.
+     * 
+     * @param reference
+     *            Value of {@link #reference}.
+     * @param executor
+     *            Value of {@link #executor}.
+     */
+    public AsyncReference(final Reference reference, final Executor executor) {
+        if (reference == null) {
+            throw new IllegalArgumentException("The reference parameter cannot be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("The executor parameter cannot be null");
+        }
+        this.reference = reference;
+        this.executor = executor;
+    }
+
+    /**
+     * Calling the service when it is available without blocking the caller.
+     * 
+     * @param serviceCall
+     *            The call that should be executed on the service object.
+     * @param <R>
+     *            The type of the result of the call.
+     * @return A future that is completed with the result of the call or exceptionally with the exception that the call
+     *         threw or with a {@link ServiceUnavailableException} if no service was available until the timeout or
+     *         with a {@link ReferenceClosedException} if the reference was closed while the call was queued or with a
+     *         {@link ConcurrencyLimitExceededException} if all instances of the service pool were in use until the
+     *         timeout.
+     * @throws IllegalStateException
+     *             if the reference is not opened.
+     */
+    public <R> CompletableFuture<R> call(final ServiceCall<? super S, ? extends R> serviceCall) {
+        final CompletableFuture<R> result = new CompletableFuture<R>();
+        // The call is counted from the request of the service so the service object is not released during the call.
+        final IdleServiceReleaser idleServiceReleaser = reference.getIdleServiceReleaser();
+        if (idleServiceReleaser != null) {
+            idleServiceReleaser.callStarted();
+            result.whenComplete((value, failure) -> idleServiceReleaser.callFinished());
+        }
+        CompletableFuture<Object> serviceRequest;
+        try {
+            serviceRequest = reference.requestService();
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            throw e;
+        }
+        BiConsumer<Object, Throwable> execution = (service, failure) -> {
+            if (failure == null) {
+                execute(serviceCall, service, result);
+            } else if ((failure instanceof CompletionException) && (failure.getCause() != null)) {
+                result.completeExceptionally(failure.getCause());
+            } else {
+                result.completeExceptionally(failure);
+            }
+        };
+        if (serviceRequest.isDone()) {
+            // A request that failed already (e.g. the circuit is open) completes the result right away
+            serviceRequest.whenComplete(execution);
+        } else {
+            serviceRequest.whenCompleteAsync(execution, executor);
+        }
+        return result;
+    }
+
+    private <R> void execute(final ServiceCall<? super S, ? extends R> serviceCall, final Object service,
+            final CompletableFuture<R> result) {
+        if (service instanceof ServicePool) {
+            executePooled(serviceCall, (ServicePool) service, result);
+            return;
+        }
+        try {
+            @SuppressWarnings("unchecked")
+            S typedService = (S) service;
+            result.complete(serviceCall.call(typedService));
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private <R> void executePooled(final ServiceCall<? super S, ? extends R> serviceCall,
+            final ServicePool servicePool, final CompletableFuture<R> result) {
+        Object instance;
+        try {
+            instance = servicePool.borrow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return;
+        }
+        if (instance == null) {
+            String filter = reference.getFilter().toString();
+            if (servicePool.isClosed()) {
+                result.completeExceptionally(new ServiceUnavailableException(filter, servicePool.getBorrowTimeout()));
+            } else {
+                result.completeExceptionally(new ConcurrencyLimitExceededException(filter,
+                        servicePool.getBorrowTimeout()));
+            }
+            return;
+        }
+        try {
+            execute(serviceCall, instance, result);
+        } finally {
+            servicePool.giveBack(instance);
+        }
+    }
+
+    public Reference getReference() {
+        return reference;
+    }
+}
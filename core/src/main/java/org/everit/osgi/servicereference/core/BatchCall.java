@@ -0,0 +1,51 @@
+package org.everit.osgi.servicereference.core;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.List;
+
+/**
+ * A call on a service object that processes more items at once. It is executed by a {@link BatchingReference} with the
+ * items that were collected into one batch.
+ * 
+ * @param <S>
+ *            The type of the service.
+ * @param <T>
+ *            The type of the items.
+ * @param <R>
+ *            The type of the result of one item.
+ */
+public interface BatchCall<S, T, R> {
+
+    /**
+     * Calling the service with a batch of items.
+     * 
+     * @param service
+     *            The service object that is tracked by the reference.
+     * @param items
+     *            The items of the batch in the order they were submitted.
+     * @return The results of the items in the same order as the items.
+     * @throws Exception
+     *             if the service call fails. The exception will complete the futures of all the items of the batch.
+     */
+    List<R> call(S service, List<T> items) throws Exception;
+}
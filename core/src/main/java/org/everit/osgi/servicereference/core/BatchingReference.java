@@ -0,0 +1,264 @@
+package org.everit.osgi.servicereference.core;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.everit.osgi.servicereference.core.internal.HashedWheelTimer.Timeout;
+import org.everit.osgi.servicereference.core.internal.ReferenceScheduler;
+
+/**
+ * Companion of a {@link Reference} that collects items submitted one by one into batches and processes every batch
+ * with one call on the service (e.g. calling a processAll(List) function instead of calling process(item) for every
+ * item). A batch is processed when it reaches the maximum size or when the maximum delay passes after its first item
+ * was submitted. The delay is measured by the scheduler that is shared by all of the references so its precision is
+ * 10 ms.<br>
+ * <br>
+ * The batches are processed by the {@link Executor} of the batching reference in the same way as the calls of an
+ * {@link AsyncReference}: if no service is available the batch waits for it until the timeout of the reference.
+ * 
+ * @param <S>
+ *            The type of the service.
+ * @param <T>
+ *            The type of the items.
+ * @param <R>
+ *            The type of the result of one item.
+ */
+public class BatchingReference<S, T, R> {
+
+    /**
+     * The items that are collected until they are processed together.
+     */
+    private final class Batch {
+
+        private final List<T> items = new ArrayList<T>();
+
+        private final List<CompletableFuture<R>> results = new ArrayList<CompletableFuture<R>>();
+
+        private Timeout flushTimeout;
+    }
+
+    /**
+     * Calls the service when it is available.
+     */
+    private final AsyncReference<S> asyncReference;
+
+    /**
+     * The call that processes a batch of items.
+     */
+    private final BatchCall<? super S, T, ? extends R> batchCall;
+
+    /**
+     * The maximum number of items in a batch.
+     */
+    private final int maxBatchSize;
+
+    /**
+     * The maximum time in milliseconds an item waits for other items before the batch is processed.
+     */
+    private final long maxDelay;
+
+    /**
+     * The executor that processes the batches.
+     */
+    private final Executor executor;
+
+    /**
+     * Lock that protects {@link #currentBatch}.
+     */
+    private final ReentrantLock mutex = new ReentrantLock();
+
+    /**
+     * The batch that collects the submitted items or null if there is no submitted item that is not processed yet.
+     */
+    private Batch currentBatch;
+
+    /**
+     * Constructor that uses the {@link ForkJoinPool#commonPool()} to process the batches.
+     * 
+     * @param reference
+     *            The reference that tracks the services.
+     * @param batchCall
+     *            Value of {@link #batchCall}.
+     * @param maxBatchSize
+     *            Value of {@link #maxBatchSize}.
+     * @param maxDelay
+     *            Value of {@link #maxDelay}.
+     */
+    public BatchingReference(final Reference reference, final BatchCall<? super S, T, ? extends R> batchCall,
+            final int maxBatchSize, final long maxDelay) {
+        this(reference, batchCall, maxBatchSize, maxDelay, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Simple constructor that sets the fields.
+     * 
+     * @param reference
+     *            The reference that tracks the services.
+     * @param batchCall
+     *            Value of {@link #batchCall}.
+     * @param maxBatchSize
+     *            Value of {@link #maxBatchSize}.
+     * @param maxDelay
+     *            Value of {@link #maxDelay}.
+     * @param executor
+     *            Value of {@link #executor}.
+     * @throws IllegalArgumentException
+     *             if any of the parameters is null, the batch size is not positive or the delay is negative.
+     */
+    public BatchingReference(final Reference reference, final BatchCall<? super S, T, ? extends R> batchCall,
+            final int maxBatchSize, final long maxDelay, final Executor executor) {
+        if (batchCall == null) {
+            throw new IllegalArgumentException("The batchCall parameter cannot be null");
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("The maximum batch size must be at least one");
+        }
+        if (maxDelay < 0) {
+            throw new IllegalArgumentException("The maximum delay cannot be negative");
+        }
+        asyncReference = new AsyncReference<S>(reference, executor);
+        this.batchCall = batchCall;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = maxDelay;
+        this.executor = executor;
+    }
+
+    private void complete(final Batch batch, final List<? extends R> results, final Throwable failure) {
+        if ((failure == null) && ((results == null) || (results.size() != batch.items.size()))) {
+            completeExceptionally(batch, new IllegalStateException("The batch call returned "
+                    + ((results == null) ? "null" : String.valueOf(results.size())) + " results for "
+                    + batch.items.size() + " items"));
+        } else if (failure != null) {
+            completeExceptionally(batch, failure);
+        } else {
+            for (int i = 0, n = results.size(); i < n; i++) {
+                batch.results.get(i).complete(results.get(i));
+            }
+        }
+    }
+
+    private void completeExceptionally(final Batch batch, final Throwable failure) {
+        for (CompletableFuture<R> result : batch.results) {
+            result.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Processing a batch on the {@link #executor}.
+     * 
+     * @param batch
+     *            The batch that does not collect items anymore.
+     */
+    private void dispatch(final Batch batch) {
+        if (batch.flushTimeout != null) {
+            batch.flushTimeout.cancel();
+        }
+        final List<T> items = Collections.unmodifiableList(batch.items);
+        executor.execute(() -> {
+            try {
+                asyncReference.<List<? extends R>> call(service -> batchCall.call(service, items))
+                        .whenComplete((results, failure) -> complete(batch, results, failure));
+            } catch (RuntimeException e) {
+                completeExceptionally(batch, e);
+            }
+        });
+    }
+
+    /**
+     * Processing the items that were submitted but not processed yet without waiting for more items.
+     */
+    public void flush() {
+        Batch batch;
+        mutex.lock();
+        try {
+            batch = currentBatch;
+            currentBatch = null;
+        } finally {
+            mutex.unlock();
+        }
+        if (batch != null) {
+            dispatch(batch);
+        }
+    }
+
+    private void flushIfCurrent(final Batch batch) {
+        mutex.lock();
+        try {
+            if (currentBatch != batch) {
+                return;
+            }
+            currentBatch = null;
+        } finally {
+            mutex.unlock();
+        }
+        dispatch(batch);
+    }
+
+    public Reference getReference() {
+        return asyncReference.getReference();
+    }
+
+    /**
+     * Submitting an item to be processed with the other items of the current batch.
+     * 
+     * @param item
+     *            The item.
+     * @return A future that is completed with the result of the item or exceptionally with the exception that the
+     *         batch call threw or with a {@link ServiceUnavailableException} if no service was available until the
+     *         timeout.
+     */
+    public CompletableFuture<R> submit(final T item) {
+        CompletableFuture<R> result = new CompletableFuture<R>();
+        Batch fullBatch = null;
+        mutex.lock();
+        try {
+            Batch batch = currentBatch;
+            if (batch == null) {
+                batch = new Batch();
+                currentBatch = batch;
+                if (maxBatchSize > 1) {
+                    final Batch newBatch = batch;
+                    batch.flushTimeout = ReferenceScheduler.schedule(() -> flushIfCurrent(newBatch), maxDelay);
+                }
+            }
+            batch.items.add(item);
+            batch.results.add(result);
+            if (batch.items.size() >= maxBatchSize) {
+                fullBatch = batch;
+                currentBatch = null;
+            }
+        } finally {
+            mutex.unlock();
+        }
+        if (fullBatch != null) {
+            dispatch(fullBatch);
+        }
+        return result;
+    }
+}
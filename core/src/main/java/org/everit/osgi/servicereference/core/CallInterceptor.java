@@ -0,0 +1,44 @@
+package org.everit.osgi.servicereference.core;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * Interceptor of the calls on the proxy object of a {@link Reference} that can add tracing, timing, argument validation
+ * or the propagation of a context around every call. The interceptors of a reference form an ordered chain: the first
+ * added interceptor is called first and it passes the call to the next one by calling
+ * {@link InterceptedCall#proceed()}. The last interceptor passes the call to the reference that waits for the service
+ * and calls it. The implementation of this class must be thread safe.
+ */
+public interface CallInterceptor {
+
+    /**
+     * Intercepting a call on the proxy object.
+     * 
+     * @param call
+     *            The intercepted call.
+     * @return The result of the call. Usually the result of {@link InterceptedCall#proceed()} but an interceptor can
+     *         return an other result or throw an exception without proceeding.
+     * @throws Throwable
+     *             if the call fails. The exception is thrown to the caller of the proxy object.
+     */
+    Object intercept(InterceptedCall call) throws Throwable;
+}
@@ -0,0 +1,65 @@
+package org.everit.osgi.servicereference.core;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.Method;
+
+/**
+ * Thrown instead of waiting for the service when the circuit breaker of a {@link Reference} is open. See
+ * {@link Reference#enableCircuitBreaker(int, long)}.
+ */
+public class CircuitOpenException extends ServiceUnavailableException {
+
+    /**
+     * Generated seriable version.
+     */
+    private static final long serialVersionUID = 3626181937415236094L;
+
+    /**
+     * Constructor that is used when the service was requested without calling a method on the proxy object (e.g. by an
+     * {@link AsyncReference}).
+     * 
+     * @param serviceFilter
+     *            The filter that the service tracking is based on.
+     * @param timeout
+     *            The timeout of the reference.
+     */
+    public CircuitOpenException(final String serviceFilter, final long timeout) {
+        super("The service '" + serviceFilter + "' is not available and the circuit breaker is open.", serviceFilter,
+                null, timeout);
+    }
+
+    /**
+     * Constructor that is used when a method was called on the proxy object.
+     * 
+     * @param serviceFilter
+     *            The filter that the service tracking is based on.
+     * @param method
+     *            The method that was called on the proxy object.
+     * @param timeout
+     *            The timeout of the reference.
+     */
+    public CircuitOpenException(final String serviceFilter, final Method method, final long timeout) {
+        super("The service '" + serviceFilter + "' is not available and the circuit breaker is open during the call"
+                + " of the method " + method.toString() + ".", serviceFilter, method, timeout);
+    }
+}
@@ -0,0 +1,144 @@
+package org.everit.osgi.servicereference.core;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * The limit of the concurrent calls of the services of a {@link Reference}. If the limit is reached the excess calls
+ * wait in a bounded queue until a call finishes. If the queue is full or a call cannot start until the timeout of the
+ * reference, the call is rejected: the {@link ServiceUnavailableHandler} of the reference is called or a
+ * {@link ConcurrencyLimitExceededException} is thrown.<br>
+ * <br>
+ * The limit can be fixed or adaptive. An adaptive limit is sized from the observed latency of the calls with the
+ * additive increase / multiplicative decrease (AIMD) algorithm: while the calls finish within the latency threshold and
+ * the limit is used, the limit grows by one in every round of calls and if a call is slower than the threshold, the
+ * limit shrinks to 90%.
+ */
+public final class ConcurrencyLimit {
+
+    /**
+     * The limit of the concurrent calls at start.
+     */
+    private final int initialLimit;
+
+    /**
+     * The limit never goes below this value.
+     */
+    private final int minLimit;
+
+    /**
+     * The limit never goes above this value.
+     */
+    private final int maxLimit;
+
+    /**
+     * The latency in milliseconds above that the limit is decreased or zero if the limit is fixed.
+     */
+    private final long latencyThreshold;
+
+    /**
+     * The maximum number of calls that wait for a free slot.
+     */
+    private final int maxQueueSize;
+
+    private ConcurrencyLimit(final int initialLimit, final int minLimit, final int maxLimit,
+            final long latencyThreshold, final int maxQueueSize) {
+        if (minLimit < 1) {
+            throw new IllegalArgumentException("The limit of the concurrent calls must be at least one");
+        }
+        if (maxLimit < minLimit) {
+            throw new IllegalArgumentException("The maximum limit cannot be less than the minimum limit");
+        }
+        if (maxQueueSize < 0) {
+            throw new IllegalArgumentException("The maximum size of the queue cannot be negative");
+        }
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThreshold = latencyThreshold;
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    /**
+     * Creating an adaptive limit. It starts from the minimum limit.
+     * 
+     * @param minLimit
+     *            The limit never goes below this value.
+     * @param maxLimit
+     *            The limit never goes above this value.
+     * @param latencyThreshold
+     *            The latency in milliseconds above that the limit is decreased.
+     * @param maxQueueSize
+     *            The maximum number of calls that wait for a free slot. Zero means that the excess calls are rejected
+     *            immediately.
+     * @return The limit.
+     * @throws IllegalArgumentException
+     *             if the minimum limit is not positive, the maximum limit is less than the minimum limit, the latency
+     *             threshold is not positive or the queue size is negative.
+     */
+    public static ConcurrencyLimit adaptive(final int minLimit, final int maxLimit, final long latencyThreshold,
+            final int maxQueueSize) {
+        if (latencyThreshold < 1) {
+            throw new IllegalArgumentException("The latency threshold must be positive");
+        }
+        return new ConcurrencyLimit(minLimit, minLimit, maxLimit, latencyThreshold, maxQueueSize);
+    }
+
+    /**
+     * Creating a fixed limit.
+     * 
+     * @param maxConcurrentCalls
+     *            The maximum number of calls that can run at the same time.
+     * @param maxQueueSize
+     *            The maximum number of calls that wait for a free slot. Zero means that the excess calls are rejected
+     *            immediately.
+     * @return The limit.
+     * @throws IllegalArgumentException
+     *             if the number of concurrent calls is not positive or the queue size is negative.
+     */
+    public static ConcurrencyLimit fixed(final int maxConcurrentCalls, final int maxQueueSize) {
+        return new ConcurrencyLimit(maxConcurrentCalls, maxConcurrentCalls, maxConcurrentCalls, 0, maxQueueSize);
+    }
+
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    public long getLatencyThreshold() {
+        return latencyThreshold;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public boolean isAdaptive() {
+        return latencyThreshold > 0;
+    }
+}
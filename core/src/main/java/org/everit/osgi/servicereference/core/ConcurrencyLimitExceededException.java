@@ -0,0 +1,66 @@
+package org.everit.osgi.servicereference.core;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.Method;
+
+/**
+ * Thrown when a call on the proxy object of a {@link Reference} is rejected as the {@link ConcurrencyLimit} of the
+ * reference or the method is reached and no more calls can wait. A call is rejected in the same way if all instances of
+ * the service pool are in use until the timeout (see {@link Reference#setServicePoolSize(int)}).
+ */
+public class ConcurrencyLimitExceededException extends ServiceUnavailableException {
+
+    /**
+     * Generated seriable version.
+     */
+    private static final long serialVersionUID = -5128373650497426405L;
+
+    /**
+     * Constructor that is used when the service was called without calling a method on the proxy object (e.g. by an
+     * {@link AsyncReference}).
+     * 
+     * @param serviceFilter
+     *            The filter that the service tracking is based on.
+     * @param timeout
+     *            The timeout of the reference.
+     */
+    public ConcurrencyLimitExceededException(final String serviceFilter, final long timeout) {
+        super("The limit of the concurrent calls of the service '" + serviceFilter + "' is reached.", serviceFilter,
+                null, timeout);
+    }
+
+    /**
+     * Constructor that is used when a method was called on the proxy object.
+     * 
+     * @param serviceFilter
+     *            The filter that the service tracking is based on.
+     * @param method
+     *            The method that was called on the proxy object.
+     * @param timeout
+     *            The timeout of the reference.
+     */
+    public ConcurrencyLimitExceededException(final String serviceFilter, final Method method, final long timeout) {
+        super("The limit of the concurrent calls of the service '" + serviceFilter + "' is reached during the call"
+                + " of the method " + method.toString() + ".", serviceFilter, method, timeout);
+    }
+}
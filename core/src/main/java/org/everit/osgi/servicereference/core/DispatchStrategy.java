@@ -0,0 +1,68 @@
+package org.everit.osgi.servicereference.core;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * The strategy that decides which of the tracked services is called when a method is invoked on the proxy of a
+ * {@link Reference}. The strategy can be changed at any time with
+ * {@link Reference#setDispatchStrategy(DispatchStrategy)} and it has effect on the calls that start after the change.
+ */
+public enum DispatchStrategy {
+
+    /**
+     * Every call goes to the best ranked service: the one with the highest ranking and in case of equal rankings the
+     * one with the lowest service id. This is the default strategy and it works the same way as
+     * {@link org.osgi.util.tracker.ServiceTracker#getService()}.
+     */
+    HIGHEST_RANKED,
+
+    /**
+     * The calls are spread over all of the tracked services in turn, in the order of their ranking.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Every call goes to a randomly chosen service of the tracked ones.
+     */
+    RANDOM,
+
+    /**
+     * Every call goes to the service that has the least number of calls in progress via the proxy of the reference. In
+     * case of equal numbers the better ranked service is chosen.
+     */
+    LEAST_IN_FLIGHT,
+
+    /**
+     * Every calling thread sticks to one of the tracked services so the state of the service that belongs to the
+     * thread (e.g. caches of the backend) stays warm. The services are assigned to the threads by consistent hashing:
+     * when a service is added or removed, only the threads of the affected service are moved to an other one.
+     */
+    THREAD_AFFINITY,
+
+    /**
+     * The calls with equal first arguments go to the same one of the tracked services, e.g. the calls of a tenant or
+     * a user if its identifier is the first argument. The services are assigned to the {@link Object#hashCode()} of
+     * the first argument by consistent hashing the same way as with {@link #THREAD_AFFINITY}. The calls of methods
+     * without parameters are dispatched by the calling thread.
+     */
+    ARGUMENT_AFFINITY
+}
@@ -0,0 +1,63 @@
+package org.everit.osgi.servicereference.core;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.Method;
+
+/**
+ * A call on the proxy object of a {@link Reference} that is passed to the {@link CallInterceptor}s of the reference.
+ * The object belongs to one call and it should not be used after the call finished.
+ */
+public interface InterceptedCall {
+
+    /**
+     * Getting the arguments of the call. The interceptors can replace the elements of the array before proceeding
+     * and the next interceptors and the service get the replaced values.
+     * 
+     * @return The arguments of the call or null if the method has no parameters.
+     */
+    Object[] getArguments();
+
+    /**
+     * Getting the method that was called on the proxy object.
+     * 
+     * @return The method.
+     */
+    Method getMethod();
+
+    /**
+     * Getting the reference whose proxy object was called.
+     * 
+     * @return The reference.
+     */
+    Reference getReference();
+
+    /**
+     * Passing the call to the next interceptor or, if this is the last interceptor, to the service. The function can
+     * be called more times (e.g. to repeat a failed call) and every time it calls the rest of the chain.
+     * 
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the next interceptor or the service throws anything or no service is available.
+     */
+    Object proceed() throws Throwable;
+}
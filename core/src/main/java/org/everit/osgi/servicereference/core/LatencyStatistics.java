@@ -0,0 +1,122 @@
+package org.everit.osgi.servicereference.core;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * Snapshot of the distribution of latencies. All of the values are in nanoseconds. The percentiles have a relative
+ * error of at most 12.5%.
+ */
+public class LatencyStatistics {
+
+    /**
+     * The number of recorded latencies.
+     */
+    private final long count;
+
+    /**
+     * The average of the recorded latencies.
+     */
+    private final double mean;
+
+    /**
+     * The highest recorded latency.
+     */
+    private final long max;
+
+    /**
+     * The median of the recorded latencies.
+     */
+    private final long percentile50;
+
+    /**
+     * The 90th percentile of the recorded latencies.
+     */
+    private final long percentile90;
+
+    /**
+     * The 99th percentile of the recorded latencies.
+     */
+    private final long percentile99;
+
+    /**
+     * The 99.9th percentile of the recorded latencies.
+     */
+    private final long percentile999;
+
+    /**
+     * Simple constructor that sets the fields.
+     * 
+     * @param count
+     *            Value of {@link #count}.
+     * @param mean
+     *            Value of {@link #mean}.
+     * @param max
+     *            Value of {@link #max}.
+     * @param percentile50
+     *            Value of {@link #percentile50}.
+     * @param percentile90
+     *            Value of {@link #percentile90}.
+     * @param percentile99
+     *            Value of {@link #percentile99}.
+     * @param percentile999
+     *            Value of {@link #percentile999}.
+     */
+    public LatencyStatistics(final long count, final double mean, final long max, final long percentile50,
+            final long percentile90, final long percentile99, final long percentile999) {
+        this.count = count;
+        this.mean = mean;
+        this.max = max;
+        this.percentile50 = percentile50;
+        this.percentile90 = percentile90;
+        this.percentile99 = percentile99;
+        this.percentile999 = percentile999;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getPercentile50() {
+        return percentile50;
+    }
+
+    public long getPercentile90() {
+        return percentile90;
+    }
+
+    public long getPercentile99() {
+        return percentile99;
+    }
+
+    public long getPercentile999() {
+        return percentile999;
+    }
+}
@@ -0,0 +1,185 @@
+package org.everit.osgi.servicereference.core;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * Snapshot of the statistics of the calls of one method of the proxy object of a {@link Reference}.
+ */
+public class MethodStatistics {
+
+    /**
+     * The number of calls on the proxy object.
+     */
+    private final long callCount;
+
+    /**
+     * The number of calls that had to wait for a service.
+     */
+    private final long waitCount;
+
+    /**
+     * The number of calls where no service was available even after the timeout.
+     */
+    private final long timeoutCount;
+
+    /**
+     * The number of calls that failed immediately without waiting as the circuit breaker of the reference was open.
+     */
+    private final long failFastCount;
+
+    /**
+     * The number of calls that did not wait for the service on their own but got the result of an equal call as the
+     * method is coalesced.
+     */
+    private final long coalescedCount;
+
+    /**
+     * The number of calls whose result was found in the result cache of the method.
+     */
+    private final long cacheHitCount;
+
+    /**
+     * The number of calls that were rejected as the concurrency limit of the reference or the method was reached.
+     */
+    private final long rejectedCount;
+
+    /**
+     * The number of calls that were repeated on an other service as the call of the first service failed.
+     */
+    private final long failoverCount;
+
+    /**
+     * The number of calls where a duplicate call was sent to an other service as the first service was slow.
+     */
+    private final long hedgedCount;
+
+    /**
+     * The number of timed out, failed fast or rejected calls that were passed to the
+     * {@link ServiceUnavailableHandler} of the reference.
+     */
+    private final long serviceUnavailableHandlerCount;
+
+    /**
+     * The time the calls waited for a service. Only the calls that had to wait are recorded.
+     */
+    private final LatencyStatistics waitTime;
+
+    /**
+     * The time the service objects needed to execute the calls.
+     */
+    private final LatencyStatistics serviceTime;
+
+    /**
+     * Simple constructor that sets the fields.
+     * 
+     * @param callCount
+     *            Value of {@link #callCount}.
+     * @param waitCount
+     *            Value of {@link #waitCount}.
+     * @param timeoutCount
+     *            Value of {@link #timeoutCount}.
+     * @param failFastCount
+     *            Value of {@link #failFastCount}.
+     * @param coalescedCount
+     *            Value of {@link #coalescedCount}.
+     * @param cacheHitCount
+     *            Value of {@link #cacheHitCount}.
+     * @param rejectedCount
+     *            Value of {@link #rejectedCount}.
+     * @param failoverCount
+     *            Value of {@link #failoverCount}.
+     * @param hedgedCount
+     *            Value of {@link #hedgedCount}.
+     * @param serviceUnavailableHandlerCount
+     *            Value of {@link #serviceUnavailableHandlerCount}.
+     * @param waitTime
+     *            Value of {@link #waitTime}.
+     * @param serviceTime
+     *            Value of {@link #serviceTime}.
+     */
+    public MethodStatistics(final long callCount, final long waitCount, final long timeoutCount,
+            final long failFastCount, final long coalescedCount, final long cacheHitCount, final long rejectedCount,
+            final long failoverCount, final long hedgedCount, final long serviceUnavailableHandlerCount,
+            final LatencyStatistics waitTime, final LatencyStatistics serviceTime) {
+        this.callCount = callCount;
+        this.waitCount = waitCount;
+        this.timeoutCount = timeoutCount;
+        this.failFastCount = failFastCount;
+        this.coalescedCount = coalescedCount;
+        this.cacheHitCount = cacheHitCount;
+        this.rejectedCount = rejectedCount;
+        this.failoverCount = failoverCount;
+        this.hedgedCount = hedgedCount;
+        this.serviceUnavailableHandlerCount = serviceUnavailableHandlerCount;
+        this.waitTime = waitTime;
+        this.serviceTime = serviceTime;
+    }
+
+    public long getCacheHitCount() {
+        return cacheHitCount;
+    }
+
+    public long getCallCount() {
+        return callCount;
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    public long getFailFastCount() {
+        return failFastCount;
+    }
+
+    public long getFailoverCount() {
+        return failoverCount;
+    }
+
+    public long getHedgedCount() {
+        return hedgedCount;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public long getServiceUnavailableHandlerCount() {
+        return serviceUnavailableHandlerCount;
+    }
+
+    public LatencyStatistics getServiceTime() {
+        return serviceTime;
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    public long getWaitCount() {
+        return waitCount;
+    }
+
+    public LatencyStatistics getWaitTime() {
+        return waitTime;
+    }
+}
@@ -0,0 +1,78 @@
+package org.everit.osgi.servicereference.core;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by a {@link ReferenceGroup} when less references have a service than required until the timeout. The filters
+ * of all of the missing references are listed in the message and in the {@link #getServiceFilter()} of the exception.
+ */
+public class MissingServicesException extends ServiceUnavailableException {
+
+    /**
+     * Generated seriable version.
+     */
+    private static final long serialVersionUID = -6120745513416957326L;
+
+    private static String createFilterList(final List<Reference> references) {
+        StringBuilder sb = new StringBuilder();
+        for (Reference reference : references) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(reference.getFilter().toString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The references that did not have a service until the timeout.
+     */
+    private final transient List<Reference> missingReferences;
+
+    /**
+     * Simple constructor.
+     * 
+     * @param missingReferences
+     *            The references that did not have a service until the timeout.
+     * @param timeout
+     *            The timeout until the group waited for the services.
+     */
+    public MissingServicesException(final List<Reference> missingReferences, final long timeout) {
+        super(missingReferences.size() + " of the services were not available even after " + timeout + " ms: "
+                + createFilterList(missingReferences), createFilterList(missingReferences), null, timeout);
+        this.missingReferences = Collections.unmodifiableList(new ArrayList<Reference>(missingReferences));
+    }
+
+    /**
+     * Getter of the {@link #missingReferences}.
+     * 
+     * @return The unmodifiable list of the references that did not have a service until the timeout or null if the
+     *         exception was deserialized.
+     */
+    public List<Reference> getMissingReferences() {
+        return missingReferences;
+    }
+}
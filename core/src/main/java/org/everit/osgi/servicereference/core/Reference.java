@@ -21,10 +21,25 @@ package org.everit.osgi.servicereference.core;
  * MA 02110-1301  USA
  */
 
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
+import org.everit.osgi.servicereference.core.internal.CircuitBreaker;
+import org.everit.osgi.servicereference.core.internal.HedgingPolicy;
+import org.everit.osgi.servicereference.core.internal.IdleServiceReleaser;
+import org.everit.osgi.servicereference.core.internal.MethodHandleCache;
 import org.everit.osgi.servicereference.core.internal.ReferenceInvocationHandler;
 import org.everit.osgi.servicereference.core.internal.ReferenceTrackerCustomizer;
+import org.everit.osgi.servicereference.core.internal.ResultCache;
+import org.everit.osgi.servicereference.core.internal.ResultCaches;
+import org.everit.osgi.servicereference.core.internal.TrackedReference;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Filter;
@@ -38,6 +53,17 @@ import org.osgi.util.tracker.ServiceTracker;
  */
 public class Reference {
 
+    /**
+     * Selects the methods that are annotated with {@link Idempotent}.
+     */
+    private static final Predicate<Method> IDEMPOTENT_METHODS = new Predicate<Method>() {
+
+        @Override
+        public boolean test(final Method method) {
+            return method.isAnnotationPresent(Idempotent.class);
+        }
+    };
+
     /**
      * The proxied service object. In case there is no real service it will wait for a timeout.
      */
@@ -51,7 +77,18 @@ public class Reference {
     /**
      * The filter that is used to track services in this reference.
      */
-    private Filter filter;
+    private volatile Filter filter;
+
+    /**
+     * The context of the bundle that needs the reference.
+     */
+    private final BundleContext context;
+
+    /**
+     * Lock that serializes opening, closing and changing the filter of a reference that has an own
+     * {@link #serviceTracker}.
+     */
+    private final ReentrantLock trackerLock = new ReentrantLock();
 
     /**
      * The invocation handler that catches method calls coming to the proxy object.
@@ -64,9 +101,30 @@ public class Reference {
     private final ReferenceTrackerCustomizer serviceTrackerCustomizer;
 
     /**
-     * Tracks the available services that can be used by the {@link #proxyInstance}.
+     * The caches of the results of the methods of the {@link #proxyInstance}.
      */
-    private ServiceTracker<Object, Object> serviceTracker;
+    private final ResultCaches resultCaches = new ResultCaches();
+
+    /**
+     * Tracks the available services that can be used by the {@link #proxyInstance}. Null if the reference was created
+     * by a {@link ReferenceRegistry}.
+     */
+    private volatile ServiceTracker<Object, Object> serviceTracker;
+
+    /**
+     * The registry that created this reference or null if the reference has an own {@link #serviceTracker}.
+     */
+    private final ReferenceRegistry registry;
+
+    /**
+     * The state of tracking the services if the reference was created by a {@link ReferenceRegistry}, otherwise null.
+     */
+    private volatile TrackedReference trackedReference;
+
+    /**
+     * The interceptors of the calls on the {@link #proxyInstance} in the order of the calls.
+     */
+    private final List<CallInterceptor> interceptors = new CopyOnWriteArrayList<CallInterceptor>();
 
     /**
      * A constructor that initializes the object and creates the necessary {@link ServiceTracker}. The {@link #open()}
@@ -83,6 +141,26 @@ public class Reference {
      */
     public Reference(final BundleContext context, final Class<?>[] interfaces, final Filter filter,
             final long timeout) {
+        this(null, context, interfaces, filter, timeout);
+    }
+
+    /**
+     * Constructor of the references that get the service events from a {@link ReferenceRegistry}.
+     * 
+     * @param registry
+     *            The registry that creates the reference or null if the reference should have an own
+     *            {@link ServiceTracker}.
+     * @param context
+     *            The context of the bundle that needs the reference.
+     * @param interfaces
+     *            The interfaces that the {@link #proxyInstance} should be able to be casted.
+     * @param filter
+     *            The filter expression that the available services will be checked against.
+     * @param timeout
+     *            The timeout until the functions calls on {@link #proxyInstance} will wait if no service is available.
+     */
+    Reference(final ReferenceRegistry registry, final BundleContext context, final Class<?>[] interfaces,
+            final Filter filter, final long timeout) {
         if (filter == null) {
             throw new IllegalArgumentException("The filter parameter cannot be null");
         }
@@ -90,11 +168,21 @@ public class Reference {
             throw new IllegalArgumentException("The number of required interfaces must be at least one.");
         }
         this.filter = filter;
-        serviceTrackerCustomizer = new ReferenceTrackerCustomizer(context, interfaces);
+        this.context = context;
+        MethodHandleCache methodHandleCache = new MethodHandleCache();
+        serviceTrackerCustomizer =
+                new ReferenceTrackerCustomizer(context, interfaces, methodHandleCache, resultCaches, timeout);
 
-        serviceTracker = new ServiceTracker<Object, Object>(context, filter, serviceTrackerCustomizer);
+        this.registry = registry;
+        if (registry == null) {
+            serviceTracker = new ServiceTracker<Object, Object>(context, filter, serviceTrackerCustomizer);
+            trackedReference = null;
+        } else {
+            trackedReference = new TrackedReference(filter, serviceTrackerCustomizer);
+        }
         referenceInvocationHandler =
-                new ReferenceInvocationHandler(this, serviceTracker, filter.toString(), timeout);
+                new ReferenceInvocationHandler(this, serviceTrackerCustomizer, filter.toString(), timeout,
+                        methodHandleCache, resultCaches);
 
         Bundle blueprintBundle = context.getBundle();
         ClassLoader classLoader = blueprintBundle.adapt(BundleWiring.class).getClassLoader();
@@ -105,18 +193,272 @@ public class Reference {
     }
 
     /**
-     * Releases the inner {@link ServiceTracker} that is used to track available services.
+     * Adding an interceptor to the end of the chain of the interceptors that are called around every call on the proxy
+     * object. The interceptors are compiled into the call path when the reference is opened, so a reference without
+     * interceptors calls the services the same way as if interceptors were not supported at all.
+     * 
+     * @param interceptor
+     *            The interceptor.
+     * @throws IllegalArgumentException
+     *             if the interceptor is null.
+     * @throws IllegalStateException
+     *             if the reference is opened.
+     */
+    public void addInterceptor(final CallInterceptor interceptor) {
+        if (interceptor == null) {
+            throw new IllegalArgumentException("The interceptor parameter cannot be null");
+        }
+        if (opened) {
+            throw new IllegalStateException("Interceptors can be added only to a stopped reference");
+        }
+        interceptors.add(interceptor);
+    }
+
+    /**
+     * Passing the interceptors to the invocation handler as an array. If there are no interceptors, the handler gets
+     * null so the calls are not passed through an empty chain.
+     */
+    private void compileInterceptors() {
+        referenceInvocationHandler.setInterceptors(interceptors.isEmpty() ? null
+                : interceptors.toArray(new CallInterceptor[interceptors.size()]));
+    }
+
+    /**
+     * Disabling the coalescing of the calls.
+     */
+    public void disableCallCoalescing() {
+        referenceInvocationHandler.setCallCoalescingPredicate(null);
+    }
+
+    /**
+     * Disabling the circuit breaker. The calls wait for the service until the timeout again.
+     */
+    public void disableCircuitBreaker() {
+        serviceTrackerCustomizer.setCircuitBreaker(null);
+    }
+
+    /**
+     * Disabling the failover of the calls.
+     */
+    public void disableFailover() {
+        referenceInvocationHandler.setFailoverPredicate(null);
+    }
+
+    /**
+     * Disabling the hedging of the calls.
+     */
+    public void disableHedging() {
+        referenceInvocationHandler.setHedgingPolicy(null);
+    }
+
+    /**
+     * Releases the inner {@link ServiceTracker} that is used to track available services. If the reference was created
+     * by a {@link ReferenceRegistry} it stops getting the service events from the registry. The calls of the
+     * {@link AsyncReference}s and the futures of the {@link ReferenceGroup}s that wait for the service of this
+     * reference are completed exceptionally with a {@link ReferenceClosedException}.
      */
     public void close() {
-        opened = false;
-        serviceTracker.close();
-        serviceTrackerCustomizer.reset();
+        if (registry != null) {
+            registry.close(Collections.singletonList(this));
+            return;
+        }
+        trackerLock.lock();
+        try {
+            opened = false;
+            serviceTracker.close();
+            serviceTrackerCustomizer.reset();
+        } finally {
+            trackerLock.unlock();
+        }
+    }
+
+    /**
+     * Enabling the coalescing of the calls of the methods that are annotated with {@link Idempotent}. See
+     * {@link #enableCallCoalescing(Predicate)}.
+     */
+    public void enableCallCoalescing() {
+        enableCallCoalescing(IDEMPOTENT_METHODS);
+    }
+
+    /**
+     * Enabling the coalescing of the calls of idempotent methods. If no service is available, the calls of a coalesced
+     * method with equal arguments (see {@link java.util.Arrays#deepEquals(Object[], Object[])}) wait together: the
+     * first call waits for the service and calls it and all the others get the same result or the same exception
+     * object. This way a service that becomes available is not called with the same request by all of the waiting
+     * callers. The calls are not coalesced when the service is available.
+     * 
+     * @param coalescedMethods
+     *            Decides which methods of the proxy object are coalesced. It must return true only for methods that
+     *            can be called more times with the same arguments without any side effect.
+     * @throws IllegalArgumentException
+     *             if the predicate is null.
+     */
+    public void enableCallCoalescing(final Predicate<Method> coalescedMethods) {
+        if (coalescedMethods == null) {
+            throw new IllegalArgumentException("The coalescedMethods parameter cannot be null");
+        }
+        referenceInvocationHandler.setCallCoalescingPredicate(coalescedMethods);
+    }
+
+    /**
+     * Disabling the result cache of a method.
+     * 
+     * @param method
+     *            The method of the proxy object.
+     */
+    public void disableResultCache(final Method method) {
+        resultCaches.remove(method);
+    }
+
+    /**
+     * Enabling the circuit breaker of this reference. If the calls on the proxy object time out the specified number of
+     * times in a row, the circuit opens: the following calls do not wait for the service but fail immediately with a
+     * {@link CircuitOpenException} or call the {@link ServiceUnavailableHandler} of the reference. While the circuit is
+     * open, one call in every retry interval waits for the service as a probe. The circuit is closed as soon as a
+     * service is available. Enabling the circuit breaker again replaces the previous one with a closed circuit.
+     * 
+     * @param failureThreshold
+     *            The number of consecutive timeouts that open the circuit.
+     * @param retryInterval
+     *            The time in milliseconds between two probes while the circuit is open.
+     * @throws IllegalArgumentException
+     *             if the threshold is not positive or the interval is negative.
+     */
+    public void enableCircuitBreaker(final int failureThreshold, final long retryInterval) {
+        serviceTrackerCustomizer.setCircuitBreaker(new CircuitBreaker(failureThreshold, retryInterval));
+    }
+
+    /**
+     * Enabling the failover of the calls of the methods that are annotated with {@link Idempotent}. See
+     * {@link #enableFailover(Predicate)}.
+     */
+    public void enableFailover() {
+        enableFailover(IDEMPOTENT_METHODS);
+    }
+
+    /**
+     * Enabling the failover of the calls of idempotent methods. If more services are tracked and the called service
+     * throws an exception, the call is repeated once on the best ranked other service and its result or exception is
+     * passed to the caller.
+     * 
+     * @param failoverMethods
+     *            Decides which methods of the proxy object are repeated. It must return true only for methods that can
+     *            be called more times with the same arguments without any side effect.
+     * @throws IllegalArgumentException
+     *             if the predicate is null.
+     */
+    public void enableFailover(final Predicate<Method> failoverMethods) {
+        if (failoverMethods == null) {
+            throw new IllegalArgumentException("The failoverMethods parameter cannot be null");
+        }
+        referenceInvocationHandler.setFailoverPredicate(failoverMethods);
+    }
+
+    /**
+     * Enabling the hedging of the calls of read-only methods to cut the tail latency. The service calls of a hedged
+     * method run on the executor while the caller waits. If the call does not finish within the specified percentile
+     * of the latencies of the method (but at least the minimum delay) or it fails, the same call is sent to the best
+     * ranked other service and the result of the call that finishes first successfully is returned. If both calls
+     * fail the exception of the first call is thrown. Until enough latencies are recorded, the minimum delay is used.
+     * Hedging takes precedence over failover if both are enabled for a method.<br>
+     * <br>
+     * As every call of a hedged method runs on a thread of the executor, the context of the calling thread is not
+     * available for the service: the thread context classloader, the security and transaction context and any thread
+     * local that a {@link CallInterceptor} sets up around the call.
+     * 
+     * @param hedgedMethods
+     *            Decides which methods of the proxy object are hedged. It must return true only for methods that can
+     *            be called more times with the same arguments without any side effect.
+     * @param percentile
+     *            The percentile of the latencies of the method that a call waits before it is hedged, e.g. 0.95.
+     * @param minimumDelay
+     *            The minimum time in milliseconds a call waits before it is hedged.
+     * @param executor
+     *            The executor that runs the service calls of the hedged methods. As the service calls may block, the
+     *            executor should not have fewer threads than the expected number of concurrent calls.
+     * @throws IllegalArgumentException
+     *             if the predicate or the executor is null, the percentile is not between 0 and 1 or the minimum delay
+     *             is negative.
+     */
+    public void enableHedging(final Predicate<Method> hedgedMethods, final double percentile,
+            final long minimumDelay, final Executor executor) {
+        referenceInvocationHandler.setHedgingPolicy(new HedgingPolicy(hedgedMethods, percentile, minimumDelay,
+                executor));
+    }
+
+    /**
+     * Enabling the caching of the results of a method of the proxy object. The results are cached by the arguments of
+     * the calls (see {@link java.util.Arrays#deepEquals(Object[], Object[])}). The arguments that are arrays are copied
+     * into the cache so the caller can reuse them, but the other arguments must not be modified after the call. The
+     * least recently used results are evicted when the cache is full. All of the cached results are dropped
+     * automatically when a service is added, modified or removed. Exceptions and results of the
+     * {@link ServiceUnavailableHandler} are not cached. Enabling the cache of a method again replaces the previous
+     * cache with an empty one.
+     * 
+     * @param method
+     *            The method of the proxy object. It must return the same result for the same arguments while the
+     *            tracked services do not change.
+     * @param maximumSize
+     *            The maximum number of results that are cached for the method.
+     * @param timeToLive
+     *            The time in milliseconds while a cached result is used or zero if the results do not expire.
+     * @throws IllegalArgumentException
+     *             if the method is null, the size is not positive or the time to live is negative.
+     */
+    public void enableResultCache(final Method method, final int maximumSize, final long timeToLive) {
+        if (method == null) {
+            throw new IllegalArgumentException("The method parameter cannot be null");
+        }
+        resultCaches.set(method, new ResultCache(maximumSize, timeToLive));
+    }
+
+    /**
+     * Registering a request that is completed with the service object when a service is available. Unlike
+     * {@link #requestService()}, the request does not expire at the timeout of the reference.
+     * 
+     * @param request
+     *            The request that is completed immediately if a service is already available.
+     */
+    void addServiceRequest(final CompletableFuture<Object> request) {
+        serviceTrackerCustomizer.addServiceRequest(request);
+    }
+
+    public DispatchStrategy getDispatchStrategy() {
+        return referenceInvocationHandler.getDispatchStrategy();
+    }
+
+    IdleServiceReleaser getIdleServiceReleaser() {
+        return serviceTrackerCustomizer.getIdleServiceReleaser();
     }
 
     public Filter getFilter() {
         return filter;
     }
 
+    /**
+     * Getting the interceptors of the calls on the proxy object.
+     * 
+     * @return The unmodifiable list of the interceptors in the order of the calls.
+     */
+    public List<CallInterceptor> getInterceptors() {
+        return Collections.unmodifiableList(interceptors);
+    }
+
+    ReferenceRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Getting the time after the service objects are released if the proxy object is not called.
+     * 
+     * @return The idle timeout in milliseconds or zero if the service objects are kept as long as the services are
+     *         tracked.
+     */
+    public long getIdleTimeout() {
+        IdleServiceReleaser idleServiceReleaser = serviceTrackerCustomizer.getIdleServiceReleaser();
+        return (idleServiceReleaser != null) ? idleServiceReleaser.getIdleTimeout() : 0;
+    }
+
     /**
      * Getter for the {@link #proxyInstance}.
      * 
@@ -130,22 +472,283 @@ public class Reference {
         return result;
     }
 
+    /**
+     * Getting a snapshot of the statistics of the calls on the proxy object. The statistics are collected only if they
+     * are enabled by {@link #setStatisticsEnabled(boolean)}. See {@link ReferenceStatisticsMXBean} to publish them via
+     * JMX.
+     * 
+     * @return The snapshot or null if collecting statistics is not enabled.
+     */
+    public ReferenceStatistics getStatistics() {
+        return referenceInvocationHandler.getStatistics();
+    }
+
+    public int getServicePoolSize() {
+        return serviceTrackerCustomizer.getServicePoolSize();
+    }
+
+    TrackedReference getTrackedReference() {
+        return trackedReference;
+    }
+
+    /**
+     * Checking whether the reference has a service without waiting for one.
+     * 
+     * @return True if a service is available.
+     */
+    boolean hasService() {
+        return serviceTrackerCustomizer.getService() != null;
+    }
+
+    /**
+     * Checking whether the circuit breaker of this reference is open.
+     * 
+     * @return True if the circuit breaker is enabled and the calls fail immediately, false otherwise.
+     */
+    public boolean isCircuitOpen() {
+        CircuitBreaker circuitBreaker = serviceTrackerCustomizer.getCircuitBreaker();
+        return (circuitBreaker != null) && circuitBreaker.isOpen();
+    }
+
+    /**
+     * Dropping the cached results of all of the methods.
+     */
+    public void invalidateResultCaches() {
+        resultCaches.invalidate();
+    }
+
+    public boolean isLazyServiceAcquisition() {
+        return serviceTrackerCustomizer.isLazyServiceAcquisition();
+    }
+
     public boolean isOpened() {
         return opened;
     }
 
+    public boolean isStatisticsEnabled() {
+        return referenceInvocationHandler.isStatisticsEnabled();
+    }
+
     /**
-     * Opens the inner {@link ServiceTracker} that is used to track the available services.
+     * Opens the inner {@link ServiceTracker} that is used to track the available services. If the reference was created
+     * by a {@link ReferenceRegistry} it starts getting the service events from the registry.
      */
     public void open() {
-        opened = true;
-        serviceTracker.open();
+        if (registry != null) {
+            registry.open(Collections.singletonList(this));
+            return;
+        }
+        trackerLock.lock();
+        try {
+            compileInterceptors();
+            opened = true;
+            serviceTracker.open();
+        } finally {
+            trackerLock.unlock();
+        }
+    }
+
+    /**
+     * Requesting the service object without blocking the caller. See {@link AsyncReference}.
+     * 
+     * @return A future that is completed with the service object when it is available or completed exceptionally with
+     *         a {@link ServiceUnavailableException} if no service was available until the timeout.
+     * @throws IllegalStateException
+     *             if the reference is not opened.
+     */
+    CompletableFuture<Object> requestService() {
+        return referenceInvocationHandler.requestService();
+    }
+
+    /**
+     * Removing an interceptor from the chain of the interceptors.
+     * 
+     * @param interceptor
+     *            The interceptor.
+     * @return True if the interceptor was in the chain.
+     * @throws IllegalStateException
+     *             if the reference is opened.
+     */
+    public boolean removeInterceptor(final CallInterceptor interceptor) {
+        if (opened) {
+            throw new IllegalStateException("Interceptors can be removed only from a stopped reference");
+        }
+        return interceptors.remove(interceptor);
+    }
+
+    void removeServiceRequest(final CompletableFuture<Object> request) {
+        serviceTrackerCustomizer.removeServiceRequest(request);
+    }
+
+    /**
+     * Limiting the number of concurrent calls on the services of this reference to protect them from overload. The
+     * calls above the limit wait in a bounded queue until the timeout of the reference. If the queue is full or no slot
+     * is freed until the timeout, the call is passed to the {@link ServiceUnavailableHandler} of the reference or a
+     * {@link ConcurrencyLimitExceededException} is thrown. Only the calls that reach a service are limited, the time
+     * spent waiting for an available service does not occupy a slot. Setting the limit again replaces the previous
+     * limiter.
+     *
+     * @param concurrencyLimit
+     *            The limit or null if the calls should not be limited.
+     */
+    public void setConcurrencyLimit(final ConcurrencyLimit concurrencyLimit) {
+        referenceInvocationHandler.setConcurrencyLimit(concurrencyLimit);
+    }
+
+    /**
+     * Limiting the number of concurrent calls of one method of the proxy object. The limit of the method is applied
+     * together with the limit of the reference (see {@link #setConcurrencyLimit(ConcurrencyLimit)}).
+     *
+     * @param method
+     *            The method of the proxy object.
+     * @param concurrencyLimit
+     *            The limit or null if the calls of the method should not be limited.
+     */
+    public void setConcurrencyLimit(final Method method, final ConcurrencyLimit concurrencyLimit) {
+        referenceInvocationHandler.setConcurrencyLimit(method, concurrencyLimit);
+    }
+
+    /**
+     * Setting the strategy that decides which service is called when more services are available. By default every
+     * call goes to the best ranked service ({@link DispatchStrategy#HIGHEST_RANKED}). The strategy can be changed even
+     * if the reference is opened.
+     * 
+     * @param dispatchStrategy
+     *            The strategy.
+     * @throws IllegalArgumentException
+     *             if the strategy is null.
+     */
+    public void setDispatchStrategy(final DispatchStrategy dispatchStrategy) {
+        referenceInvocationHandler.setDispatchStrategy(dispatchStrategy);
+    }
+
+    /**
+     * Changing the filter that the services are tracked with while the proxy object remains the same. If the reference
+     * is opened, the services that match the new filter are tracked before the services that match only the old
+     * filter are removed, so if a service matches the new filter, there is no moment when the proxy object does not
+     * have a service. The calls that start after this function returns use the services that match the new filter.
+     * The calls that are in progress finish on the service object that they were started with. The services that match
+     * both filters are not got again.
+     * 
+     * @param filter
+     *            The new filter.
+     * @throws IllegalArgumentException
+     *             if the filter is null.
+     */
+    public void setFilter(final Filter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("The filter parameter cannot be null");
+        }
+        if (registry != null) {
+            registry.replaceTrackedReference(this, new TrackedReference(filter, serviceTrackerCustomizer));
+            this.filter = filter;
+            referenceInvocationHandler.setFilter(filter.toString());
+            return;
+        }
+        trackerLock.lock();
+        try {
+            ServiceTracker<Object, Object> oldServiceTracker = serviceTracker;
+            serviceTracker = new ServiceTracker<Object, Object>(context, filter, serviceTrackerCustomizer);
+            if (opened) {
+                serviceTracker.open();
+            }
+            this.filter = filter;
+            referenceInvocationHandler.setFilter(filter.toString());
+            if (opened) {
+                oldServiceTracker.close();
+            }
+        } finally {
+            trackerLock.unlock();
+        }
+    }
+
+    /**
+     * Setting the time after the service objects are released if the proxy object is not called. Long-lived references
+     * keep the service objects as long as the services are tracked which keeps bundle scoped service objects and their
+     * memory alive. If the idle timeout is set, the service objects are released with
+     * {@link BundleContext#ungetService(org.osgi.framework.ServiceReference)} after the idle timeout (and at the
+     * latest after two times the idle timeout) of inactivity while the services remain tracked. The next call on the
+     * proxy object gets the service object again transparently. No service object is released while a call on the
+     * proxy object or a call of an {@link AsyncReference} or a {@link BatchingReference} is in progress.
+     * 
+     * @param idleTimeout
+     *            The idle timeout in milliseconds or zero if the service objects should be kept as long as the services
+     *            are tracked.
+     * @throws IllegalArgumentException
+     *             if the idle timeout is negative.
+     */
+    public void setIdleTimeout(final long idleTimeout) {
+        serviceTrackerCustomizer.setIdleTimeout(idleTimeout);
+    }
+
+    /**
+     * Setting whether the service objects are got from the framework only when they are needed for the first time.
+     * By default the service object is got as soon as the service is tracked which forces a
+     * {@link org.osgi.framework.ServiceFactory} or a heavy service to be created during {@link #open()} even if the
+     * proxy object is never called. In lazy mode the service object is got at the first call that needs it and it is
+     * published to all threads at once. Only the services that are registered with all of the required interfaces can
+     * be acquired lazily, the class of the other service objects has to be checked when they are tracked. The setting
+     * should be changed before the reference is opened as it affects only the services that are tracked after the call.
+     * If a {@link WarmUpListener} is set, the first service object is got when the service is tracked as the listener
+     * gets it, the rest of the services are acquired lazily.
+     * 
+     * @param lazy
+     *            True if the service objects should be acquired lazily.
+     */
+    public void setLazyServiceAcquisition(final boolean lazy) {
+        serviceTrackerCustomizer.setLazyServiceAcquisition(lazy);
+    }
+
+    void setOpened(final boolean opened) {
+        if (opened) {
+            compileInterceptors();
+        }
+        this.opened = opened;
+    }
+
+    /**
+     * Setting whether the instances of the prototype scoped services are pooled. A prototype scoped service (that is
+     * registered with a {@link org.osgi.framework.PrototypeServiceFactory}) is called by default via a single service
+     * object like the other services. If the pool size is set, the instances are got with
+     * {@link org.osgi.framework.ServiceObjects} and every call on the proxy object borrows an instance that is not
+     * used by any other call at the same time. At most the specified number of instances are created for a service and
+     * the threads tend to get the same instance so they do not compete for them. If all of the instances are used, the
+     * call waits for one until the timeout of the reference and then it is rejected with a
+     * {@link ConcurrencyLimitExceededException}. The instances are released when the service is removed or when they
+     * are idle for the idle timeout (see {@link #setIdleTimeout(long)}). The other services are not affected by the
+     * setting. Prototype scoped services are supported by OSGi R6 frameworks. The setting should be changed before the
+     * reference is opened as it affects only the services that are tracked after the call.
+     * 
+     * @param maxPoolSize
+     *            The maximum number of instances of a service or zero if the instances should not be pooled.
+     * @throws IllegalArgumentException
+     *             if the size of the pool is negative.
+     */
+    public void setServicePoolSize(final int maxPoolSize) {
+        serviceTrackerCustomizer.setServicePoolSize(maxPoolSize, referenceInvocationHandler.getTimeout());
     }
 
     public void setServiceUnavailableHander(final ServiceUnavailableHandler handler) {
         referenceInvocationHandler.setServiceNotAvailableHandler(handler);
     }
 
+    /**
+     * Enabling or disabling the collection of statistics about the calls on the proxy object: the number of calls, the
+     * time the calls waited for a service, the time the service calls took and the number of timeouts, all by method.
+     * The statistics are collected with striped counters so the overhead is low, however if they are not enabled, the
+     * proxy calls do not have any overhead at all. Disabling drops the statistics collected so far.
+     * 
+     * @param enabled
+     *            True if statistics should be collected.
+     */
+    public void setStatisticsEnabled(final boolean enabled) {
+        referenceInvocationHandler.setStatisticsEnabled(enabled);
+    }
+
+    void setTrackedReference(final TrackedReference trackedReference) {
+        this.trackedReference = trackedReference;
+    }
+
     /**
      * Setting the {@link WarmUpListener} of this reference. For more information please see the doc of that class.
      * 
@@ -162,13 +765,14 @@ public class Reference {
     }
 
     /**
-     * See {@link ServiceTracker#waitForService(long)}.
+     * Waiting until a service is available the same way as {@link ServiceTracker#waitForService(long)} does. All of the
+     * callers that wait for the service of this reference are woken up by a single signal when a service is added.
      * 
      * @param timeout
-     *            See the timeout parameter of {@link ServiceTracker#waitForService(long)}.
+     *            The time in milliseconds to wait for a service. Zero means waiting indefinitely.
      * @return True if service is available before timeout false otherwise.
      * @throws InterruptedException
-     *             See throws tag of {@link ServiceTracker#waitForService(long)}.
+     *             If the waiting thread is interrupted.
      * @throws IllegalStateException
      *             if the tracker is not opened.
      */
@@ -176,7 +780,7 @@ public class Reference {
         if (!opened) {
             throw new IllegalStateException("waitForService should be called only on an opened reference");
         }
-        Object service = serviceTracker.waitForService(timeout);
+        Object service = serviceTrackerCustomizer.waitForService(timeout);
         return service != null;
     }
 }
@@ -0,0 +1,48 @@
+package org.everit.osgi.servicereference.core;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+/**
+ * The failure of the calls of an {@link AsyncReference} and of the futures of a {@link ReferenceGroup} that were
+ * waiting for the service when the {@link Reference} was closed.
+ */
+public class ReferenceClosedException extends ServiceUnavailableException {
+
+    /**
+     * Generated seriable version.
+     */
+    private static final long serialVersionUID = -5930581642736028147L;
+
+    /**
+     * Simple constructor.
+     * 
+     * @param serviceFilter
+     *            The filter that the service tracking is based on.
+     * @param timeout
+     *            The timeout of the reference.
+     */
+    public ReferenceClosedException(final String serviceFilter, final long timeout) {
+        super("The reference of the service '" + serviceFilter + "' was closed while the service was requested.",
+                serviceFilter, null, timeout);
+    }
+}
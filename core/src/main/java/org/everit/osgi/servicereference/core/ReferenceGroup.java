@@ -0,0 +1,266 @@
+package org.everit.osgi.servicereference.core;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.osgi.servicereference.core.internal.HashedWheelTimer.Timeout;
+import org.everit.osgi.servicereference.core.internal.ReferenceScheduler;
+
+/**
+ * The references that a bundle needs to start. The references of the group are opened in parallel and the bundle can
+ * wait for all of their services (or for a quorum of them) with a single future instead of calling
+ * {@link Reference#waitForService(long)} on the references one after the other. If the services are not available
+ * until the timeout, the future is completed with a {@link MissingServicesException} that lists the references that
+ * are still missing a service.<br>
+ * <br>
+ * The references that were created by the same {@link ReferenceRegistry} are opened together so the registry queries
+ * the service registry only once for them.
+ */
+public class ReferenceGroup {
+
+    /**
+     * The references of the group.
+     */
+    private final List<Reference> references;
+
+    /**
+     * The executor that opens the references.
+     */
+    private final Executor executor;
+
+    /**
+     * Constructor that uses the {@link ForkJoinPool#commonPool()} to open the references.
+     * 
+     * @param references
+     *            Value of {@link #references}.
+     */
+    public ReferenceGroup(final Collection<Reference> references) {
+        this(references, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Simple constructor that sets the fields.
+     * 
+     * @param references
+     *            Value of {@link #references}.
+     * @param executor
+     *            Value of {@link #executor}.
+     */
+    public ReferenceGroup(final Collection<Reference> references, final Executor executor) {
+        if (references == null) {
+            throw new IllegalArgumentException("The references parameter cannot be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("The executor parameter cannot be null");
+        }
+        for (Reference reference : references) {
+            if (reference == null) {
+                throw new IllegalArgumentException("The references parameter cannot contain null");
+            }
+        }
+        this.references = Collections.unmodifiableList(new ArrayList<Reference>(references));
+        this.executor = executor;
+    }
+
+    /**
+     * Closing all of the references of the group.
+     */
+    public void close() {
+        for (Reference reference : references) {
+            reference.close();
+        }
+    }
+
+    /**
+     * Getting the references of the group that do not have a service at the moment.
+     * 
+     * @return The references without a service in the order of the group.
+     */
+    public List<Reference> getMissingReferences() {
+        List<Reference> result = new ArrayList<Reference>();
+        for (Reference reference : references) {
+            if (!reference.hasService()) {
+                result.add(reference);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Getting the references of the group.
+     * 
+     * @return The unmodifiable list of the references.
+     */
+    public List<Reference> getReferences() {
+        return references;
+    }
+
+    /**
+     * Opening the references of the group in parallel by the executor of the group. The function returns when all of
+     * the references are opened.
+     * 
+     * @throws RuntimeException
+     *             the first exception that was thrown while opening a reference. The rest of the references are
+     *             opened in that case as well.
+     */
+    public void open() {
+        Map<ReferenceRegistry, List<Reference>> referencesByRegistry =
+                new LinkedHashMap<ReferenceRegistry, List<Reference>>();
+        List<CompletableFuture<Void>> openings = new ArrayList<CompletableFuture<Void>>();
+        for (Reference reference : references) {
+            ReferenceRegistry registry = reference.getRegistry();
+            if (registry == null) {
+                openings.add(CompletableFuture.runAsync(reference::open, executor));
+            } else {
+                List<Reference> registryReferences = referencesByRegistry.get(registry);
+                if (registryReferences == null) {
+                    registryReferences = new ArrayList<Reference>();
+                    referencesByRegistry.put(registry, registryReferences);
+                }
+                registryReferences.add(reference);
+            }
+        }
+        for (Entry<ReferenceRegistry, List<Reference>> entry : referencesByRegistry.entrySet()) {
+            openings.add(CompletableFuture.runAsync(() -> entry.getKey().open(entry.getValue()), executor));
+        }
+        try {
+            CompletableFuture.allOf(openings.toArray(new CompletableFuture<?>[openings.size()])).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Getting a future that is completed when all of the references of the group have a service. See
+     * {@link #whenServicesAvailable(int, long)}.
+     * 
+     * @param timeout
+     *            The time in milliseconds to wait for the services. Zero means waiting indefinitely.
+     * @return The future.
+     */
+    public CompletableFuture<Void> whenServicesAvailable(final long timeout) {
+        return whenServicesAvailable(references.size(), timeout);
+    }
+
+    /**
+     * Getting a future that is completed when the given number of references of the group have a service. The
+     * references that get a service are counted until the quorum is reached, so a reference whose service is removed
+     * after it was counted is still counted. The waiting does not block any thread: the references notify the group
+     * when a service is added and the timeouts are handled by the shared scheduler thread of the references. The
+     * future is completed at the timeout on the executor of the group.
+     * 
+     * @param quorum
+     *            The number of references that should have a service.
+     * @param timeout
+     *            The time in milliseconds to wait for the services. Zero means waiting indefinitely.
+     * @return A future that is completed when the quorum is reached or completed exceptionally with a
+     *         {@link MissingServicesException} that lists the references that did not have a service until the
+     *         timeout or with a {@link ReferenceClosedException} if a reference is closed while its service is waited
+     *         for.
+     * @throws IllegalArgumentException
+     *             if the quorum is negative or greater than the number of references or the timeout is negative.
+     * @throws IllegalStateException
+     *             if any of the references is not opened.
+     */
+    public CompletableFuture<Void> whenServicesAvailable(final int quorum, final long timeout) {
+        if ((quorum < 0) || (quorum > references.size())) {
+            throw new IllegalArgumentException("The quorum must be between zero and the number of references");
+        }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout value is negative");
+        }
+        for (Reference reference : references) {
+            if (!reference.isOpened()) {
+                throw new IllegalStateException("The services can be waited for only if all references are opened");
+            }
+        }
+        final CompletableFuture<Void> result = new CompletableFuture<Void>();
+        if (quorum == 0) {
+            result.complete(null);
+            return result;
+        }
+        final AtomicInteger remaining = new AtomicInteger(quorum);
+        final List<CompletableFuture<Object>> requests = new ArrayList<CompletableFuture<Object>>(references.size());
+        for (int i = 0, n = references.size(); i < n; i++) {
+            requests.add(new CompletableFuture<Object>());
+        }
+        for (int i = 0, n = references.size(); i < n; i++) {
+            requests.get(i).whenComplete((service, failure) -> {
+                if (failure != null) {
+                    // The reference was closed while its service was waited for
+                    result.completeExceptionally(failure);
+                } else if (remaining.decrementAndGet() == 0) {
+                    result.complete(null);
+                }
+            });
+        }
+        if (timeout > 0) {
+            final Timeout expiration = ReferenceScheduler.schedule(() -> {
+                List<Reference> missingReferences = new ArrayList<Reference>();
+                for (int i = 0, n = references.size(); i < n; i++) {
+                    if (!requests.get(i).isDone()) {
+                        missingReferences.add(references.get(i));
+                    }
+                }
+                result.completeExceptionally(new MissingServicesException(missingReferences, timeout));
+            }, timeout, executor);
+            result.whenComplete((nothing, failure) -> expiration.cancel());
+        }
+        result.whenComplete((nothing, failure) -> {
+            for (int i = 0, n = references.size(); i < n; i++) {
+                CompletableFuture<Object> request = requests.get(i);
+                if (!request.isDone()) {
+                    references.get(i).removeServiceRequest(request);
+                }
+            }
+        });
+        for (int i = 0, n = references.size(); (i < n) && !result.isDone(); i++) {
+            Reference reference = references.get(i);
+            CompletableFuture<Object> request = requests.get(i);
+            reference.addServiceRequest(request);
+            // The result might have been completed since the loop checked it and the clean up missed the request.
+            if (result.isDone() && !request.isDone()) {
+                reference.removeServiceRequest(request);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,191 @@
+package org.everit.osgi.servicereference.core;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.everit.osgi.servicereference.core.internal.ServiceEventDispatcher;
+import org.everit.osgi.servicereference.core.internal.TrackedReference;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+
+/**
+ * Factory of {@link Reference}s that share one service listener instead of having an own
+ * {@link org.osgi.util.tracker.ServiceTracker} each. The service events are delivered only to the references whose
+ * filter requires the objectClass the service is registered with (references whose filter does not contain an
+ * (objectClass=...) item get every event), so a bundle can use hundreds of references without evaluating all of their
+ * filters on every service event. The references can be opened and closed one by one or all at once with
+ * {@link #openAll()} and {@link #closeAll()} that query the service registry only once.
+ */
+public class ReferenceRegistry {
+
+    /**
+     * The context of the bundle that needs the references.
+     */
+    private final BundleContext bundleContext;
+
+    /**
+     * The listener that delivers the service events to the opened references.
+     */
+    private final ServiceEventDispatcher serviceEventDispatcher;
+
+    /**
+     * The references that were created by this registry.
+     */
+    private final List<Reference> references = new CopyOnWriteArrayList<Reference>();
+
+    /**
+     * Lock that makes changing the opened state of the references atomic. The services are tracked outside of the
+     * lock.
+     */
+    private final ReentrantLock mutex = new ReentrantLock();
+
+    /**
+     * Simple constructor.
+     * 
+     * @param bundleContext
+     *            The context of the bundle that needs the references.
+     */
+    public ReferenceRegistry(final BundleContext bundleContext) {
+        if (bundleContext == null) {
+            throw new IllegalArgumentException("The bundleContext parameter cannot be null");
+        }
+        this.bundleContext = bundleContext;
+        serviceEventDispatcher = new ServiceEventDispatcher(bundleContext);
+    }
+
+    /**
+     * Closing references of this registry that are opened.
+     * 
+     * @param referencesToClose
+     *            The references.
+     */
+    void close(final Collection<Reference> referencesToClose) {
+        List<TrackedReference> trackedReferences = new ArrayList<TrackedReference>();
+        mutex.lock();
+        try {
+            for (Reference reference : referencesToClose) {
+                if (reference.isOpened()) {
+                    reference.setOpened(false);
+                    trackedReferences.add(reference.getTrackedReference());
+                }
+            }
+        } finally {
+            mutex.unlock();
+        }
+        serviceEventDispatcher.close(trackedReferences);
+    }
+
+    /**
+     * Closing all of the opened references of this registry.
+     */
+    public void closeAll() {
+        close(references);
+    }
+
+    /**
+     * Creating a reference that gets the service events via this registry. The parameters are the same as the
+     * parameters of {@link Reference#Reference(BundleContext, Class[], Filter, long)}.
+     * 
+     * @param interfaces
+     *            The interfaces that the proxy instance should be able to be casted.
+     * @param filter
+     *            The filter expression that the available services will be checked against.
+     * @param timeout
+     *            The timeout until the functions calls on the proxy instance will wait if no service is available.
+     * @return The reference that is not opened yet.
+     */
+    public Reference createReference(final Class<?>[] interfaces, final Filter filter, final long timeout) {
+        Reference reference = new Reference(this, bundleContext, interfaces, filter, timeout);
+        references.add(reference);
+        return reference;
+    }
+
+    /**
+     * Getting the references that were created by this registry.
+     * 
+     * @return The unmodifiable list of the references.
+     */
+    public List<Reference> getReferences() {
+        return Collections.unmodifiableList(references);
+    }
+
+    /**
+     * Opening references of this registry that are not opened yet.
+     * 
+     * @param referencesToOpen
+     *            The references.
+     */
+    void open(final Collection<Reference> referencesToOpen) {
+        List<TrackedReference> trackedReferences = new ArrayList<TrackedReference>();
+        mutex.lock();
+        try {
+            for (Reference reference : referencesToOpen) {
+                if (!reference.isOpened()) {
+                    reference.setOpened(true);
+                    trackedReferences.add(reference.getTrackedReference());
+                }
+            }
+        } finally {
+            mutex.unlock();
+        }
+        // The services are added outside of the lock as getting a service object can run any code.
+        serviceEventDispatcher.open(trackedReferences);
+    }
+
+    /**
+     * Opening all of the references of this registry that are not opened yet.
+     */
+    public void openAll() {
+        open(references);
+    }
+
+    /**
+     * Replacing the tracked reference of a reference when its filter is changed. If the reference is opened, the new
+     * tracked reference gets the service events before the old one stops getting them.
+     * 
+     * @param reference
+     *            The reference.
+     * @param trackedReference
+     *            The new tracked reference.
+     */
+    void replaceTrackedReference(final Reference reference, final TrackedReference trackedReference) {
+        TrackedReference oldTrackedReference;
+        boolean opened;
+        mutex.lock();
+        try {
+            oldTrackedReference = reference.getTrackedReference();
+            reference.setTrackedReference(trackedReference);
+            opened = reference.isOpened();
+        } finally {
+            mutex.unlock();
+        }
+        if (opened) {
+            serviceEventDispatcher.replace(oldTrackedReference, trackedReference);
+        }
+    }
+}
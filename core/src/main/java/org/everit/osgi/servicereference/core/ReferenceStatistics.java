@@ -0,0 +1,71 @@
+package org.everit.osgi.servicereference.core;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Snapshot of the statistics of the calls on the proxy object of a {@link Reference}. See
+ * {@link Reference#getStatistics()}.
+ */
+public class ReferenceStatistics {
+
+    /**
+     * The filter of the reference.
+     */
+    private final String filter;
+
+    /**
+     * The statistics of the called methods. The keys are the signatures of the methods.
+     */
+    private final Map<String, MethodStatistics> methodStatistics;
+
+    /**
+     * Simple constructor that sets the fields.
+     * 
+     * @param filter
+     *            Value of {@link #filter}.
+     * @param methodStatistics
+     *            Value of {@link #methodStatistics}.
+     */
+    public ReferenceStatistics(final String filter, final Map<String, MethodStatistics> methodStatistics) {
+        this.filter = filter;
+        this.methodStatistics = Collections.unmodifiableMap(new TreeMap<String, MethodStatistics>(methodStatistics));
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * Getter of {@link #methodStatistics}.
+     * 
+     * @return The statistics of the methods that were called at least once by their signature (e.g.
+     *         java.lang.Comparable.compareTo(java.lang.Object)).
+     */
+    public Map<String, MethodStatistics> getMethodStatistics() {
+        return methodStatistics;
+    }
+}
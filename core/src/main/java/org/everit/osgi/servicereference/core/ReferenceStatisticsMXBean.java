@@ -0,0 +1,60 @@
+package org.everit.osgi.servicereference.core;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Map;
+
+/**
+ * Management interface that publishes the statistics of a {@link Reference} via JMX. An instance can be created with
+ * {@link ReferenceStatisticsMXBeanImpl} and registered into an MBean server with any object name.
+ */
+public interface ReferenceStatisticsMXBean {
+
+    /**
+     * The filter of the reference.
+     * 
+     * @return The filter in string format.
+     */
+    String getFilter();
+
+    /**
+     * The statistics of the methods of the proxy object.
+     * 
+     * @return The statistics by method signature or an empty map if collecting statistics is not enabled.
+     */
+    Map<String, MethodStatistics> getMethodStatistics();
+
+    /**
+     * Whether the reference is opened.
+     * 
+     * @return True if the reference is opened.
+     */
+    boolean isOpened();
+
+    /**
+     * Whether the reference collects statistics.
+     * 
+     * @return True if collecting statistics is enabled.
+     */
+    boolean isStatisticsEnabled();
+}
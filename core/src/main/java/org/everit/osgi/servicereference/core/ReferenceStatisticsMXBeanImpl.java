@@ -0,0 +1,71 @@
+package org.everit.osgi.servicereference.core;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The implementation of {@link ReferenceStatisticsMXBean} that reads the statistics of a {@link Reference}.
+ */
+public class ReferenceStatisticsMXBeanImpl implements ReferenceStatisticsMXBean {
+
+    /**
+     * The reference whose statistics are published.
+     */
+    private final Reference reference;
+
+    /**
+     * Simple constructor that sets the fields.
+     * 
+     * @param reference
+     *            Value of {@link #reference}.
+     */
+    public ReferenceStatisticsMXBeanImpl(final Reference reference) {
+        this.reference = reference;
+    }
+
+    @Override
+    public String getFilter() {
+        return reference.getFilter().toString();
+    }
+
+    @Override
+    public Map<String, MethodStatistics> getMethodStatistics() {
+        ReferenceStatistics statistics = reference.getStatistics();
+        if (statistics == null) {
+            return Collections.emptyMap();
+        }
+        return statistics.getMethodStatistics();
+    }
+
+    @Override
+    public boolean isOpened() {
+        return reference.isOpened();
+    }
+
+    @Override
+    public boolean isStatisticsEnabled() {
+        return reference.isStatisticsEnabled();
+    }
+}
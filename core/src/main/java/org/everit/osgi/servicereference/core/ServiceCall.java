@@ -0,0 +1,45 @@
+package org.everit.osgi.servicereference.core;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * A call on a service object that is executed by an {@link AsyncReference} when the service is available.
+ * 
+ * @param <S>
+ *            The type of the service.
+ * @param <R>
+ *            The type of the result of the call.
+ */
+public interface ServiceCall<S, R> {
+
+    /**
+     * Calling the service.
+     * 
+     * @param service
+     *            The service object that is tracked by the reference.
+     * @return The result of the call.
+     * @throws Exception
+     *             if the service call fails. The exception will complete the future of the call.
+     */
+    R call(S service) throws Exception;
+}
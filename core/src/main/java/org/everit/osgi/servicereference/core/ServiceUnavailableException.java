@@ -53,7 +53,22 @@ public class ServiceUnavailableException extends RuntimeException {
     private long timeout;
 
     /**
-     * The only one constructor of this class.
+     * Constructor that is used when the service was requested without calling a method on the proxy object (e.g. by an
+     * {@link AsyncReference}).
+     * 
+     * @param serviceFilter
+     *            The filter that the service tracking is based on.
+     * @param timeout
+     *            The timeout until the request waited before failing with this exception.
+     */
+    public ServiceUnavailableException(final String serviceFilter, final long timeout) {
+        super("The service '" + serviceFilter + "' was not available even after " + timeout + " ms.");
+        this.serviceFilter = serviceFilter;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Constructor that is used when a method was called on the proxy object.
      * 
      * @param serviceFilter
      *            The filter that the service tracking is based on.
@@ -70,6 +85,32 @@ public class ServiceUnavailableException extends RuntimeException {
         this.timeout = timeout;
     }
 
+    /**
+     * Constructor for the subclasses that have their own message.
+     * 
+     * @param message
+     *            The message of the exception.
+     * @param serviceFilter
+     *            The filter that the service tracking is based on.
+     * @param method
+     *            The method that was called on the proxy object or null.
+     * @param timeout
+     *            The timeout of the reference.
+     */
+    protected ServiceUnavailableException(final String message, final String serviceFilter, final Method method,
+            final long timeout) {
+        super(message);
+        this.serviceFilter = serviceFilter;
+        this.method = method;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Getter of the {@link #method}.
+     * 
+     * @return The method that was called on the proxy object or null if the service was requested without a method
+     *         call.
+     */
     public Method getMethod() {
         return method;
     }
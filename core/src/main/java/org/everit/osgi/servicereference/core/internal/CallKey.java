@@ -0,0 +1,123 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Key of the calls that are coalesced or cached: the method and the arguments of the call. Two calls are equal if they
+ * call the same method with deeply equal arguments. The key refers to the arguments of the caller, so a key that
+ * outlives the call has to be copied (see {@link #copy()}). Only the arrays are copied, the other arguments must not be
+ * modified after the call as the hash code of the key is calculated only once.
+ */
+public final class CallKey {
+
+    /**
+     * The method that was called on the proxy.
+     */
+    private final Method method;
+
+    /**
+     * The arguments of the call or null if the method has no parameters.
+     */
+    private final Object[] args;
+
+    /**
+     * The hash code that is calculated only once as the key is used in a hash map.
+     */
+    private final int hashCode;
+
+    /**
+     * Simple constructor that sets the fields.
+     * 
+     * @param method
+     *            Value of {@link #method}.
+     * @param args
+     *            Value of {@link #args}.
+     */
+    public CallKey(final Method method, final Object[] args) {
+        this.method = method;
+        this.args = args;
+        hashCode = (31 * method.hashCode()) + Arrays.deepHashCode(args);
+    }
+
+    private CallKey(final Method method, final Object[] args, final int hashCode) {
+        this.method = method;
+        this.args = args;
+        this.hashCode = hashCode;
+    }
+
+    /**
+     * Copying an array and the arrays in it recursively.
+     * 
+     * @param array
+     *            The array of objects or primitives.
+     * @return The copy of the array.
+     */
+    private static Object copyArray(final Object array) {
+        if (!(array instanceof Object[])) {
+            int length = Array.getLength(array);
+            Object result = Array.newInstance(array.getClass().getComponentType(), length);
+            System.arraycopy(array, 0, result, 0, length);
+            return result;
+        }
+        Object[] result = ((Object[]) array).clone();
+        for (int i = 0; i < result.length; i++) {
+            if ((result[i] != null) && result[i].getClass().isArray()) {
+                result[i] = copyArray(result[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Getting a key that is equal to this one but does not share any array with the caller, so the caller can modify
+     * the arrays that it passed as arguments after the call.
+     * 
+     * @return The copy of the key.
+     */
+    public CallKey copy() {
+        if (args == null) {
+            return this;
+        }
+        return new CallKey(method, (Object[]) copyArray(args), hashCode);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CallKey)) {
+            return false;
+        }
+        CallKey other = (CallKey) obj;
+        return (hashCode == other.hashCode) && method.equals(other.method) && Arrays.deepEquals(args, other.args);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
@@ -0,0 +1,118 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker of a reference. After a number of consecutive timeouts the circuit opens and the calls fail
+ * immediately instead of waiting for a service. Once in every retry interval one call is let through to wait for the
+ * service as a probe. The circuit is closed as soon as a service is added to the reference.
+ */
+public class CircuitBreaker {
+
+    /**
+     * The number of consecutive timeouts that open the circuit.
+     */
+    private final int failureThreshold;
+
+    /**
+     * The time in nanoseconds between two probes while the circuit is open.
+     */
+    private final long retryIntervalNanos;
+
+    /**
+     * The number of timeouts since the last time a service was available.
+     */
+    private final AtomicInteger consecutiveTimeouts = new AtomicInteger();
+
+    /**
+     * True if the circuit is open.
+     */
+    private volatile boolean open = false;
+
+    /**
+     * The value of {@link System#nanoTime()} after that the next probe is allowed while the circuit is open.
+     */
+    private final AtomicLong nextProbeTime = new AtomicLong();
+
+    /**
+     * Simple constructor.
+     * 
+     * @param failureThreshold
+     *            The number of consecutive timeouts that open the circuit.
+     * @param retryInterval
+     *            The time in milliseconds between two probes while the circuit is open.
+     * @throws IllegalArgumentException
+     *             if the threshold is not positive or the interval is negative.
+     */
+    public CircuitBreaker(final int failureThreshold, final long retryInterval) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("The failure threshold must be at least one");
+        }
+        if (retryInterval < 0) {
+            throw new IllegalArgumentException("The retry interval cannot be negative");
+        }
+        this.failureThreshold = failureThreshold;
+        retryIntervalNanos = TimeUnit.MILLISECONDS.toNanos(retryInterval);
+    }
+
+    /**
+     * Checking whether a call may wait for a service. If the circuit is closed every call may wait. If the circuit is
+     * open only one call may wait in every retry interval.
+     * 
+     * @return True if the call may wait for the service, false if the call should fail immediately.
+     */
+    public boolean allowWaiting() {
+        if (!open) {
+            return true;
+        }
+        long probeTime = nextProbeTime.get();
+        long now = System.nanoTime();
+        return ((now - probeTime) >= 0) && nextProbeTime.compareAndSet(probeTime, now + retryIntervalNanos);
+    }
+
+    /**
+     * Closing the circuit as a service is available.
+     */
+    public void close() {
+        consecutiveTimeouts.set(0);
+        open = false;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Recording a timeout. If the number of consecutive timeouts reaches the threshold, the circuit opens and the next
+     * probe is allowed after the retry interval.
+     */
+    public void recordTimeout() {
+        if (consecutiveTimeouts.incrementAndGet() >= failureThreshold) {
+            nextProbeTime.set(System.nanoTime() + retryIntervalNanos);
+            open = true;
+        }
+    }
+}
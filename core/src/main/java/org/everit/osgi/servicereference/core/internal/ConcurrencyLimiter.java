@@ -0,0 +1,185 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.everit.osgi.servicereference.core.ConcurrencyLimit;
+
+/**
+ * Limits the number of concurrent calls according to a {@link ConcurrencyLimit}. The waiting calls are parked on a
+ * {@link Condition} so waiting virtual threads do not pin their carrier threads.
+ */
+public class ConcurrencyLimiter {
+
+    /**
+     * The ratio the adaptive limit is multiplied with if a call is slower than the threshold.
+     */
+    private static final double BACKOFF_RATIO = 0.9;
+
+    /**
+     * The configuration of the limiter.
+     */
+    private final ConcurrencyLimit concurrencyLimit;
+
+    /**
+     * The latency threshold in nanoseconds.
+     */
+    private final long latencyThresholdNanos;
+
+    /**
+     * Lock that protects the state of the limiter.
+     */
+    private final ReentrantLock mutex = new ReentrantLock();
+
+    /**
+     * The condition that the calls waiting for a free slot are parked on.
+     */
+    private final Condition slotAvailable = mutex.newCondition();
+
+    /**
+     * The current limit of the concurrent calls.
+     */
+    private int limit;
+
+    /**
+     * The number of calls that are running.
+     */
+    private int inFlightCount = 0;
+
+    /**
+     * The number of calls that wait for a free slot.
+     */
+    private int queueLength = 0;
+
+    /**
+     * The number of calls that finished within the latency threshold since the limit was changed.
+     */
+    private int successCount = 0;
+
+    /**
+     * Simple constructor.
+     * 
+     * @param concurrencyLimit
+     *            The configuration of the limiter.
+     */
+    public ConcurrencyLimiter(final ConcurrencyLimit concurrencyLimit) {
+        this.concurrencyLimit = concurrencyLimit;
+        latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(concurrencyLimit.getLatencyThreshold());
+        limit = concurrencyLimit.getInitialLimit();
+    }
+
+    /**
+     * Acquiring a slot for a call. If there is no free slot, the call waits in the queue.
+     * 
+     * @param timeout
+     *            The maximum time in milliseconds to wait for a free slot. Zero means waiting indefinitely.
+     * @return True if the call can start, false if the queue is full or no slot was free until the timeout.
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting.
+     */
+    public boolean acquire(final long timeout) throws InterruptedException {
+        mutex.lock();
+        try {
+            if ((queueLength == 0) && (inFlightCount < limit)) {
+                inFlightCount++;
+                return true;
+            }
+            if (queueLength >= concurrencyLimit.getMaxQueueSize()) {
+                return false;
+            }
+            queueLength++;
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (inFlightCount >= limit) {
+                    if (timeout == 0) {
+                        slotAvailable.await();
+                    } else if (remaining > 0) {
+                        remaining = slotAvailable.awaitNanos(remaining);
+                    } else {
+                        return false;
+                    }
+                }
+                inFlightCount++;
+                return true;
+            } finally {
+                queueLength--;
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    private void adaptLimit(final long latencyNanos, final boolean limitUsed) {
+        if (latencyNanos > latencyThresholdNanos) {
+            limit = Math.max(concurrencyLimit.getMinLimit(), Math.min(limit - 1, (int) (limit * BACKOFF_RATIO)));
+            successCount = 0;
+        } else if (limitUsed && (limit < concurrencyLimit.getMaxLimit())) {
+            successCount++;
+            if (successCount >= limit) {
+                limit++;
+                successCount = 0;
+            }
+        }
+    }
+
+    public int getInFlightCount() {
+        mutex.lock();
+        try {
+            return inFlightCount;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    public int getLimit() {
+        mutex.lock();
+        try {
+            return limit;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Releasing the slot of a finished call and adapting the limit if it is adaptive.
+     * 
+     * @param latencyNanos
+     *            The duration of the call or a negative value if the call did not reach the service.
+     */
+    public void release(final long latencyNanos) {
+        mutex.lock();
+        try {
+            if (concurrencyLimit.isAdaptive() && (latencyNanos >= 0)) {
+                adaptLimit(latencyNanos, (inFlightCount * 2) >= limit);
+            }
+            inFlightCount--;
+            for (int i = 0, n = Math.min(limit - inFlightCount, queueLength); i < n; i++) {
+                slotAvailable.signal();
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+}
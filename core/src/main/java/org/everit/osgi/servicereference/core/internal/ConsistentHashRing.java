@@ -0,0 +1,136 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Arrays;
+
+import org.osgi.framework.Constants;
+
+/**
+ * Consistent hash ring of the tracked services that assigns a key to the same service as long as the service is
+ * tracked. Every service has {@link #POINTS_PER_SERVICE} points on the ring that are derived from its service id, so
+ * the points of a service do not depend on the other services: when a service is added, it takes over only the keys
+ * of its own points and when a service is removed, only its keys are moved to the next points of the ring. The ring is
+ * never modified, a new ring is built when the tracked services change.
+ */
+public final class ConsistentHashRing {
+
+    /**
+     * The number of points of a service on the ring. More points spread the keys more evenly over the services.
+     */
+    static final int POINTS_PER_SERVICE = 64;
+
+    /**
+     * Mixing the bits of a value so close values (e.g. thread ids or consecutive service ids) are spread over the
+     * whole ring. This is the finalizer of MurmurHash3.
+     * 
+     * @param value
+     *            The value.
+     * @return The mixed value.
+     */
+    public static int mix(final long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * The services that the ring was built from.
+     */
+    private final TrackedService[] services;
+
+    /**
+     * The sorted points of the ring.
+     */
+    private final int[] points;
+
+    /**
+     * The services of the {@link #points} with the same index.
+     */
+    private final TrackedService[] pointServices;
+
+    /**
+     * Building the ring from the tracked services.
+     * 
+     * @param services
+     *            The tracked services.
+     */
+    public ConsistentHashRing(final TrackedService[] services) {
+        this.services = services;
+        int n = services.length * POINTS_PER_SERVICE;
+        long[] entries = new long[n];
+        for (int i = 0; i < services.length; i++) {
+            long serviceId = (Long) services[i].getReference().getProperty(Constants.SERVICE_ID);
+            for (int j = 0; j < POINTS_PER_SERVICE; j++) {
+                int point = mix((serviceId * POINTS_PER_SERVICE) + j);
+                // The point is stored in the upper half and the index of the service in the lower half so sorting the
+                // entries sorts the points and the services together.
+                entries[(i * POINTS_PER_SERVICE) + j] = ((long) point << 32) | i;
+            }
+        }
+        Arrays.sort(entries);
+        points = new int[n];
+        pointServices = new TrackedService[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = (int) (entries[i] >> 32);
+            pointServices[i] = services[(int) entries[i]];
+        }
+    }
+
+    /**
+     * Checking whether the ring was built from the given array of services.
+     * 
+     * @param trackedServices
+     *            The array of the tracked services.
+     * @return True if the ring was built from the same array instance.
+     */
+    public boolean isBuiltFrom(final TrackedService[] trackedServices) {
+        return services == trackedServices;
+    }
+
+    /**
+     * Selecting the service of a key: the service of the first point of the ring that is not less than the hash of the
+     * key, or the service of the first point if there is no such point.
+     * 
+     * @param hash
+     *            The hash of the key that is already mixed by {@link #mix(long)}.
+     * @return The selected service or null if the ring is empty.
+     */
+    public TrackedService select(final int hash) {
+        int n = points.length;
+        if (n == 0) {
+            return null;
+        }
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+            if (index == n) {
+                index = 0;
+            }
+        }
+        return pointServices[index];
+    }
+}
@@ -0,0 +1,325 @@
+package org.everit.osgi.servicereference.core.internal;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A timer that keeps the scheduled tasks in the buckets of a wheel where every bucket belongs to a tick. Scheduling and
+ * cancelling a task costs O(1) and does not need any lock so it is cheap even if there are thousands of pending tasks.
+ * The price is that tasks run at the first tick after their deadline so the precision of the timer is the tick
+ * duration.<br>
+ * <br>
+ * The worker thread of the timer is started when the first task is scheduled and it stops if there is nothing to do
+ * for a while.
+ */
+public class HashedWheelTimer {
+
+    /**
+     * A task that is scheduled on the timer.
+     */
+    public static final class Timeout {
+
+        /**
+         * The task that runs when the timeout expires.
+         */
+        private final Runnable task;
+
+        /**
+         * The deadline of the timeout in the time of {@link System#nanoTime()}.
+         */
+        private final long deadline;
+
+        /**
+         * The number of full rounds of the wheel that have to pass before the timeout expires. Accessed only by the
+         * worker thread.
+         */
+        private long remainingRounds;
+
+        /**
+         * True if the timeout was cancelled.
+         */
+        private volatile boolean cancelled = false;
+
+        Timeout(final Runnable task, final long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancelling the timeout so the task will not run. The timeout is removed from the wheel when the worker
+         * thread reaches its bucket.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * The worker that moves the wheel.
+     */
+    private final class Worker implements Runnable {
+
+        /**
+         * The timeouts that are on the wheel and are not expired or removed yet.
+         */
+        private int pendingTimeouts = 0;
+
+        private void expireTimeouts(final List<Timeout> bucket) {
+            int i = 0;
+            while (i < bucket.size()) {
+                Timeout timeout = bucket.get(i);
+                if (timeout.cancelled || (timeout.remainingRounds <= 0)) {
+                    int last = bucket.size() - 1;
+                    bucket.set(i, bucket.get(last));
+                    bucket.remove(last);
+                    pendingTimeouts--;
+                    if (!timeout.cancelled) {
+                        runTask(timeout);
+                    }
+                } else {
+                    timeout.remainingRounds--;
+                    i++;
+                }
+            }
+        }
+
+        /**
+         * Putting the timeouts that are still on the wheel back to the {@link #newTimeouts} queue so a new worker can
+         * take them over if this worker stops unexpectedly.
+         */
+        private void requeuePendingTimeouts() {
+            for (List<Timeout> bucket : wheel) {
+                newTimeouts.addAll(bucket);
+                bucket.clear();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean stopped = false;
+            try {
+                moveWheel();
+                stopped = true;
+            } finally {
+                if (!stopped) {
+                    requeuePendingTimeouts();
+                    workerRunning.set(false);
+                    startWorkerIfNecessary();
+                }
+            }
+        }
+
+        private void moveWheel() {
+            while (true) {
+                long startTime = System.nanoTime();
+                long tick = 0;
+                transferNewTimeouts(startTime, tick);
+                while (pendingTimeouts > 0) {
+                    waitUntil(startTime + ((tick + 1) * tickDuration));
+                    expireTimeouts(wheel[(int) (tick & mask)]);
+                    tick++;
+                    transferNewTimeouts(startTime, tick);
+                }
+
+                // The wheel is empty so the worker parks until a new timeout is scheduled or the idle time expires.
+                idle = true;
+                long idleDeadline = System.nanoTime() + idleTime;
+                long remaining = idleTime;
+                while (newTimeouts.isEmpty() && (remaining > 0)) {
+                    LockSupport.parkNanos(HashedWheelTimer.this, remaining);
+                    remaining = idleDeadline - System.nanoTime();
+                }
+                idle = false;
+                if (newTimeouts.isEmpty()) {
+                    workerRunning.set(false);
+                    // A timeout might have been scheduled after the check and before the flag was cleared.
+                    if (newTimeouts.isEmpty() || !workerRunning.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void runTask(final Timeout timeout) {
+            try {
+                timeout.task.run();
+            } catch (Throwable e) {
+                // The worker serves every timeout of the JVM so it must survive any failure of a task.
+                LOGGER.error("Error during running an expired task of " + threadName, e);
+            }
+        }
+
+        private void transferNewTimeouts(final long startTime, final long tick) {
+            Timeout timeout = newTimeouts.poll();
+            while (timeout != null) {
+                if (!timeout.cancelled) {
+                    long calculatedTick = (timeout.deadline - startTime) / tickDuration;
+                    timeout.remainingRounds = (calculatedTick - tick) / wheel.length;
+                    long ticks = Math.max(calculatedTick, tick);
+                    wheel[(int) (ticks & mask)].add(timeout);
+                    pendingTimeouts++;
+                }
+                timeout = newTimeouts.poll();
+            }
+        }
+
+        private void waitUntil(final long deadline) {
+            long remaining = deadline - System.nanoTime();
+            while (remaining > 0) {
+                LockSupport.parkNanos(HashedWheelTimer.this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Logger of this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    /**
+     * The buckets of the wheel. The size of the array is a power of two. Accessed only by the worker thread.
+     */
+    private final List<Timeout>[] wheel;
+
+    /**
+     * The mask that is used to calculate the index of the bucket from a tick.
+     */
+    private final long mask;
+
+    /**
+     * The duration of a tick in nanoseconds.
+     */
+    private final long tickDuration;
+
+    /**
+     * The time in nanoseconds without pending timeouts after the worker thread stops.
+     */
+    private final long idleTime;
+
+    /**
+     * The name of the worker thread.
+     */
+    private final String threadName;
+
+    /**
+     * The timeouts that are scheduled but not put on the wheel yet by the worker thread.
+     */
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * True if the worker thread is running.
+     */
+    private final AtomicBoolean workerRunning = new AtomicBoolean(false);
+
+    /**
+     * The worker thread or null if it has never been started.
+     */
+    private volatile Thread workerThread;
+
+    /**
+     * True if the worker thread is parked because there is no pending timeout.
+     */
+    private volatile boolean idle = false;
+
+    /**
+     * Constructor of the timer.
+     * 
+     * @param threadName
+     *            The name of the worker thread.
+     * @param tickDuration
+     *            The duration of a tick.
+     * @param wheelSize
+     *            The number of buckets of the wheel. It is rounded up to a power of two.
+     * @param idleTime
+     *            The time after the worker thread stops if there is no pending timeout.
+     * @param unit
+     *            The unit of the tickDuration and idleTime parameters.
+     */
+    public HashedWheelTimer(final String threadName, final long tickDuration, final int wheelSize,
+            final long idleTime, final TimeUnit unit) {
+        if ((tickDuration <= 0) || (wheelSize <= 0)) {
+            throw new IllegalArgumentException("Tick duration and wheel size must be positive");
+        }
+        this.threadName = threadName;
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.idleTime = unit.toNanos(idleTime);
+        int normalizedWheelSize = Integer.highestOneBit(wheelSize);
+        if (normalizedWheelSize < wheelSize) {
+            normalizedWheelSize <<= 1;
+        }
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        List<Timeout>[] buckets = new List[normalizedWheelSize];
+        for (int i = 0; i < normalizedWheelSize; i++) {
+            buckets[i] = new ArrayList<Timeout>();
+        }
+        wheel = buckets;
+        mask = normalizedWheelSize - 1;
+    }
+
+    /**
+     * Scheduling a task that runs once after the delay.
+     * 
+     * @param task
+     *            The task. It should not block as all of the tasks are run by the worker thread of the timer.
+     * @param delay
+     *            The delay.
+     * @param unit
+     *            The unit of the delay.
+     * @return The timeout that can be used to cancel the task.
+     */
+    public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        newTimeouts.add(timeout);
+        if (!startWorkerIfNecessary() && idle) {
+            LockSupport.unpark(workerThread);
+        }
+        return timeout;
+    }
+
+    /**
+     * Starting the worker thread if it is not running.
+     * 
+     * @return True if a new worker thread was started.
+     */
+    private boolean startWorkerIfNecessary() {
+        if (!workerRunning.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread thread = new Thread(new Worker(), threadName);
+        thread.setDaemon(true);
+        workerThread = thread;
+        thread.start();
+        return true;
+    }
+}
@@ -0,0 +1,175 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Decides which methods are hedged and how long a hedged call waits before a duplicate call is sent to an other
+ * service. The delay of a method is the configured percentile of the latencies of its service calls but at least the
+ * minimum delay. Until enough latencies are recorded the minimum delay is used.
+ */
+public class HedgingPolicy {
+
+    /**
+     * The latencies of the service calls of one method and the delay that is calculated from them.
+     */
+    private static final class MethodLatency {
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private final AtomicInteger sampleCount = new AtomicInteger();
+
+        private volatile long delay;
+
+        MethodLatency(final long delay) {
+            this.delay = delay;
+        }
+    }
+
+    /**
+     * The number of recorded latencies that are necessary before the percentile is used.
+     */
+    private static final int WARM_UP_SAMPLE_COUNT = 20;
+
+    /**
+     * The delay of a method is recalculated after this number of recorded latencies.
+     */
+    private static final int RECALCULATION_INTERVAL = 64;
+
+    /**
+     * Decides which methods are hedged.
+     */
+    private final Predicate<Method> hedgedMethods;
+
+    /**
+     * The percentile of the latencies that the delay is based on.
+     */
+    private final double percentile;
+
+    /**
+     * The minimum delay in nanoseconds.
+     */
+    private final long minimumDelay;
+
+    /**
+     * The executor that runs the service calls of the hedged methods.
+     */
+    private final Executor executor;
+
+    /**
+     * The latencies by method.
+     */
+    private final ConcurrentMap<Method, MethodLatency> latencies = new ConcurrentHashMap<Method, MethodLatency>();
+
+    /**
+     * Simple constructor.
+     * 
+     * @param hedgedMethods
+     *            Decides which methods are hedged.
+     * @param percentile
+     *            The percentile of the latencies that the delay is based on.
+     * @param minimumDelay
+     *            The minimum delay in milliseconds.
+     * @param executor
+     *            The executor that runs the service calls of the hedged methods.
+     * @throws IllegalArgumentException
+     *             if the predicate or the executor is null, the percentile is not between 0 and 1 or the minimum delay
+     *             is negative.
+     */
+    public HedgingPolicy(final Predicate<Method> hedgedMethods, final double percentile, final long minimumDelay,
+            final Executor executor) {
+        if (hedgedMethods == null) {
+            throw new IllegalArgumentException("The hedgedMethods parameter cannot be null");
+        }
+        if (!((percentile > 0) && (percentile <= 1))) {
+            throw new IllegalArgumentException("The percentile must be greater than 0 and not greater than 1");
+        }
+        if (minimumDelay < 0) {
+            throw new IllegalArgumentException("The minimum delay cannot be negative");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("The executor parameter cannot be null");
+        }
+        this.hedgedMethods = hedgedMethods;
+        this.percentile = percentile;
+        this.minimumDelay = TimeUnit.MILLISECONDS.toNanos(minimumDelay);
+        this.executor = executor;
+    }
+
+    /**
+     * Getting the time a call of the method waits before it is hedged.
+     * 
+     * @param method
+     *            The method of the proxy object.
+     * @return The delay in nanoseconds.
+     */
+    public long getDelay(final Method method) {
+        MethodLatency latency = latencies.get(method);
+        if (latency == null) {
+            return minimumDelay;
+        }
+        return latency.delay;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Checking whether the calls of a method are hedged.
+     * 
+     * @param method
+     *            The method of the proxy object.
+     * @return True if the method is hedged.
+     */
+    public boolean isHedged(final Method method) {
+        return hedgedMethods.test(method);
+    }
+
+    /**
+     * Recording the latency of a service call of a hedged method.
+     * 
+     * @param method
+     *            The method of the proxy object.
+     * @param nanos
+     *            The duration of the service call.
+     */
+    public void recordLatency(final Method method, final long nanos) {
+        MethodLatency latency = latencies.get(method);
+        if (latency == null) {
+            latency = latencies.computeIfAbsent(method, m -> new MethodLatency(minimumDelay));
+        }
+        latency.histogram.record(nanos);
+        int samples = latency.sampleCount.incrementAndGet();
+        if ((samples == WARM_UP_SAMPLE_COUNT)
+                || ((samples > WARM_UP_SAMPLE_COUNT) && ((samples % RECALCULATION_INTERVAL) == 0))) {
+            latency.delay = Math.max(minimumDelay, latency.histogram.getValueAtPercentile(percentile));
+        }
+    }
+}
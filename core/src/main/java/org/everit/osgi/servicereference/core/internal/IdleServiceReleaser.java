@@ -0,0 +1,146 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Releases the service objects of a {@link ReferenceTrackerCustomizer} if the proxy object is not called for a while.
+ * The services remain tracked and their objects are got again when they are needed. Instead of storing the time of
+ * every call, a flag is set by the calls and it is checked and cleared once in every idle timeout so the overhead of
+ * the calls is low. As a consequence a service object is released after the idle timeout and at the latest after two
+ * times the idle timeout of inactivity. The check is scheduled only while there might be acquired service objects so
+ * no task is left behind after the services are released.
+ */
+public class IdleServiceReleaser {
+
+    /**
+     * The customizer whose services are released.
+     */
+    private final ReferenceTrackerCustomizer customizer;
+
+    /**
+     * The idle timeout in milliseconds.
+     */
+    private final long idleTimeout;
+
+    /**
+     * The number of calls in progress on the proxy object. No service object is released while a call is in progress.
+     */
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    /**
+     * True if the proxy object was called since the last check.
+     */
+    private volatile boolean used = false;
+
+    /**
+     * True if a check is scheduled or in progress.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * Simple constructor.
+     * 
+     * @param customizer
+     *            The customizer whose services are released.
+     * @param idleTimeout
+     *            The idle timeout in milliseconds.
+     * @throws IllegalArgumentException
+     *             if the idle timeout is not positive.
+     */
+    public IdleServiceReleaser(final ReferenceTrackerCustomizer customizer, final long idleTimeout) {
+        if (idleTimeout < 1) {
+            throw new IllegalArgumentException("The idle timeout must be positive");
+        }
+        this.customizer = customizer;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Recording the end of a call on the proxy object.
+     */
+    public void callFinished() {
+        inFlightCount.decrementAndGet();
+    }
+
+    /**
+     * Recording the start of a call on the proxy object. It must be called before the service object is read.
+     */
+    public void callStarted() {
+        inFlightCount.incrementAndGet();
+        if (!used) {
+            used = true;
+        }
+        if (!scheduled.get()) {
+            scheduleCheck();
+        }
+    }
+
+    /**
+     * Checking whether the services were used since the last check. The releasing is done on the
+     * {@link ForkJoinPool#commonPool()} as the service factories might be called and the tasks of the shared
+     * {@link ReferenceScheduler} should not block.
+     */
+    private void check() {
+        if (customizer.getIdleServiceReleaser() != this) {
+            return;
+        }
+        if (used || (inFlightCount.get() != 0)) {
+            used = false;
+            ReferenceScheduler.schedule(this::check, idleTimeout);
+            return;
+        }
+        ForkJoinPool.commonPool().execute(this::release);
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    private void release() {
+        if (!customizer.releaseIdleServices(this)) {
+            ReferenceScheduler.schedule(this::check, idleTimeout);
+            return;
+        }
+        scheduled.set(false);
+        // A call might have started since the check and did not schedule a new one.
+        if (used) {
+            scheduleCheck();
+        }
+    }
+
+    /**
+     * Scheduling a check if none is scheduled. It is called when a service object might have been acquired.
+     */
+    public void scheduleCheck() {
+        if (scheduled.compareAndSet(false, true)) {
+            ReferenceScheduler.schedule(this::check, idleTimeout);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.Method;
+
+import org.everit.osgi.servicereference.core.CallInterceptor;
+import org.everit.osgi.servicereference.core.InterceptedCall;
+import org.everit.osgi.servicereference.core.Reference;
+
+/**
+ * The chain of the interceptors of one call on the proxy object. The chain walks the array of the interceptors that
+ * was compiled when the reference was opened and calls the {@link ReferenceInvocationHandler} at the end.
+ */
+public final class InterceptorChain implements InterceptedCall {
+
+    /**
+     * The handler that calls the service at the end of the chain.
+     */
+    private final ReferenceInvocationHandler handler;
+
+    /**
+     * The interceptors of the reference in the order of the calls.
+     */
+    private final CallInterceptor[] interceptors;
+
+    /**
+     * The method that was called on the proxy object.
+     */
+    private final Method method;
+
+    /**
+     * The arguments of the call.
+     */
+    private final Object[] args;
+
+    /**
+     * The index of the interceptor that is called at the next {@link #proceed()}.
+     */
+    private int position = 0;
+
+    /**
+     * Simple constructor that sets the fields.
+     * 
+     * @param handler
+     *            Value of {@link #handler}.
+     * @param interceptors
+     *            Value of {@link #interceptors}.
+     * @param method
+     *            Value of {@link #method}.
+     * @param args
+     *            Value of {@link #args}.
+     */
+    InterceptorChain(final ReferenceInvocationHandler handler, final CallInterceptor[] interceptors,
+            final Method method, final Object[] args) {
+        this.handler = handler;
+        this.interceptors = interceptors;
+        this.method = method;
+        this.args = args;
+    }
+
+    @Override
+    public Object[] getArguments() {
+        return args;
+    }
+
+    @Override
+    public Method getMethod() {
+        return method;
+    }
+
+    @Override
+    public Reference getReference() {
+        return handler.getReference();
+    }
+
+    /**
+     * Calling the next interceptor. The position is restored when the interceptor returns so an interceptor can
+     * proceed more times.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public Object proceed() throws Throwable {
+        int current = position;
+        if (current == interceptors.length) {
+            return handler.invokeTracked(method, args);
+        }
+        position = current + 1;
+        try {
+            return interceptors[current].intercept(this);
+        } finally {
+            position = current;
+        }
+    }
+}
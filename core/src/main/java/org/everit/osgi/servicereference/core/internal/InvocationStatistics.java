@@ -0,0 +1,237 @@
+package org.everit.osgi.servicereference.core.internal;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.everit.osgi.servicereference.core.MethodStatistics;
+import org.everit.osgi.servicereference.core.ReferenceStatistics;
+
+/**
+ * Collects the statistics of the calls on the proxy object of a reference. All of the counters are striped so
+ * recording from many threads at the same time is cheap.
+ */
+public class InvocationStatistics {
+
+    /**
+     * The statistics of the calls of one method.
+     */
+    public static final class MethodRecorder {
+
+        private final LongAdder callCount = new LongAdder();
+
+        private final LongAdder waitCount = new LongAdder();
+
+        private final LongAdder timeoutCount = new LongAdder();
+
+        private final LongAdder failFastCount = new LongAdder();
+
+        private final LongAdder coalescedCount = new LongAdder();
+
+        private final LongAdder cacheHitCount = new LongAdder();
+
+        private final LongAdder rejectedCount = new LongAdder();
+
+        private final LongAdder failoverCount = new LongAdder();
+
+        private final LongAdder hedgedCount = new LongAdder();
+
+        private final LongAdder serviceUnavailableHandlerCount = new LongAdder();
+
+        private final LatencyHistogram waitTime = new LatencyHistogram();
+
+        private final LatencyHistogram serviceTime = new LatencyHistogram();
+
+        /**
+         * Recording the start of a call.
+         */
+        public void recordCall() {
+            callCount.increment();
+        }
+
+        /**
+         * Recording a call whose result was found in the result cache of the method.
+         */
+        public void recordCacheHit() {
+            cacheHitCount.increment();
+        }
+
+        /**
+         * Recording a call that got the result of an equal call instead of waiting for the service on its own.
+         */
+        public void recordCoalesced() {
+            coalescedCount.increment();
+        }
+
+        /**
+         * Recording a call that failed immediately as the circuit breaker was open.
+         * 
+         * @param handled
+         *            True if the call is passed to the
+         *            {@link org.everit.osgi.servicereference.core.ServiceUnavailableHandler} of the reference.
+         */
+        public void recordFailFast(final boolean handled) {
+            failFastCount.increment();
+            if (handled) {
+                serviceUnavailableHandlerCount.increment();
+            }
+        }
+
+        /**
+         * Recording a call that is repeated on an other service as the call of the first service failed.
+         */
+        public void recordFailover() {
+            failoverCount.increment();
+        }
+
+        /**
+         * Recording a call where a duplicate call is sent to an other service as the first service was slow.
+         */
+        public void recordHedged() {
+            hedgedCount.increment();
+        }
+
+        /**
+         * Recording a call that was rejected as the concurrency limit was reached.
+         * 
+         * @param handled
+         *            True if the call is passed to the
+         *            {@link org.everit.osgi.servicereference.core.ServiceUnavailableHandler} of the reference.
+         */
+        public void recordRejected(final boolean handled) {
+            rejectedCount.increment();
+            if (handled) {
+                serviceUnavailableHandlerCount.increment();
+            }
+        }
+
+        /**
+         * Recording the time a service call took.
+         * 
+         * @param nanos
+         *            The duration of the service call.
+         */
+        public void recordServiceTime(final long nanos) {
+            serviceTime.record(nanos);
+        }
+
+        /**
+         * Recording a call that timed out.
+         * 
+         * @param handled
+         *            True if the call is passed to the
+         *            {@link org.everit.osgi.servicereference.core.ServiceUnavailableHandler} of the reference.
+         */
+        public void recordTimeout(final boolean handled) {
+            timeoutCount.increment();
+            if (handled) {
+                serviceUnavailableHandlerCount.increment();
+            }
+        }
+
+        /**
+         * Recording the time the call waited for a service.
+         * 
+         * @param nanos
+         *            The duration of the waiting.
+         */
+        public void recordWait(final long nanos) {
+            waitCount.increment();
+            waitTime.record(nanos);
+        }
+
+        MethodStatistics snapshot() {
+            return new MethodStatistics(callCount.sum(), waitCount.sum(), timeoutCount.sum(), failFastCount.sum(),
+                    coalescedCount.sum(), cacheHitCount.sum(), rejectedCount.sum(), failoverCount.sum(),
+                    hedgedCount.sum(), serviceUnavailableHandlerCount.sum(), waitTime.snapshot(),
+                    serviceTime.snapshot());
+        }
+    }
+
+    /**
+     * The filter of the reference.
+     */
+    private final String filter;
+
+    /**
+     * The statistics by the methods of the proxy object.
+     */
+    private final ConcurrentMap<Method, MethodRecorder> recorders = new ConcurrentHashMap<Method, MethodRecorder>();
+
+    /**
+     * Simple constructor.
+     * 
+     * @param filter
+     *            The filter of the reference.
+     */
+    public InvocationStatistics(final String filter) {
+        this.filter = filter;
+    }
+
+    private static String signature(final Method method) {
+        StringBuilder sb = new StringBuilder(method.getDeclaringClass().getName()).append('.')
+                .append(method.getName()).append('(');
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(parameterTypes[i].getTypeName());
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Getting the recorder of a method.
+     * 
+     * @param method
+     *            The method of the proxy object.
+     * @return The recorder that collects the statistics of the method.
+     */
+    public MethodRecorder getRecorder(final Method method) {
+        MethodRecorder recorder = recorders.get(method);
+        if (recorder == null) {
+            recorder = recorders.computeIfAbsent(method, m -> new MethodRecorder());
+        }
+        return recorder;
+    }
+
+    /**
+     * Creating a snapshot of the collected statistics.
+     * 
+     * @return The snapshot.
+     */
+    public ReferenceStatistics snapshot() {
+        Map<String, MethodStatistics> methodStatistics = new HashMap<String, MethodStatistics>();
+        for (Entry<Method, MethodRecorder> entry : recorders.entrySet()) {
+            methodStatistics.put(signature(entry.getKey()), entry.getValue().snapshot());
+        }
+        return new ReferenceStatistics(filter, methodStatistics);
+    }
+}
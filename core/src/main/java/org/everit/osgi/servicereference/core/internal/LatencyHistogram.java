@@ -0,0 +1,183 @@
+package org.everit.osgi.servicereference.core.internal;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.everit.osgi.servicereference.core.LatencyStatistics;
+
+/**
+ * Histogram of latencies in nanoseconds with logarithmic buckets where every power of two range is split into
+ * {@value #SUB_BUCKET_COUNT} linear sub-buckets, similar to an HDR histogram. The relative error of the reported
+ * percentiles is at most 12.5%. Every bucket is a {@link LongAdder} that is created at the first time a value falls
+ * into it so recording a value is cheap even if many threads record at the same time.
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of bits that are used to select the sub-bucket within a power of two range.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * The number of sub-buckets within a power of two range.
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The number of buckets that are necessary to store any non-negative long value.
+     */
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    /**
+     * The buckets of the histogram.
+     */
+    private final AtomicReferenceArray<LongAdder> buckets = new AtomicReferenceArray<LongAdder>(BUCKET_COUNT);
+
+    /**
+     * The number of recorded values.
+     */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * The sum of the recorded values.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * The highest recorded value.
+     */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    private static int bucketIndex(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return ((shift + 1) * SUB_BUCKET_COUNT) + subBucket;
+    }
+
+    /**
+     * Copying the counts of the buckets to an array.
+     * 
+     * @param bucketCounts
+     *            The array with {@link #BUCKET_COUNT} elements that the counts are copied to.
+     * @return The sum of the counts.
+     */
+    private long collectBucketCounts(final long[] bucketCounts) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            LongAdder bucket = buckets.get(i);
+            if (bucket != null) {
+                bucketCounts[i] = bucket.sum();
+                total += bucketCounts[i];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Getting the value at a percentile of the recorded values without creating a full snapshot.
+     * 
+     * @param percentile
+     *            The percentile between 0 and 1.
+     * @return The value at the percentile or zero if no value is recorded.
+     */
+    public long getValueAtPercentile(final double percentile) {
+        long[] bucketCounts = new long[BUCKET_COUNT];
+        long total = collectBucketCounts(bucketCounts);
+        return valueAtPercentile(bucketCounts, total, percentile, max.get());
+    }
+
+    /**
+     * The highest value that falls into the bucket.
+     * 
+     * @param index
+     *            The index of the bucket.
+     * @return The highest value of the bucket.
+     */
+    private static long highestValueOfBucket(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index / SUB_BUCKET_COUNT) - 1;
+        long subBucket = index % SUB_BUCKET_COUNT;
+        return ((SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Recording a value.
+     * 
+     * @param value
+     *            The latency in nanoseconds. Negative values are recorded as zero.
+     */
+    public void record(final long value) {
+        long normalizedValue = Math.max(value, 0);
+        int index = bucketIndex(normalizedValue);
+        LongAdder bucket = buckets.get(index);
+        if (bucket == null) {
+            buckets.compareAndSet(index, null, new LongAdder());
+            bucket = buckets.get(index);
+        }
+        bucket.increment();
+        count.increment();
+        sum.add(normalizedValue);
+        max.accumulate(normalizedValue);
+    }
+
+    /**
+     * Creating a snapshot of the histogram. As the values might be recorded during the snapshot is taken, the
+     * snapshot is not necessarily consistent.
+     * 
+     * @return The snapshot.
+     */
+    public LatencyStatistics snapshot() {
+        long[] bucketCounts = new long[BUCKET_COUNT];
+        long total = collectBucketCounts(bucketCounts);
+        long maxValue = max.get();
+        return new LatencyStatistics(total, (total == 0) ? 0 : ((double) sum.sum() / count.sum()), maxValue,
+                valueAtPercentile(bucketCounts, total, 0.5, maxValue),
+                valueAtPercentile(bucketCounts, total, 0.9, maxValue),
+                valueAtPercentile(bucketCounts, total, 0.99, maxValue),
+                valueAtPercentile(bucketCounts, total, 0.999, maxValue));
+    }
+
+    private long valueAtPercentile(final long[] bucketCounts, final long total, final double percentile,
+            final long maxValue) {
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(percentile * total);
+        long cumulative = 0;
+        for (int i = 0; i < bucketCounts.length; i++) {
+            cumulative += bucketCounts[i];
+            if (cumulative >= target) {
+                return Math.min(highestValueOfBucket(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+}
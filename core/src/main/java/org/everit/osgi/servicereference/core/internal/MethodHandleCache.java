@@ -0,0 +1,157 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of {@link MethodHandle}s that are used to dispatch the calls of the proxy object to the service objects. The
+ * handles are stored per service class and per method so in the steady state a call does not go through reflection.
+ * A handle remains valid as long as its class exists, so the cache is not invalidated when services come and go or
+ * when the idle service objects are released, only when the reference is closed.
+ */
+public class MethodHandleCache {
+
+    /**
+     * The type that all of the cached handles are adapted to: (service, arguments) -> result.
+     */
+    private static final MethodType DISPATCH_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    /**
+     * Handle of {@link #invokeReflectively(Method, Object, Object[])} that is used as a fallback if a method cannot be
+     * unreflected (e.g. it is declared in an interface that is not accessible).
+     */
+    private static final MethodHandle REFLECTIVE_DISPATCH;
+
+    static {
+        try {
+            REFLECTIVE_DISPATCH = MethodHandles.lookup().findStatic(MethodHandleCache.class, "invokeReflectively",
+                    MethodType.methodType(Object.class, Method.class, Object.class, Object[].class));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The cached handles by the class of the service objects and the called method.
+     */
+    private final ConcurrentMap<Class<?>, ConcurrentMap<Method, MethodHandle>> handlesByServiceClass =
+            new ConcurrentHashMap<Class<?>, ConcurrentMap<Method, MethodHandle>>();
+
+    /**
+     * Fallback invocation that is used if no handle could be created for a method.
+     *
+     * @param method
+     *            The method that is called.
+     * @param service
+     *            The service object the method is called on.
+     * @param args
+     *            The arguments of the call.
+     * @return The result of the method call.
+     * @throws Throwable
+     *             The original exception that was thrown by the service method.
+     */
+    private static Object invokeReflectively(final Method method, final Object service, final Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(service, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+
+    /**
+     * Creating a handle that calls the method on a service object and has the type of {@link #DISPATCH_TYPE}.
+     *
+     * @param method
+     *            The method that should be called by the handle.
+     * @return The handle.
+     */
+    private MethodHandle createHandle(final Method method) {
+        MethodHandle handle;
+        try {
+            handle = MethodHandles.publicLookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            return REFLECTIVE_DISPATCH.bindTo(method);
+        }
+        return handle.asSpreader(Object[].class, method.getParameterTypes().length).asType(DISPATCH_TYPE);
+    }
+
+    /**
+     * Getting the handle for the method and service class from the cache or creating it if it does not exist.
+     *
+     * @param serviceClass
+     *            The class of the service object.
+     * @param method
+     *            The method that is called.
+     * @return The handle that can be called with the service object and the arguments.
+     */
+    private MethodHandle getHandle(final Class<?> serviceClass, final Method method) {
+        ConcurrentMap<Method, MethodHandle> handles = handlesByServiceClass.get(serviceClass);
+        if (handles == null) {
+            handles = new ConcurrentHashMap<Method, MethodHandle>();
+            ConcurrentMap<Method, MethodHandle> existing = handlesByServiceClass.putIfAbsent(serviceClass, handles);
+            if (existing != null) {
+                handles = existing;
+            }
+        }
+        MethodHandle handle = handles.get(method);
+        if (handle == null) {
+            handle = createHandle(method);
+            handles.putIfAbsent(method, handle);
+        }
+        return handle;
+    }
+
+    /**
+     * Dropping all of the cached handles. Should be called when the reference is closed.
+     */
+    public void invalidate() {
+        handlesByServiceClass.clear();
+    }
+
+    /**
+     * Calling the method on the service object. The exceptions that are thrown by the service method are passed to
+     * the caller without wrapping.
+     *
+     * @param service
+     *            The service object.
+     * @param method
+     *            The method that should be called.
+     * @param args
+     *            The arguments of the method call or null if the method does not have any parameters.
+     * @return The result of the method call.
+     * @throws Throwable
+     *             Any exception that is thrown by the service method.
+     */
+    public Object invoke(final Object service, final Method method, final Object[] args) throws Throwable {
+        return (Object) getHandle(service.getClass(), method).invokeExact(service, args);
+    }
+}
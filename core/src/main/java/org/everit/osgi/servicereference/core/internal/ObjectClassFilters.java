@@ -0,0 +1,96 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * Helper functions to find out which objectClass the services matching a filter must be registered with.
+ */
+public final class ObjectClassFilters {
+
+    private static final String OBJECT_CLASS_PREFIX = "(objectClass=";
+
+    /**
+     * Getting the objectClass that is required by a filter. The objectClass is found if the filter is an
+     * (objectClass=...) item or an and expression that has an (objectClass=...) item directly. Items with wildcards or
+     * escaped characters are not considered.
+     * 
+     * @param filter
+     *            The normalized string representation of the filter.
+     * @return The name of the required objectClass or null if the filter does not require one.
+     */
+    public static String getRequiredObjectClass(final String filter) {
+        String objectClass = parseObjectClassItem(filter, 0, filter.length());
+        if ((objectClass != null) || !filter.startsWith("(&")) {
+            return objectClass;
+        }
+        int i = 2;
+        int n = filter.length() - 1;
+        while ((i < n) && (filter.charAt(i) == '(')) {
+            int end = findClosingParenthesis(filter, i);
+            if (end < 0) {
+                return null;
+            }
+            objectClass = parseObjectClassItem(filter, i, end + 1);
+            if (objectClass != null) {
+                return objectClass;
+            }
+            i = end + 1;
+        }
+        return null;
+    }
+
+    private static int findClosingParenthesis(final String filter, final int start) {
+        int depth = 0;
+        for (int i = start, n = filter.length(); i < n; i++) {
+            char c = filter.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+                if (depth == 0) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static String parseObjectClassItem(final String filter, final int start, final int end) {
+        int valueStart = start + OBJECT_CLASS_PREFIX.length();
+        if ((end - valueStart < 2) || (filter.charAt(end - 1) != ')')
+                || !filter.regionMatches(true, start, OBJECT_CLASS_PREFIX, 0, OBJECT_CLASS_PREFIX.length())) {
+            return null;
+        }
+        for (int i = valueStart; i < end - 1; i++) {
+            char c = filter.charAt(i);
+            if ((c == '*') || (c == '\\') || (c == '(') || (c == ')')) {
+                return null;
+            }
+        }
+        return filter.substring(valueStart, end - 1);
+    }
+
+    private ObjectClassFilters() {
+    }
+}
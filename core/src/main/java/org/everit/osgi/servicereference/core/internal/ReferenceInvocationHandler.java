@@ -22,13 +22,31 @@ package org.everit.osgi.servicereference.core.internal;
  */
 
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
+import org.everit.osgi.servicereference.core.CallInterceptor;
+import org.everit.osgi.servicereference.core.CircuitOpenException;
+import org.everit.osgi.servicereference.core.ConcurrencyLimit;
+import org.everit.osgi.servicereference.core.ConcurrencyLimitExceededException;
+import org.everit.osgi.servicereference.core.DispatchStrategy;
 import org.everit.osgi.servicereference.core.Reference;
+import org.everit.osgi.servicereference.core.ReferenceStatistics;
 import org.everit.osgi.servicereference.core.ServiceUnavailableException;
 import org.everit.osgi.servicereference.core.ServiceUnavailableHandler;
-import org.osgi.util.tracker.ServiceTracker;
+import org.everit.osgi.servicereference.core.internal.HashedWheelTimer.Timeout;
+import org.everit.osgi.servicereference.core.internal.InvocationStatistics.MethodRecorder;
 
 /**
  * The invocation handler that supports that calls the service refernces if they are available otherwise it will wait
@@ -43,20 +61,88 @@ public class ReferenceInvocationHandler implements InvocationHandler {
     private final long timeout;
 
     /**
-     * Tracks the services that fit to the filter.
+     * The customizer of the service tracker that holds the currently available service.
      */
-    private final ServiceTracker<?, ?> serviceTracker;
+    private final ReferenceTrackerCustomizer serviceTrackerCustomizer;
 
     /**
-     * The filter represented as a string that the {@link #serviceTracker} tracks.
+     * The filter represented as a string that the service tracker tracks.
      */
-    private final String filter;
+    private volatile String filter;
+
+    /**
+     * The message of the exception that is thrown if the proxy is called before the reference is opened. It is
+     * created once for every filter so the calls do not build it.
+     */
+    private volatile String notOpenedMessage;
 
     /**
      * The reference that this invocation handler belongs to.
      */
     private final Reference reference;
 
+    /**
+     * The cache of the handles that are used to call the methods of the service objects.
+     */
+    private final MethodHandleCache methodHandleCache;
+
+    /**
+     * The caches of the results of the methods.
+     */
+    private final ResultCaches resultCaches;
+
+    /**
+     * The strategy that selects the service that is called if more services are tracked.
+     */
+    private volatile DispatchStrategy dispatchStrategy = DispatchStrategy.HIGHEST_RANKED;
+
+    /**
+     * Decides which methods are coalesced or null if no calls are coalesced.
+     */
+    private volatile Predicate<Method> callCoalescingPredicate;
+
+    /**
+     * The results of the coalesced calls that are waiting for the service.
+     */
+    private final ConcurrentMap<CallKey, CompletableFuture<Object>> coalescedCalls =
+            new ConcurrentHashMap<CallKey, CompletableFuture<Object>>();
+
+    /**
+     * Decides which methods are called on an other service if the call fails or null if there is no failover.
+     */
+    private volatile Predicate<Method> failoverPredicate;
+
+    /**
+     * Decides which methods are hedged and when or null if no calls are hedged.
+     */
+    private volatile HedgingPolicy hedgingPolicy;
+
+    /**
+     * The limiter of the concurrent calls of the reference or null if the calls are not limited.
+     */
+    private volatile ConcurrencyLimiter concurrencyLimiter;
+
+    /**
+     * The limiters of the concurrent calls by method. The map is replaced when a limit is set or removed.
+     */
+    private volatile Map<Method, ConcurrencyLimiter> methodConcurrencyLimiters = Collections.emptyMap();
+
+    /**
+     * Lock that serializes the modifications of {@link #methodConcurrencyLimiters}.
+     */
+    private final ReentrantLock methodConcurrencyLimitersLock = new ReentrantLock();
+
+    /**
+     * The collected statistics of the calls or null if collecting statistics is not enabled.
+     */
+    private volatile InvocationStatistics statistics;
+
+    /**
+     * The interceptors of the calls in the order of the calls or null if there are no interceptors. The array is
+     * compiled from the interceptors of the reference when the reference is opened.
+     */
+    private volatile CallInterceptor[] interceptors;
+
     /**
      * The object that handles if a service is not available even after the timeout.
      */
@@ -65,56 +151,817 @@ public class ReferenceInvocationHandler implements InvocationHandler {
     /**
      * Simple constructor that sets the fields.
      * 
-     * @param serviceTracker
-     *            value of {@link #serviceTracker}.
+     * @param reference
+     *            value of {@link #reference}.
+     * @param serviceTrackerCustomizer
+     *            value of {@link #serviceTrackerCustomizer}.
      * @param filter
      *            value of {@link #filter}.
      * @param timeout
      *            value of {@link #timeout}.
+     * @param methodHandleCache
+     *            value of {@link #methodHandleCache}.
+     * @param resultCaches
+     *            value of {@link #resultCaches}.
      */
-    public ReferenceInvocationHandler(final Reference reference, final ServiceTracker<Object, Object> serviceTracker,
-            final String filter,
-            final long timeout) {
+    public ReferenceInvocationHandler(final Reference reference,
+            final ReferenceTrackerCustomizer serviceTrackerCustomizer, final String filter,
+            final long timeout, final MethodHandleCache methodHandleCache, final ResultCaches resultCaches) {
         this.timeout = timeout;
-        this.filter = filter;
-        this.serviceTracker = serviceTracker;
+        this.serviceTrackerCustomizer = serviceTrackerCustomizer;
+        this.methodHandleCache = methodHandleCache;
+        this.resultCaches = resultCaches;
         this.reference = reference;
+        setFilter(filter);
+    }
+
+    /**
+     * Calling the service selected by the {@link #dispatchStrategy} within the concurrency limits of the reference and
+     * the method.
+     * 
+     * @param service
+     *            The service that was found to be available. It is called if the strategy does not select an other one.
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @param recorder
+     *            The recorder of the statistics of the method or null if statistics are not collected.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the service throws anything or the call is rejected.
+     */
+    private Object dispatch(final Object service, final Method method, final Object[] args,
+            final MethodRecorder recorder) throws Throwable {
+        ConcurrencyLimiter referenceLimiter = concurrencyLimiter;
+        ConcurrencyLimiter methodLimiter = methodConcurrencyLimiters.get(method);
+        if ((referenceLimiter == null) && (methodLimiter == null)) {
+            return invokeSelected(service, method, args, recorder);
+        }
+        return invokeLimited(referenceLimiter, methodLimiter, service, method, args, recorder);
     }
 
     /**
      * If a service object is available it will be called otherwise the function call will wait until {@link #timeout}.
+     * If the reference has interceptors, the call is passed through them first.
      * {@inheritDoc}
      */
     @Override
     public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
-        Object service = serviceTracker.getService();
+        CallInterceptor[] currentInterceptors = interceptors;
+        if (currentInterceptors == null) {
+            return invokeTracked(method, args);
+        }
+        return new InterceptorChain(this, currentInterceptors, method, args).proceed();
+    }
+
+    /**
+     * Calling the service and keeping the {@link IdleServiceReleaser} informed about the call.
+     * 
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the service throws anything or the call is rejected.
+     */
+    Object invokeTracked(final Method method, final Object[] args) throws Throwable {
+        IdleServiceReleaser idleServiceReleaser = serviceTrackerCustomizer.getIdleServiceReleaser();
+        if (idleServiceReleaser == null) {
+            return invokeProxy(method, args);
+        }
+        idleServiceReleaser.callStarted();
+        try {
+            return invokeProxy(method, args);
+        } finally {
+            idleServiceReleaser.callFinished();
+        }
+    }
+
+    /**
+     * Calling the service on the executor of the hedging policy and recording the latency of the call.
+     * 
+     * @param hedging
+     *            The hedging policy.
+     * @param service
+     *            The service object.
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @param recorder
+     *            The recorder of the statistics of the method or null if statistics are not collected.
+     * @return The future result of the call.
+     */
+    private CompletableFuture<Object> invokeAsync(final HedgingPolicy hedging, final Object service,
+            final Method method, final Object[] args, final MethodRecorder recorder) {
+        final CompletableFuture<Object> result = new CompletableFuture<Object>();
+        hedging.getExecutor().execute(() -> {
+            long startTime = System.nanoTime();
+            try {
+                result.complete(invokeService(service, method, args, recorder));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                hedging.recordLatency(method, System.nanoTime() - startTime);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Getting the result of the call from the cache or calling the service and storing the result in the cache. The
+     * result is stored only if it comes from a service that is still tracked: if the cache was invalidated during the
+     * call (the tracked services changed) or no service is available (the result comes from the
+     * {@link #serviceNotAvailableHandler}), the result is not stored.
+     * 
+     * @param resultCache
+     *            The cache of the method.
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @param recorder
+     *            The recorder of the statistics of the method or null if statistics are not collected.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the service throws anything or it is not available.
+     */
+    private Object invokeCached(final ResultCache resultCache, final Method method, final Object[] args,
+            final MethodRecorder recorder) throws Throwable {
+        CallKey call = new CallKey(method, args);
+        Object[] resultHolder = new Object[1];
+        if (resultCache.get(call, resultHolder)) {
+            if (recorder != null) {
+                recorder.recordCacheHit();
+            }
+            return resultHolder[0];
+        }
+        long generation = resultCache.getGeneration();
+        Object result = invokeUncached(method, args, recorder);
+        if (serviceTrackerCustomizer.getService() != null) {
+            resultCache.put(call, result, generation);
+        }
+        return result;
+    }
+
+    /**
+     * Waiting for the service together with the other calls of the same method with equal arguments. Only the first
+     * call waits for the service and calls it, the other calls get the same result or the same exception.
+     * 
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @param recorder
+     *            The recorder of the statistics of the method or null if statistics are not collected.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the service throws anything or it is not available.
+     */
+    private Object invokeCoalesced(final Method method, final Object[] args, final MethodRecorder recorder)
+            throws Throwable {
+        CallKey call = new CallKey(method, args);
+        CompletableFuture<Object> ownResult = new CompletableFuture<Object>();
+        CompletableFuture<Object> inFlightResult = coalescedCalls.putIfAbsent(call, ownResult);
+        if (inFlightResult != null) {
+            if (recorder != null) {
+                recorder.recordCoalesced();
+            }
+            try {
+                return inFlightResult.get();
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            }
+        }
+
+        try {
+            Object result = invokeWhenAvailable(method, args, recorder);
+            coalescedCalls.remove(call, ownResult);
+            ownResult.complete(result);
+            return result;
+        } catch (Throwable e) {
+            coalescedCalls.remove(call, ownResult);
+            ownResult.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Calling the service and if it does not answer within the delay of the hedging policy (or fails), sending the
+     * same call to the best ranked other service. The result of the call that finishes first successfully is
+     * returned. If both calls fail, the exception of the first call is thrown.
+     * 
+     * @param hedging
+     *            The hedging policy.
+     * @param service
+     *            The service that is called first.
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @param recorder
+     *            The recorder of the statistics of the method or null if statistics are not collected.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the services throw anything.
+     */
+    private Object invokeHedged(final HedgingPolicy hedging, final Object service, final Method method,
+            final Object[] args, final MethodRecorder recorder) throws Throwable {
+        final CompletableFuture<Object> primary = invokeAsync(hedging, service, method, args, recorder);
+        try {
+            return primary.get(hedging.getDelay(method), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // Sending the hedged call
+        }
+
+        Object alternative = serviceTrackerCustomizer.selectAlternative(service);
+        if (alternative == null) {
+            return waitForResult(primary);
+        }
+        if (recorder != null) {
+            recorder.recordHedged();
+        }
+        final CompletableFuture<Object> hedge = invokeAsync(hedging, alternative, method, args, recorder);
+        final CompletableFuture<Object> result = new CompletableFuture<Object>();
+        primary.whenComplete((value, failure) -> {
+            if (failure == null) {
+                result.complete(value);
+            } else if (hedge.isCompletedExceptionally()) {
+                result.completeExceptionally(failure);
+            }
+        });
+        hedge.whenComplete((value, failure) -> {
+            if (failure == null) {
+                result.complete(value);
+            } else if (primary.isCompletedExceptionally()) {
+                primary.whenComplete((primaryValue, primaryFailure) -> result.completeExceptionally(primaryFailure));
+            }
+        });
+        return waitForResult(result);
+    }
+
+    /**
+     * Acquiring a slot from the limiters, calling the service and releasing the slots. The latency of the call is
+     * passed to the limiters so an adaptive limit can follow the load of the service.
+     * 
+     * @param referenceLimiter
+     *            The limiter of the reference or null.
+     * @param methodLimiter
+     *            The limiter of the method or null.
+     * @param service
+     *            The service that was found to be available.
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @param recorder
+     *            The recorder of the statistics of the method or null if statistics are not collected.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the service throws anything or the call is rejected.
+     */
+    private Object invokeLimited(final ConcurrencyLimiter referenceLimiter, final ConcurrencyLimiter methodLimiter,
+            final Object service, final Method method, final Object[] args, final MethodRecorder recorder)
+            throws Throwable {
+        if ((methodLimiter != null) && !methodLimiter.acquire(timeout)) {
+            return reject(method, args, recorder);
+        }
+        long latency = -1;
+        try {
+            if ((referenceLimiter != null) && !referenceLimiter.acquire(timeout)) {
+                return reject(method, args, recorder);
+            }
+            long startTime = System.nanoTime();
+            try {
+                return invokeSelected(service, method, args, recorder);
+            } finally {
+                latency = System.nanoTime() - startTime;
+                if (referenceLimiter != null) {
+                    referenceLimiter.release(latency);
+                }
+            }
+        } finally {
+            if (methodLimiter != null) {
+                methodLimiter.release(latency);
+            }
+        }
+    }
+
+    /**
+     * Calling the service from the result cache or directly.
+     * 
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the service throws anything or it is not available.
+     */
+    private Object invokeProxy(final Method method, final Object[] args) throws Throwable {
+        InvocationStatistics currentStatistics = statistics;
+        MethodRecorder recorder = null;
+        if (currentStatistics != null) {
+            recorder = currentStatistics.getRecorder(method);
+            recorder.recordCall();
+        }
+
+        ResultCache resultCache = resultCaches.get(method);
+        if (resultCache != null) {
+            return invokeCached(resultCache, method, args, recorder);
+        }
+        return invokeUncached(method, args, recorder);
+    }
+
+    /**
+     * Borrowing an instance from the pool of a prototype scoped service, calling it and giving it back. If no instance
+     * is available until the {@link #timeout}, the call is rejected the same way as if a concurrency limit was reached.
+     * 
+     * @param servicePool
+     *            The pool of the service.
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @param recorder
+     *            The recorder of the statistics of the method or null if statistics are not collected.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the service throws anything, the service is removed meanwhile or the call is rejected.
+     */
+    private Object invokePooled(final ServicePool servicePool, final Method method, final Object[] args,
+            final MethodRecorder recorder) throws Throwable {
+        Object instance = servicePool.borrow();
+        if (instance == null) {
+            if (servicePool.isClosed()) {
+                throw new ServiceUnavailableException(filter, method, timeout);
+            }
+            return reject(method, args, recorder);
+        }
+        try {
+            return invokeService(instance, method, args, recorder);
+        } finally {
+            servicePool.giveBack(instance);
+        }
+    }
+
+    /**
+     * Calling the service selected by the {@link #dispatchStrategy}.
+     * 
+     * @param service
+     *            The service that was found to be available. It is called if the strategy does not select an other one.
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @param recorder
+     *            The recorder of the statistics of the method or null if statistics are not collected.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the service throws anything.
+     */
+    private Object invokeSelected(final Object service, final Method method, final Object[] args,
+            final MethodRecorder recorder) throws Throwable {
+        DispatchStrategy strategy = dispatchStrategy;
+        if (strategy != DispatchStrategy.HIGHEST_RANKED) {
+            TrackedService trackedService = serviceTrackerCustomizer.selectService(strategy, args);
+            Object selectedService = (trackedService != null) ? trackedService.getService() : null;
+            if (selectedService != null) {
+                if (strategy != DispatchStrategy.LEAST_IN_FLIGHT) {
+                    return invokeTarget(selectedService, method, args, recorder);
+                }
+                trackedService.callStarted();
+                try {
+                    return invokeTarget(selectedService, method, args, recorder);
+                } finally {
+                    trackedService.callFinished();
+                }
+            }
+            // The services were removed since the availability check (or the call comes from the warm up listener).
+        }
+        return invokeTarget(service, method, args, recorder);
+    }
+
+    /**
+     * Calling the method on the service object and recording the time of the call if statistics are collected.
+     * 
+     * @param service
+     *            The service object or the pool of a prototype scoped service.
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @param recorder
+     *            The recorder of the statistics of the method or null if statistics are not collected.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the service throws anything.
+     */
+    private Object invokeService(final Object service, final Method method, final Object[] args,
+            final MethodRecorder recorder) throws Throwable {
+        if (service instanceof ServicePool) {
+            return invokePooled((ServicePool) service, method, args, recorder);
+        }
+        if (recorder == null) {
+            return methodHandleCache.invoke(service, method, args);
+        }
+        long serviceStartTime = System.nanoTime();
+        try {
+            return methodHandleCache.invoke(service, method, args);
+        } finally {
+            recorder.recordServiceTime(System.nanoTime() - serviceStartTime);
+        }
+    }
+
+    /**
+     * Calling the selected service with hedging or failover if they are enabled for the method.
+     * 
+     * @param service
+     *            The selected service object.
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @param recorder
+     *            The recorder of the statistics of the method or null if statistics are not collected.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the service throws anything.
+     */
+    private Object invokeTarget(final Object service, final Method method, final Object[] args,
+            final MethodRecorder recorder) throws Throwable {
+        HedgingPolicy hedging = hedgingPolicy;
+        if ((hedging != null) && hedging.isHedged(method)) {
+            return invokeHedged(hedging, service, method, args, recorder);
+        }
+        Predicate<Method> failover = failoverPredicate;
+        if ((failover != null) && failover.test(method)) {
+            return invokeWithFailover(service, method, args, recorder);
+        }
+        return invokeService(service, method, args, recorder);
+    }
+
+    /**
+     * Calling the service or waiting for it if it is not available. If a service is available, the opened state of
+     * the reference and the warm up service object are not read and nothing is allocated until the service object is
+     * called.
+     * 
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @param recorder
+     *            The recorder of the statistics of the method or null if statistics are not collected.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the service throws anything or it is not available.
+     */
+    private Object invokeUncached(final Method method, final Object[] args, final MethodRecorder recorder)
+            throws Throwable {
+        Object service = serviceTrackerCustomizer.getService();
         if (service == null) {
             if (!reference.isOpened()) {
-                throw new IllegalStateException("Reference is not opened. Filter of reference: '" + filter + "'.");
+                throw new IllegalStateException(notOpenedMessage);
             }
 
             service = ReferenceTrackerCustomizer.WARM_UP_SERVICE_OBJECT.get();
         }
-        if (service == null) {
-            service = serviceTracker.waitForService(timeout);
+        if (service != null) {
+            return dispatch(service, method, args, recorder);
         }
 
-        if (service == null) {
-            if (serviceNotAvailableHandler != null) {
-                return serviceNotAvailableHandler.handle(filter, method, args, timeout);
+        Predicate<Method> coalescing = callCoalescingPredicate;
+        if ((coalescing != null) && coalescing.test(method)) {
+            return invokeCoalesced(method, args, recorder);
+        }
+        return invokeWhenAvailable(method, args, recorder);
+    }
+
+    /**
+     * Waiting for the service until the {@link #timeout} and calling it. If no service is available until the timeout
+     * the {@link #serviceNotAvailableHandler} is called or a {@link ServiceUnavailableException} is thrown.
+     * 
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @param recorder
+     *            The recorder of the statistics of the method or null if statistics are not collected.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the service throws anything or it is not available.
+     */
+    private Object invokeWhenAvailable(final Method method, final Object[] args, final MethodRecorder recorder)
+            throws Throwable {
+        Object service = null;
+        boolean failedFast = false;
+        CircuitBreaker circuitBreaker = serviceTrackerCustomizer.getCircuitBreaker();
+        if ((circuitBreaker != null) && !circuitBreaker.allowWaiting()) {
+            failedFast = true;
+        } else {
+            if (recorder == null) {
+                service = serviceTrackerCustomizer.waitForService(timeout);
             } else {
-                throw new ServiceUnavailableException(filter, method, timeout);
+                long waitStartTime = System.nanoTime();
+                service = serviceTrackerCustomizer.waitForService(timeout);
+                recorder.recordWait(System.nanoTime() - waitStartTime);
             }
+            if ((service == null) && (circuitBreaker != null)) {
+                circuitBreaker.recordTimeout();
+            }
+        }
+
+        if (service != null) {
+            return dispatch(service, method, args, recorder);
+        }
+        ServiceUnavailableHandler handler = serviceNotAvailableHandler;
+        if (recorder != null) {
+            if (failedFast) {
+                recorder.recordFailFast(handler != null);
+            } else {
+                recorder.recordTimeout(handler != null);
+            }
+        }
+        if (handler != null) {
+            return handler.handle(filter, method, args, timeout);
+        } else if (failedFast) {
+            throw new CircuitOpenException(filter, method, timeout);
         } else {
-            try {
-                return method.invoke(service, args);
-            } catch (InvocationTargetException e) {
-                throw e.getTargetException();
+            throw new ServiceUnavailableException(filter, method, timeout);
+        }
+    }
+
+    /**
+     * Calling the service and if it throws an exception, calling the best ranked other service once.
+     * 
+     * @param service
+     *            The service that is called first.
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @param recorder
+     *            The recorder of the statistics of the method or null if statistics are not collected.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the service throws anything and there is no other service or the other service throws anything
+     *             as well.
+     */
+    private Object invokeWithFailover(final Object service, final Method method, final Object[] args,
+            final MethodRecorder recorder) throws Throwable {
+        try {
+            return invokeService(service, method, args, recorder);
+        } catch (Exception e) {
+            Object alternative = serviceTrackerCustomizer.selectAlternative(service);
+            if (alternative == null) {
+                throw e;
+            }
+            if (recorder != null) {
+                recorder.recordFailover();
             }
+            return invokeService(alternative, method, args, recorder);
+        }
+    }
+
+    /**
+     * Passing a call that was rejected by a concurrency limiter to the {@link #serviceNotAvailableHandler} or throwing
+     * a {@link ConcurrencyLimitExceededException}.
+     * 
+     * @param method
+     *            The method that was called on the proxy.
+     * @param args
+     *            The arguments of the call.
+     * @param recorder
+     *            The recorder of the statistics of the method or null if statistics are not collected.
+     * @return The result of the {@link #serviceNotAvailableHandler}.
+     */
+    private Object reject(final Method method, final Object[] args, final MethodRecorder recorder) {
+        ServiceUnavailableHandler handler = serviceNotAvailableHandler;
+        if (recorder != null) {
+            recorder.recordRejected(handler != null);
         }
+        if (handler == null) {
+            throw new ConcurrencyLimitExceededException(filter, method, timeout);
+        }
+        return handler.handle(filter, method, args, timeout);
+    }
+
+    /**
+     * Requesting the service object without blocking the caller. If no service is available the request waits until a
+     * service is added or until the {@link #timeout} expires. The expiration of the waiting requests of all references
+     * is done by the shared {@link ReferenceScheduler}.
+     * 
+     * @return A future that is completed with the service object or completed exceptionally with a
+     *         {@link ServiceUnavailableException} if no service was available until the timeout.
+     * @throws IllegalStateException
+     *             if the reference is not opened.
+     */
+    public CompletableFuture<Object> requestService() {
+        Object service = serviceTrackerCustomizer.getService();
+        if (service == null) {
+            if (!reference.isOpened()) {
+                throw new IllegalStateException(notOpenedMessage);
+            }
+
+            service = ReferenceTrackerCustomizer.WARM_UP_SERVICE_OBJECT.get();
+        }
+        if (service != null) {
+            return CompletableFuture.completedFuture(service);
+        }
+
+        final CompletableFuture<Object> request = new CompletableFuture<Object>();
+        final CircuitBreaker circuitBreaker = serviceTrackerCustomizer.getCircuitBreaker();
+        if ((circuitBreaker != null) && !circuitBreaker.allowWaiting()) {
+            request.completeExceptionally(new CircuitOpenException(filter, timeout));
+            return request;
+        }
+        serviceTrackerCustomizer.addServiceRequest(request);
+        if (timeout > 0) {
+            final Timeout expiration = ReferenceScheduler.schedule(() -> {
+                if (request.completeExceptionally(new ServiceUnavailableException(filter, timeout))) {
+                    serviceTrackerCustomizer.removeServiceRequest(request);
+                    if (circuitBreaker != null) {
+                        circuitBreaker.recordTimeout();
+                    }
+                }
+            }, timeout, ForkJoinPool.commonPool());
+            request.whenComplete((result, failure) -> expiration.cancel());
+        }
+        return request;
+    }
+
+    public Predicate<Method> getCallCoalescingPredicate() {
+        return callCoalescingPredicate;
+    }
+
+    public DispatchStrategy getDispatchStrategy() {
+        return dispatchStrategy;
+    }
+
+    public Reference getReference() {
+        return reference;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Getting a snapshot of the collected statistics.
+     * 
+     * @return The snapshot or null if collecting statistics is not enabled.
+     */
+    public ReferenceStatistics getStatistics() {
+        InvocationStatistics currentStatistics = statistics;
+        if (currentStatistics == null) {
+            return null;
+        }
+        return currentStatistics.snapshot();
+    }
+
+    public boolean isStatisticsEnabled() {
+        return statistics != null;
+    }
+
+    /**
+     * Setting which methods are coalesced. If a method is coalesced and no service is available, the calls of the
+     * method with equal arguments wait together and the service is called only once for them.
+     * 
+     * @param callCoalescingPredicate
+     *            Decides which methods are coalesced or null if no calls should be coalesced.
+     */
+    public void setCallCoalescingPredicate(final Predicate<Method> callCoalescingPredicate) {
+        this.callCoalescingPredicate = callCoalescingPredicate;
+    }
+
+    /**
+     * Setting the limit of the concurrent calls of the reference. The calls that already hold a slot of the previous
+     * limiter release it there.
+     * 
+     * @param concurrencyLimit
+     *            The limit or null if the calls should not be limited.
+     */
+    public void setConcurrencyLimit(final ConcurrencyLimit concurrencyLimit) {
+        concurrencyLimiter = (concurrencyLimit == null) ? null : new ConcurrencyLimiter(concurrencyLimit);
+    }
+
+    /**
+     * Setting the limit of the concurrent calls of a method. The limit of the method is applied before the limit of
+     * the reference.
+     * 
+     * @param method
+     *            The method of the proxy object.
+     * @param concurrencyLimit
+     *            The limit or null if the calls of the method should not be limited.
+     */
+    public void setConcurrencyLimit(final Method method, final ConcurrencyLimit concurrencyLimit) {
+        methodConcurrencyLimitersLock.lock();
+        try {
+            Map<Method, ConcurrencyLimiter> newLimiters =
+                    new HashMap<Method, ConcurrencyLimiter>(methodConcurrencyLimiters);
+            if (concurrencyLimit == null) {
+                newLimiters.remove(method);
+            } else {
+                newLimiters.put(method, new ConcurrencyLimiter(concurrencyLimit));
+            }
+            methodConcurrencyLimiters = newLimiters.isEmpty() ? Collections.<Method, ConcurrencyLimiter> emptyMap()
+                    : newLimiters;
+        } finally {
+            methodConcurrencyLimitersLock.unlock();
+        }
+    }
+
+    /**
+     * Setting the strategy that selects the service that is called if more services are tracked.
+     * 
+     * @param dispatchStrategy
+     *            The strategy.
+     * @throws IllegalArgumentException
+     *             if the strategy is null.
+     */
+    public void setDispatchStrategy(final DispatchStrategy dispatchStrategy) {
+        if (dispatchStrategy == null) {
+            throw new IllegalArgumentException("The dispatch strategy cannot be null");
+        }
+        this.dispatchStrategy = dispatchStrategy;
+    }
+
+    /**
+     * Setting which methods are called on an other service if the call of the selected service fails.
+     * 
+     * @param failoverPredicate
+     *            Decides which methods are retried or null if there should be no failover.
+     */
+    public void setFailoverPredicate(final Predicate<Method> failoverPredicate) {
+        this.failoverPredicate = failoverPredicate;
+    }
+
+    /**
+     * Setting the filter that is shown in the messages of the exceptions when the filter of the reference is replaced.
+     * 
+     * @param filter
+     *            The filter represented as a string.
+     */
+    public void setFilter(final String filter) {
+        notOpenedMessage = "Reference is not opened. Filter of reference: '" + filter + "'.";
+        this.filter = filter;
+        serviceTrackerCustomizer.setFilter(filter);
+    }
+
+    /**
+     * Setting which methods are hedged and when.
+     * 
+     * @param hedgingPolicy
+     *            The policy or null if no calls should be hedged.
+     */
+    public void setHedgingPolicy(final HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    /**
+     * Setting the interceptors of the calls.
+     * 
+     * @param interceptors
+     *            The interceptors in the order of the calls or null if the calls are not intercepted.
+     */
+    public void setInterceptors(final CallInterceptor[] interceptors) {
+        this.interceptors = interceptors;
     }
 
     public void setServiceNotAvailableHandler(final ServiceUnavailableHandler serviceNotAvailableHandler) {
         this.serviceNotAvailableHandler = serviceNotAvailableHandler;
     }
+
+    /**
+     * Enabling or disabling the collection of statistics. Disabling drops the statistics that were collected so far.
+     * 
+     * @param enabled
+     *            True if statistics should be collected.
+     */
+    public void setStatisticsEnabled(final boolean enabled) {
+        if (!enabled) {
+            statistics = null;
+        } else if (statistics == null) {
+            statistics = new InvocationStatistics(filter);
+        }
+    }
+
+    /**
+     * Waiting for a future result of a service call and throwing the original exception if the call failed.
+     * 
+     * @param result
+     *            The future result.
+     * @return The result of the call.
+     * @throws Throwable
+     *             if the service call threw anything or the thread is interrupted.
+     */
+    private Object waitForResult(final CompletableFuture<Object> result) throws Throwable {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
 }
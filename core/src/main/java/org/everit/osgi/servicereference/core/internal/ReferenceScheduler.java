@@ -0,0 +1,89 @@
+package org.everit.osgi.servicereference.core.internal;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.servicereference.core.internal.HashedWheelTimer.Timeout;
+
+/**
+ * The timer that is shared by all of the references to expire the requests that are waiting for a service. A single
+ * daemon thread serves every reference and the thread stops when there is nothing to do for a while so it does not
+ * keep the classes of a stopped bundle alive.
+ */
+public final class ReferenceScheduler {
+
+    /**
+     * The duration of a tick of the timer in milliseconds. This is the precision of the timeouts.
+     */
+    private static final long TICK_DURATION = 10;
+
+    /**
+     * The number of buckets of the timer wheel.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * The time in milliseconds after the idle thread of the timer stops.
+     */
+    private static final long IDLE_TIME = 60000;
+
+    /**
+     * The timer that runs the scheduled tasks.
+     */
+    private static final HashedWheelTimer TIMER = new HashedWheelTimer("ServiceReference-Scheduler", TICK_DURATION,
+            WHEEL_SIZE, IDLE_TIME, TimeUnit.MILLISECONDS);
+
+    /**
+     * Scheduling a task that runs once after the delay.
+     * 
+     * @param task
+     *            The task. It should not block as all of the references share the same thread.
+     * @param delay
+     *            The delay in milliseconds.
+     * @return The timeout that can be used to cancel the task.
+     */
+    public static Timeout schedule(final Runnable task, final long delay) {
+        return TIMER.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Scheduling a task that is passed to an executor after the delay. Tasks that complete futures should be scheduled
+     * this way as completing a future runs the callbacks of the caller that must not run on the shared thread.
+     * 
+     * @param task
+     *            The task.
+     * @param delay
+     *            The delay in milliseconds.
+     * @param executor
+     *            The executor that runs the task.
+     * @return The timeout that can be used to cancel the task.
+     */
+    public static Timeout schedule(final Runnable task, final long delay, final Executor executor) {
+        return TIMER.schedule(() -> executor.execute(task), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private ReferenceScheduler() {
+    }
+}
@@ -22,42 +22,211 @@ package org.everit.osgi.servicereference.core.internal;
  */
 
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.everit.osgi.servicereference.core.DispatchStrategy;
+import org.everit.osgi.servicereference.core.ReferenceClosedException;
 import org.everit.osgi.servicereference.core.WarmUpListener;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceObjects;
 import org.osgi.framework.ServiceReference;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
 
 /**
  * {@link ServiceTrackerCustomizer} that checks the provided interfaces when it is available and adds it to the tracker
- * if all the {@link #requiredInterfaces} are implemented by the service object.
+ * if all the {@link #requiredInterfaces} are implemented by the service object. The object that is passed to the
+ * tracker is the {@link TrackedService}. While the filter of the reference is replaced, two trackers use the same
+ * customizer: a service that matches both filters is tracked once and it is removed when both trackers removed it.
  */
 public class ReferenceTrackerCustomizer implements ServiceTrackerCustomizer<Object, Object> {
 
+    /**
+     * Ordering the tracked services from the best ranked to the worst ranked one.
+     */
+    private static final Comparator<TrackedService> RANKING_ORDER = new Comparator<TrackedService>() {
+
+        @Override
+        public int compare(final TrackedService o1, final TrackedService o2) {
+            return o2.getReference().compareTo(o1.getReference());
+        }
+    };
+
+    /**
+     * Empty array that is used when there is no tracked service.
+     */
+    private static final TrackedService[] NO_SERVICES = new TrackedService[0];
+
     /**
      * The interfaces that have to be implemented by the service objects that are tracked.
      */
     private final Class<?>[] requiredInterfaces;
 
+    /**
+     * The names of the {@link #requiredInterfaces}.
+     */
+    private final String[] requiredInterfaceNames;
+
+    /**
+     * The result of checking whether a class implements all of the {@link #requiredInterfaces}. The result is
+     * calculated once for every class of the service objects and stored together with the class so it is released when
+     * the class is unloaded.
+     */
+    private final ClassValue<Boolean> compatibleClasses = new ClassValue<Boolean>() {
+
+        @Override
+        protected Boolean computeValue(final Class<?> type) {
+            for (Class<?> requiredInterface : requiredInterfaces) {
+                if (!requiredInterface.isAssignableFrom(type)) {
+                    return Boolean.FALSE;
+                }
+            }
+            return Boolean.TRUE;
+        }
+    };
+
     /**
      * The context of the bundle that references the service.
      */
     private final BundleContext bundleContext;
 
+    /**
+     * The cache of the handles that are used to call the tracked service objects.
+     */
+    private final MethodHandleCache methodHandleCache;
+
+    /**
+     * The cached results of the calls that are dropped when the tracked services change.
+     */
+    private final ResultCaches resultCaches;
+
+    /**
+     * The circuit breaker of the reference or null if the circuit breaker is not enabled. The circuit is closed when a
+     * service is added.
+     */
+    private volatile CircuitBreaker circuitBreaker;
+
+    /**
+     * True if the service objects of the services that are registered with all of the {@link #requiredInterfaces} are
+     * got only when they are needed for the first time.
+     */
+    private volatile boolean lazyServiceAcquisition = false;
+
+    /**
+     * Releases the service objects if they are not used for a while or null if the service objects are kept as long
+     * as the services are tracked.
+     */
+    private volatile IdleServiceReleaser idleServiceReleaser;
+
+    /**
+     * The maximum number of instances of a prototype scoped service that are called at the same time or zero if the
+     * prototype scoped services are called via a single service object as the other services.
+     */
+    private volatile int servicePoolSize = 0;
+
+    /**
+     * The time in milliseconds a call waits for a pooled instance if all of them are used.
+     */
+    private volatile long servicePoolTimeout = 0;
+
     /**
      * The warm up listener that is called when the first service is added by this customizer.
      */
     private WarmUpListener warmUpListener;
 
     /**
-     * A flag that shows whether warmup listener has been called or not.
+     * A flag that shows whether warmup listener has been called or not. It is set while {@link #mutex} is held by the
+     * thread that calls the listener.
+     */
+    private volatile boolean warmedUp;
+
+    /**
+     * Lock to handle thread safety. A {@link ReentrantLock} is used instead of a monitor so a virtual thread that
+     * delivers a service event does not pin its carrier thread while it waits for the lock.
+     */
+    private final ReentrantLock mutex = new ReentrantLock();
+
+    /**
+     * The services that are tracked by this customizer. The map should be accessed only while {@link #mutex} is held.
+     */
+    private final Map<ServiceReference<Object>, TrackedService> trackedServices =
+            new HashMap<ServiceReference<Object>, TrackedService>();
+
+    /**
+     * The best ranked service of {@link #trackedServices} or null if there is no tracked service. It is recalculated
+     * every time the tracked services change so the proxy calls can read it without any locking.
+     */
+    private volatile Object currentService;
+
+    /**
+     * The best ranked service of {@link #trackedServices} or null if there is no tracked service. If the service is
+     * acquired lazily, the {@link #currentService} is null until the service object is got.
+     */
+    private volatile TrackedService currentTrackedService;
+
+    /**
+     * The values of {@link #trackedServices} ordered by their ranking. The array is never modified, it is replaced
+     * every time the tracked services change so the services can be selected without any locking.
+     */
+    private volatile TrackedService[] serviceArray = NO_SERVICES;
+
+    /**
+     * The counter that is used to select the next service with the {@link DispatchStrategy#ROUND_ROBIN} strategy.
+     */
+    private final AtomicInteger roundRobinCounter = new AtomicInteger();
+
+    /**
+     * The ring that is used to select the services with the affinity strategies. It is built at the first selection
+     * after the {@link #serviceArray} changed.
+     */
+    private volatile ConsistentHashRing affinityRing;
+
+    /**
+     * The requests that wait for a service to be available. They are completed as soon as a service is added or
+     * exceptionally when this customizer is reset.
+     */
+    private final Set<CompletableFuture<Object>> serviceRequests =
+            ConcurrentHashMap.<CompletableFuture<Object>> newKeySet();
+
+    /**
+     * The filter of the reference that is shown in the exception of the {@link #serviceRequests} that are pending when
+     * this customizer is reset.
+     */
+    private volatile String filter;
+
+    /**
+     * The timeout of the reference.
      */
-    private boolean warmedUp;
+    private final long timeout;
 
     /**
-     * Simple object to handle thread safety.
+     * The lock of {@link #serviceAvailable}.
      */
-    private volatile Object mutex = new Object();
+    private final ReentrantLock waitLock = new ReentrantLock();
+
+    /**
+     * The condition that the threads that wait for a service are parked on. It is signalled once when a service is
+     * added.
+     */
+    private final Condition serviceAvailable = waitLock.newCondition();
+
+    /**
+     * The number of threads waiting on {@link #serviceAvailable}. Modified only while {@link #waitLock} is held. Used
+     * to avoid locking when a service is added and nobody waits for it.
+     */
+    private volatile int waitingThreadCount = 0;
 
     /**
      * A thread local variable that holds the service object during the warmup listener call.
@@ -71,49 +240,206 @@ public class ReferenceTrackerCustomizer implements ServiceTrackerCustomizer<Obje
      *            Value of {@link #bundleContext}.
      * @param requiredInterfaces
      *            Value of {@link #requiredInterfaces}.
+     * @param methodHandleCache
+     *            Value of {@link #methodHandleCache}.
+     * @param resultCaches
+     *            Value of {@link #resultCaches}.
+     * @param timeout
+     *            Value of {@link #timeout}.
      * 
      * @throws IllegalArgumentException
      *             if no interface is specified. At least one interface has to be specified as the tracked service will
      *             be proxied and the proxy object will implement the required interfaces.
      */
-    public ReferenceTrackerCustomizer(final BundleContext bundleContext, final Class<?>[] requiredInterfaces) {
+    public ReferenceTrackerCustomizer(final BundleContext bundleContext, final Class<?>[] requiredInterfaces,
+            final MethodHandleCache methodHandleCache, final ResultCaches resultCaches, final long timeout) {
         this.requiredInterfaces = Arrays.copyOf(requiredInterfaces, requiredInterfaces.length);
+        requiredInterfaceNames = new String[requiredInterfaces.length];
+        for (int i = 0; i < requiredInterfaces.length; i++) {
+            requiredInterfaceNames[i] = requiredInterfaces[i].getName();
+        }
         this.bundleContext = bundleContext;
+        this.methodHandleCache = methodHandleCache;
+        this.resultCaches = resultCaches;
+        this.timeout = timeout;
     }
 
     /**
      * Adding a service to the tracker only if all the {@link #requiredInterfaces} are implemented by the service
-     * object. <br>
+     * object. The objectClass property of the service is checked first: a service that is registered with the name of
+     * a required interface but with a different class of that name is rejected without getting the service object and
+     * a service that is registered with all of the required interfaces is accepted without checking the class of the
+     * service object. Otherwise the class of the service object is checked and the result is cached. If the services
+     * are acquired lazily and the service is accepted based on its objectClass property, the service object is not got
+     * until it is needed. If the services are pooled, a {@link ServicePool} is tracked for the prototype scoped
+     * services instead of a single service object. If the service is tracked already by an other tracker, it is not got
+     * again. <br>
      * <br>
      * {@inheritDoc}
      */
     @Override
     public Object addingService(final ServiceReference<Object> reference) {
-        boolean implementsAll = true;
+        mutex.lock();
+        try {
+            TrackedService trackedService = trackedServices.get(reference);
+            if (trackedService != null) {
+                trackedService.addTracker();
+                return trackedService;
+            }
+        } finally {
+            mutex.unlock();
+        }
 
-        Object service = bundleContext.getService(reference);
-        Class<? extends Object> classOfService = service.getClass();
+        Boolean compatible = checkObjectClass(reference);
+        if (Boolean.FALSE.equals(compatible)) {
+            return null;
+        }
+
+        if ((servicePoolSize > 0) && Constants.SCOPE_PROTOTYPE.equals(reference.getProperty(Constants.SERVICE_SCOPE))) {
+            return addServicePool(reference, compatible);
+        }
 
-        for (int i = 0, n = requiredInterfaces.length; (i < n) && implementsAll; i++) {
-            implementsAll = (requiredInterfaces[i].isAssignableFrom(classOfService));
+        if (lazyServiceAcquisition && Boolean.TRUE.equals(compatible) && (warmedUp || (warmUpListener == null))) {
+            return addTrackedService(new TrackedService(bundleContext, reference));
+        }
+
+        Object service = bundleContext.getService(reference);
+        if (service == null) {
+            return null;
         }
+        boolean implementsAll = (compatible != null) || compatibleClasses.get(service.getClass());
         if (implementsAll) {
             callWarmUpListenerIfNecessary(service);
-            return service;
+            return addTrackedService(new TrackedService(bundleContext, reference, service));
         } else {
             bundleContext.ungetService(reference);
             return null;
         }
     }
 
+    /**
+     * Adding a prototype scoped service whose instances are pooled. If the service is not registered with all of the
+     * {@link #requiredInterfaces}, an instance is created to check its class and it remains in the pool.
+     * 
+     * @param reference
+     *            The reference of the service.
+     * @param compatible
+     *            The result of {@link #checkObjectClass(ServiceReference)}.
+     * @return The tracked service or null if the service is not compatible or it is unregistered meanwhile.
+     */
+    private TrackedService addServicePool(final ServiceReference<Object> reference, final Boolean compatible) {
+        ServiceObjects<Object> serviceObjects = bundleContext.getServiceObjects(reference);
+        if (serviceObjects == null) {
+            return null;
+        }
+        ServicePool servicePool = new ServicePool(serviceObjects, servicePoolSize, servicePoolTimeout);
+        if (compatible == null) {
+            Object instance = servicePool.tryBorrow();
+            if (instance == null) {
+                return null;
+            }
+            boolean implementsAll = compatibleClasses.get(instance.getClass());
+            servicePool.giveBack(instance);
+            if (!implementsAll) {
+                servicePool.close();
+                return null;
+            }
+        }
+        callWarmUpListenerIfNecessary(servicePool);
+        return addTrackedService(new TrackedService(bundleContext, reference, servicePool));
+    }
+
+    /**
+     * Registering a request that will be completed with the service object as soon as a service is available. If a
+     * service is already available the request is completed immediately.
+     * 
+     * @param request
+     *            The request.
+     */
+    public void addServiceRequest(final CompletableFuture<Object> request) {
+        serviceRequests.add(request);
+        // The service might have been added since the caller checked it.
+        completeServiceRequests(getService());
+    }
+
+    /**
+     * Adding an accepted service to the {@link #trackedServices} and notifying the callers that wait for a service. If
+     * an other tracker added the same service meanwhile, that one is kept and the service object of the new one is
+     * released.
+     * 
+     * @param trackedService
+     *            The service.
+     * @return The service that is tracked.
+     */
+    private TrackedService addTrackedService(final TrackedService trackedService) {
+        TrackedService existingTrackedService;
+        mutex.lock();
+        try {
+            existingTrackedService = trackedServices.get(trackedService.getReference());
+            if (existingTrackedService != null) {
+                existingTrackedService.addTracker();
+            } else {
+                trackedServices.put(trackedService.getReference(), trackedService);
+                updateCurrentService();
+                resultCaches.invalidate();
+            }
+        } finally {
+            mutex.unlock();
+        }
+        if (existingTrackedService != null) {
+            releaseService(trackedService);
+            return existingTrackedService;
+        }
+        CircuitBreaker currentCircuitBreaker = circuitBreaker;
+        if (currentCircuitBreaker != null) {
+            currentCircuitBreaker.close();
+        }
+        IdleServiceReleaser currentIdleServiceReleaser = idleServiceReleaser;
+        if ((currentIdleServiceReleaser != null) && (trackedService.getServiceIfAcquired() != null)) {
+            currentIdleServiceReleaser.scheduleCheck();
+        }
+        if (!serviceRequests.isEmpty()) {
+            completeServiceRequests(getService());
+        }
+        signalWaitingThreads();
+        return trackedService;
+    }
+
+    /**
+     * Getting the service object of a lazily acquired service and publishing it as the {@link #currentService} if the
+     * service is still the best ranked one.
+     * 
+     * @param trackedService
+     *            The best ranked service.
+     * @return The service object or null if the service object could not be got.
+     */
+    private Object acquireCurrentService(final TrackedService trackedService) {
+        Object service = trackedService.getService();
+        if (service != null) {
+            mutex.lock();
+            try {
+                if (currentTrackedService == trackedService) {
+                    currentService = service;
+                }
+            } finally {
+                mutex.unlock();
+            }
+        }
+        return service;
+    }
+
     private void callWarmUpListenerIfNecessary(final Object service) {
         if (!warmedUp && (warmUpListener != null)) {
             WarmUpListener tmp = warmUpListener;
             boolean callIt = false;
-            synchronized (mutex) {
+            mutex.lock();
+            try {
                 if (!warmedUp && (tmp != null)) {
                     callIt = true;
+                    warmedUp = true;
                 }
+            } finally {
+                mutex.unlock();
             }
 
             if (callIt) {
@@ -124,26 +450,477 @@ public class ReferenceTrackerCustomizer implements ServiceTrackerCustomizer<Obje
         }
     }
 
+    /**
+     * Checking whether the service is compatible with the {@link #requiredInterfaces} based on the objectClass
+     * property of the service. The framework guarantees that the service object is an instance of all of the classes
+     * that it is registered with. A class cannot implement two different interfaces with the same name so if the
+     * service is registered with the name of a required interface but with an other class of that name (the source of
+     * the package is different for the registrant bundle), the service object cannot be compatible.
+     * 
+     * @param reference
+     *            The reference of the service.
+     * @return True if the service object implements all of the required interfaces for sure, false if it does not
+     *         implement them for sure and null if the class of the service object has to be checked.
+     */
+    private Boolean checkObjectClass(final ServiceReference<Object> reference) {
+        Object objectClassProperty = reference.getProperty(Constants.OBJECTCLASS);
+        if (!(objectClassProperty instanceof String[])) {
+            return null;
+        }
+        String[] objectClass = (String[]) objectClassProperty;
+        Bundle bundle = bundleContext.getBundle();
+        boolean allRegistered = true;
+        for (String requiredInterfaceName : requiredInterfaceNames) {
+            if (contains(objectClass, requiredInterfaceName)) {
+                if (!reference.isAssignableTo(bundle, requiredInterfaceName)) {
+                    return Boolean.FALSE;
+                }
+            } else {
+                allRegistered = false;
+            }
+        }
+        return allRegistered ? Boolean.TRUE : null;
+    }
+
+    /**
+     * Completing all of the waiting {@link #serviceRequests} with the service object.
+     * 
+     * @param service
+     *            The service object or null in which case nothing happens.
+     */
+    private void completeServiceRequests(final Object service) {
+        if ((service == null) || serviceRequests.isEmpty()) {
+            return;
+        }
+        for (CompletableFuture<Object> request : serviceRequests) {
+            if (serviceRequests.remove(request)) {
+                request.complete(service);
+            }
+        }
+    }
+
+    private static boolean contains(final String[] array, final String value) {
+        for (String element : array) {
+            if (value.equals(element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public IdleServiceReleaser getIdleServiceReleaser() {
+        return idleServiceReleaser;
+    }
+
+    /**
+     * Getter of the {@link #currentService}. The function does not block so it can be called on every proxy call,
+     * except the first call after a lazily acquired service became the best ranked one: then the service object is got
+     * and published as the {@link #currentService}.
+     * 
+     * @return The best ranked service object or null if there is no tracked service.
+     */
+    public Object getService() {
+        Object service = currentService;
+        if (service == null) {
+            TrackedService trackedService = currentTrackedService;
+            if (trackedService != null) {
+                service = acquireCurrentService(trackedService);
+            }
+        }
+        return service;
+    }
+
+    public int getServicePoolSize() {
+        return servicePoolSize;
+    }
+
+    public boolean isLazyServiceAcquisition() {
+        return lazyServiceAcquisition;
+    }
+
+    /**
+     * The ranking of the service might have changed so the {@link #currentService} is recalculated and the cached
+     * results are dropped. <br>
+     * <br>
+     * {@inheritDoc}
+     */
     @Override
     public void modifiedService(final ServiceReference<Object> reference, final Object service) {
-        // Do nothing
-
+        mutex.lock();
+        try {
+            updateCurrentService();
+            resultCaches.invalidate();
+        } finally {
+            mutex.unlock();
+        }
     }
 
+    /**
+     * Removing the service and releasing the service object if it was got from the framework or the instances if they
+     * are pooled. If the service is tracked by an other tracker as well, it remains tracked. <br>
+     * <br>
+     * {@inheritDoc}
+     */
     @Override
     public void removedService(final ServiceReference<Object> reference, final Object service) {
-        bundleContext.ungetService(reference);
+        TrackedService trackedService = (TrackedService) service;
+        mutex.lock();
+        try {
+            if (trackedServices.get(reference) == trackedService) {
+                if (!trackedService.removeTracker()) {
+                    return;
+                }
+                trackedServices.remove(reference);
+                updateCurrentService();
+                resultCaches.invalidate();
+            }
+        } finally {
+            mutex.unlock();
+        }
+        releaseService(trackedService);
     }
 
     /**
-     * Resetting this customizer and taking it to it's initial state.
+     * Releasing all of the acquired service objects while the services remain tracked. The proxy calls that start
+     * after the service objects are taken away get them from the framework again. If a call starts while the service
+     * objects are taken away, they are given back and nothing is released as the call might use them. The pools of
+     * the prototype scoped services remain tracked, only their idle instances are released.
+     * 
+     * @param releaser
+     *            The releaser that counts the calls in progress.
+     * @return True if the service objects are released, false if a call was in progress.
+     */
+    public boolean releaseIdleServices(final IdleServiceReleaser releaser) {
+        TrackedService[] services;
+        Object[] detachedServices;
+        mutex.lock();
+        try {
+            if (releaser.getInFlightCount() != 0) {
+                return false;
+            }
+            services = serviceArray;
+            detachedServices = new Object[services.length];
+            // The calls that start from now on do not get the current service objects
+            currentService = null;
+            for (int i = 0; i < services.length; i++) {
+                if (!(services[i].getServiceIfAcquired() instanceof ServicePool)) {
+                    detachedServices[i] = services[i].detach();
+                }
+            }
+            if (releaser.getInFlightCount() != 0) {
+                for (int i = 0; i < services.length; i++) {
+                    if ((detachedServices[i] != null) && services[i].reattach(detachedServices[i])) {
+                        detachedServices[i] = null;
+                    }
+                }
+                currentService = (currentTrackedService != null) ? currentTrackedService.getServiceIfAcquired()
+                        : null;
+                releaseDetachedServices(services, detachedServices);
+                return false;
+            }
+        } finally {
+            mutex.unlock();
+        }
+        releaseDetachedServices(services, detachedServices);
+        for (TrackedService trackedService : services) {
+            Object service = trackedService.getServiceIfAcquired();
+            if (service instanceof ServicePool) {
+                ((ServicePool) service).releaseIdleInstances();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Marking a service as not tracked anymore and releasing its service object or the instances of its pool.
+     * 
+     * @param trackedService
+     *            The service.
+     */
+    private void releaseService(final TrackedService trackedService) {
+        Object service = trackedService.getServiceIfAcquired();
+        if (!trackedService.release()) {
+            return;
+        }
+        if (service instanceof ServicePool) {
+            ((ServicePool) service).close();
+        } else {
+            bundleContext.ungetService(trackedService.getReference());
+        }
+    }
+
+    private void releaseDetachedServices(final TrackedService[] services, final Object[] detachedServices) {
+        for (int i = 0; i < services.length; i++) {
+            if (detachedServices[i] != null) {
+                bundleContext.ungetService(services[i].getReference());
+            }
+        }
+    }
+
+    /**
+     * Removing a request that will not wait for the service anymore (e.g. because it timed out).
+     * 
+     * @param request
+     *            The request.
+     */
+    public void removeServiceRequest(final CompletableFuture<Object> request) {
+        serviceRequests.remove(request);
+    }
+
+    /**
+     * Selecting the best ranked tracked service that is not the specified one. The function does not block so it can
+     * be called on every proxy call.
+     *
+     * @param service
+     *            The service object that should not be selected.
+     * @return The selected service object or null if no other service is tracked.
+     */
+    public Object selectAlternative(final Object service) {
+        TrackedService[] services = serviceArray;
+        for (int i = 0, n = services.length; i < n; i++) {
+            Object alternative = services[i].getService();
+            if ((alternative != null) && (alternative != service)) {
+                return alternative;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Selecting the service of a key on the {@link #affinityRing}. The ring is rebuilt if the tracked services changed
+     * since it was built.
+     * 
+     * @param services
+     *            The tracked services.
+     * @param hash
+     *            The mixed hash of the key.
+     * @return The selected service.
+     */
+    private TrackedService selectAffineService(final TrackedService[] services, final int hash) {
+        ConsistentHashRing ring = affinityRing;
+        if ((ring == null) || !ring.isBuiltFrom(services)) {
+            ring = new ConsistentHashRing(services);
+            affinityRing = ring;
+        }
+        return ring.select(hash);
+    }
+
+    /**
+     * Selecting one of the tracked services with the specified strategy. The function does not block so it can be
+     * called on every proxy call.
+     * 
+     * @param dispatchStrategy
+     *            The strategy of the selection.
+     * @param args
+     *            The arguments of the call that are used by the {@link DispatchStrategy#ARGUMENT_AFFINITY} strategy.
+     * @return The selected service or null if there is no tracked service.
+     */
+    public TrackedService selectService(final DispatchStrategy dispatchStrategy, final Object[] args) {
+        TrackedService[] services = serviceArray;
+        int n = services.length;
+        if (n == 0) {
+            return null;
+        }
+        if (n == 1) {
+            return services[0];
+        }
+        switch (dispatchStrategy) {
+        case ROUND_ROBIN:
+            return services[Math.floorMod(roundRobinCounter.getAndIncrement(), n)];
+        case RANDOM:
+            return services[ThreadLocalRandom.current().nextInt(n)];
+        case LEAST_IN_FLIGHT:
+            TrackedService leastBusy = services[0];
+            int leastInFlightCount = leastBusy.getInFlightCount();
+            for (int i = 1; (i < n) && (leastInFlightCount > 0); i++) {
+                int inFlightCount = services[i].getInFlightCount();
+                if (inFlightCount < leastInFlightCount) {
+                    leastBusy = services[i];
+                    leastInFlightCount = inFlightCount;
+                }
+            }
+            return leastBusy;
+        case THREAD_AFFINITY:
+            return selectAffineService(services, ConsistentHashRing.mix(Thread.currentThread().getId()));
+        case ARGUMENT_AFFINITY:
+            if ((args == null) || (args.length == 0)) {
+                return selectAffineService(services, ConsistentHashRing.mix(Thread.currentThread().getId()));
+            }
+            return selectAffineService(services, ConsistentHashRing.mix(Objects.hashCode(args[0])));
+        default:
+            return services[0];
+        }
+    }
+
+    /**
+     * Resetting this customizer and taking it to it's initial state. The {@link #serviceRequests} that are pending are
+     * completed exceptionally with a {@link ReferenceClosedException} so they do not wait for a service forever and
+     * the cached method handles are dropped so the classes of the services that were tracked are not held.
      */
     public void reset() {
         warmedUp = false;
+        mutex.lock();
+        try {
+            trackedServices.clear();
+            currentService = null;
+            currentTrackedService = null;
+            serviceArray = NO_SERVICES;
+            affinityRing = null;
+            resultCaches.invalidate();
+        } finally {
+            mutex.unlock();
+        }
+        methodHandleCache.invalidate();
+        if (!serviceRequests.isEmpty()) {
+            ReferenceClosedException failure = new ReferenceClosedException(filter, timeout);
+            for (CompletableFuture<Object> request : serviceRequests) {
+                if (serviceRequests.remove(request)) {
+                    request.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waiting until a service is available. The waiting threads are parked on the {@link #serviceAvailable} condition
+     * of this customizer.
+     * 
+     * @param timeout
+     *            The maximum time to wait in milliseconds. Zero means waiting indefinitely.
+     * @return The service object or null if no service was available until the timeout.
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting.
+     */
+    public Object waitForService(final long timeout) throws InterruptedException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout value is negative");
+        }
+        Object service = getService();
+        if (service != null) {
+            return service;
+        }
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        waitLock.lock();
+        try {
+            waitingThreadCount++;
+            try {
+                service = getService();
+                while (service == null) {
+                    if (timeout == 0) {
+                        serviceAvailable.await();
+                    } else if (remaining > 0) {
+                        remaining = serviceAvailable.awaitNanos(remaining);
+                    } else {
+                        return null;
+                    }
+                    service = getService();
+                }
+                return service;
+            } finally {
+                waitingThreadCount--;
+            }
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public void setFilter(final String filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Setting the time after the service objects are released if they are not used.
+     * 
+     * @param idleTimeout
+     *            The idle timeout in milliseconds or zero if the service objects should be kept as long as the services
+     *            are tracked.
+     * @throws IllegalArgumentException
+     *             if the idle timeout is negative.
+     */
+    public void setIdleTimeout(final long idleTimeout) {
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("The idle timeout cannot be negative");
+        }
+        if (idleTimeout == 0) {
+            idleServiceReleaser = null;
+            return;
+        }
+        IdleServiceReleaser newIdleServiceReleaser = new IdleServiceReleaser(this, idleTimeout);
+        idleServiceReleaser = newIdleServiceReleaser;
+        newIdleServiceReleaser.scheduleCheck();
+    }
+
+    /**
+     * Setting whether the service objects are got only when they are needed for the first time. The setting affects
+     * only the services that are added after the call.
+     * 
+     * @param lazyServiceAcquisition
+     *            True if the service objects should be acquired lazily.
+     */
+    public void setLazyServiceAcquisition(final boolean lazyServiceAcquisition) {
+        this.lazyServiceAcquisition = lazyServiceAcquisition;
+    }
+
+    /**
+     * Setting whether the instances of the prototype scoped services are pooled. The setting affects only the services
+     * that are added after the call.
+     * 
+     * @param servicePoolSize
+     *            The maximum number of instances of a service or zero if the instances should not be pooled.
+     * @param servicePoolTimeout
+     *            The time in milliseconds a call waits for an instance if all of them are used. Zero means waiting
+     *            indefinitely.
+     * @throws IllegalArgumentException
+     *             if the size of the pool is negative.
+     */
+    public void setServicePoolSize(final int servicePoolSize, final long servicePoolTimeout) {
+        if (servicePoolSize < 0) {
+            throw new IllegalArgumentException("The size of the service pool cannot be negative");
+        }
+        this.servicePoolTimeout = servicePoolTimeout;
+        this.servicePoolSize = servicePoolSize;
     }
 
     public void setWarmUpListener(final WarmUpListener warmUpListener) {
         this.warmUpListener = warmUpListener;
     }
 
+    /**
+     * Waking up all of the threads that wait for a service with a single signal.
+     */
+    private void signalWaitingThreads() {
+        if (waitingThreadCount == 0) {
+            return;
+        }
+        waitLock.lock();
+        try {
+            serviceAvailable.signalAll();
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    /**
+     * Ordering the tracked services by their ranking into a new {@link #serviceArray} and selecting the best ranked
+     * service the same way as {@link org.osgi.util.tracker.ServiceTracker#getService()} does: the one with the highest
+     * ranking and in case of equal rankings the one with the lowest service id. The function must be called while
+     * {@link #mutex} is held.
+     */
+    private void updateCurrentService() {
+        TrackedService[] services = trackedServices.values().toArray(new TrackedService[trackedServices.size()]);
+        Arrays.sort(services, RANKING_ORDER);
+        serviceArray = services;
+        TrackedService bestService = (services.length > 0) ? services[0] : null;
+        currentTrackedService = bestService;
+        currentService = (bestService != null) ? bestService.getServiceIfAcquired() : null;
+    }
+
 }
@@ -0,0 +1,226 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size bounded cache of the results of one method of the proxy object. The least recently used results are evicted if
+ * the cache is full and the results expire after a time to live. The cache is invalidated when the tracked services
+ * change.<br>
+ * <br>
+ * The results are found without locking so the calls that get their result from the cache do not wait for each other.
+ * The recency of the results is measured by a logical clock that is advanced by the stores: every hit records the
+ * current value of the clock in the result (only if it changed, so a frequently used result is not written by every
+ * hit) and the results with the oldest value are evicted by the call that stores a result into the full cache. The
+ * eviction scans all of the results so it evicts a sixteenth of the cache at once to keep the cost of the stores low.
+ */
+public class ResultCache {
+
+    /**
+     * A cached result together with the time it expires and the time it was used last.
+     */
+    private static final class CachedResult {
+
+        private final Object result;
+
+        private final long expirationTime;
+
+        /**
+         * The value of the {@link ResultCache#clock} when the result was used last.
+         */
+        private volatile long accessTime;
+
+        CachedResult(final Object result, final long expirationTime, final long accessTime) {
+            this.result = result;
+            this.expirationTime = expirationTime;
+            this.accessTime = accessTime;
+        }
+    }
+
+    /**
+     * The maximum number of results in the cache.
+     */
+    private final int maximumSize;
+
+    /**
+     * The number of results that are evicted at once when the cache is full.
+     */
+    private final int evictionCount;
+
+    /**
+     * The time in nanoseconds while a result can be used or zero if the results do not expire.
+     */
+    private final long timeToLiveNanos;
+
+    /**
+     * Lock that serializes the modifications of {@link #results} and {@link #generation}. The lookups do not use it.
+     */
+    private final ReentrantLock mutex = new ReentrantLock();
+
+    /**
+     * The cached results.
+     */
+    private final ConcurrentHashMap<CallKey, CachedResult> results;
+
+    /**
+     * The logical time of the accesses that is incremented by every stored result. Modified only while {@link #mutex}
+     * is held.
+     */
+    private volatile long clock = 0;
+
+    /**
+     * Incremented every time the cache is invalidated so results that were calculated by a service that is not
+     * tracked anymore are not stored. Modified only while {@link #mutex} is held.
+     */
+    private volatile long generation = 0;
+
+    /**
+     * Simple constructor.
+     * 
+     * @param maximumSize
+     *            The maximum number of results in the cache.
+     * @param timeToLive
+     *            The time in milliseconds while a result can be used or zero if the results do not expire.
+     * @throws IllegalArgumentException
+     *             if the size is not positive or the time to live is negative.
+     */
+    public ResultCache(final int maximumSize, final long timeToLive) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("The maximum size of the cache must be at least one");
+        }
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("The time to live cannot be negative");
+        }
+        this.maximumSize = maximumSize;
+        evictionCount = Math.max(1, maximumSize / 16);
+        timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLive);
+        results = new ConcurrentHashMap<CallKey, CachedResult>();
+    }
+
+    /**
+     * Evicting the {@link #evictionCount} results that were not used for the longest time. Called while
+     * {@link #mutex} is held.
+     */
+    private void evictLeastRecentlyUsed() {
+        long[] accessTimes = new long[results.size()];
+        int count = 0;
+        for (CachedResult cachedResult : results.values()) {
+            if (count == accessTimes.length) {
+                break;
+            }
+            accessTimes[count++] = cachedResult.accessTime;
+        }
+        if (count <= maximumSize) {
+            return;
+        }
+        Arrays.sort(accessTimes, 0, count);
+        int remaining = Math.min(count - maximumSize + evictionCount - 1, count);
+        long threshold = accessTimes[remaining - 1];
+        Iterator<Map.Entry<CallKey, CachedResult>> iterator = results.entrySet().iterator();
+        while ((remaining > 0) && iterator.hasNext()) {
+            if (iterator.next().getValue().accessTime <= threshold) {
+                iterator.remove();
+                remaining--;
+            }
+        }
+    }
+
+    /**
+     * Getting a result from the cache.
+     * 
+     * @param key
+     *            The method and the arguments of the call.
+     * @param resultHolder
+     *            The array that the result is written into at index zero if it is found.
+     * @return True if the result was found in the cache.
+     */
+    public boolean get(final CallKey key, final Object[] resultHolder) {
+        CachedResult cachedResult = results.get(key);
+        if (cachedResult == null) {
+            return false;
+        }
+        if ((timeToLiveNanos > 0) && ((System.nanoTime() - cachedResult.expirationTime) >= 0)) {
+            results.remove(key, cachedResult);
+            return false;
+        }
+        long now = clock;
+        if (cachedResult.accessTime != now) {
+            cachedResult.accessTime = now;
+        }
+        resultHolder[0] = cachedResult.result;
+        return true;
+    }
+
+    /**
+     * Getting the current generation of the cache that has to be passed to {@link #put(CallKey, Object, long)}.
+     * 
+     * @return The generation.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Dropping all of the cached results.
+     */
+    public void invalidate() {
+        mutex.lock();
+        try {
+            generation++;
+            results.clear();
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Storing a result in the cache if the cache was not invalidated since the call started. The key is copied so the
+     * caller can reuse the array of the arguments.
+     * 
+     * @param key
+     *            The method and the arguments of the call.
+     * @param result
+     *            The result of the call.
+     * @param callGeneration
+     *            The generation of the cache when the call started.
+     */
+    public void put(final CallKey key, final Object result, final long callGeneration) {
+        mutex.lock();
+        try {
+            if (callGeneration == generation) {
+                long now = ++clock;
+                results.put(key.copy(), new CachedResult(result, System.nanoTime() + timeToLiveNanos, now));
+                if (results.size() > maximumSize) {
+                    evictLeastRecentlyUsed();
+                }
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+}
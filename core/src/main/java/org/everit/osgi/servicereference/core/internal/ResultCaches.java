@@ -0,0 +1,107 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The {@link ResultCache}s of the methods of the proxy object of a reference. The map of the caches is replaced when a
+ * cache is added or removed so looking up the cache of a method does not need any locking.
+ */
+public class ResultCaches {
+
+    /**
+     * The caches by the methods. The map is never modified after it is published.
+     */
+    private volatile Map<Method, ResultCache> caches = Collections.<Method, ResultCache> emptyMap();
+
+    /**
+     * Lock that serializes the replacements of {@link #caches}.
+     */
+    private final ReentrantLock mutex = new ReentrantLock();
+
+    /**
+     * Getting the cache of a method.
+     * 
+     * @param method
+     *            The method of the proxy object.
+     * @return The cache or null if the results of the method are not cached.
+     */
+    public ResultCache get(final Method method) {
+        Map<Method, ResultCache> currentCaches = caches;
+        if (currentCaches.isEmpty()) {
+            return null;
+        }
+        return currentCaches.get(method);
+    }
+
+    /**
+     * Dropping all of the cached results of all of the methods. Should be called when the tracked services change.
+     */
+    public void invalidate() {
+        for (ResultCache cache : caches.values()) {
+            cache.invalidate();
+        }
+    }
+
+    /**
+     * Removing the cache of a method.
+     * 
+     * @param method
+     *            The method.
+     */
+    public void remove(final Method method) {
+        mutex.lock();
+        try {
+            if (caches.containsKey(method)) {
+                Map<Method, ResultCache> newCaches = new HashMap<Method, ResultCache>(caches);
+                newCaches.remove(method);
+                caches = newCaches;
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Setting the cache of a method. The previous cache of the method is dropped.
+     * 
+     * @param method
+     *            The method.
+     * @param cache
+     *            The cache.
+     */
+    public void set(final Method method, final ResultCache cache) {
+        mutex.lock();
+        try {
+            Map<Method, ResultCache> newCaches = new HashMap<Method, ResultCache>(caches);
+            newCaches.put(method, cache);
+            caches = newCaches;
+        } finally {
+            mutex.unlock();
+        }
+    }
+}
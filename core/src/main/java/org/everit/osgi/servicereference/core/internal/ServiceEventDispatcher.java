@@ -0,0 +1,274 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * One {@link ServiceListener} that delivers the service events to many {@link TrackedReference}s. The references are
+ * indexed by the objectClass their filter requires so an event is evaluated only against the filters of the references
+ * that can match it. The index is replaced on every change so the events are dispatched without any locking.
+ */
+public class ServiceEventDispatcher implements ServiceListener {
+
+    /**
+     * Empty array that is used if there is no reference without required objectClass.
+     */
+    private static final TrackedReference[] NO_REFERENCES = new TrackedReference[0];
+
+    /**
+     * The context that the listener is registered in.
+     */
+    private final BundleContext bundleContext;
+
+    /**
+     * Lock that serializes the modifications of the index.
+     */
+    private final ReentrantLock mutex = new ReentrantLock();
+
+    /**
+     * The opened references by the objectClass their filter requires. Neither the map nor the arrays are modified
+     * after they are published.
+     */
+    private volatile Map<String, TrackedReference[]> referencesByObjectClass =
+            Collections.<String, TrackedReference[]> emptyMap();
+
+    /**
+     * The opened references whose filter does not require a specific objectClass. They get every event.
+     */
+    private volatile TrackedReference[] unindexedReferences = NO_REFERENCES;
+
+    /**
+     * True if this object is registered as a service listener. Accessed only while {@link #mutex} is held.
+     */
+    private boolean listening = false;
+
+    /**
+     * Simple constructor that sets the fields.
+     * 
+     * @param bundleContext
+     *            Value of {@link #bundleContext}.
+     */
+    public ServiceEventDispatcher(final BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+    }
+
+    private static TrackedReference[] append(final TrackedReference[] original, final List<TrackedReference> added) {
+        TrackedReference[] result = Arrays.copyOf(original, original.length + added.size());
+        for (int i = 0, n = added.size(); i < n; i++) {
+            result[original.length + i] = added.get(i);
+        }
+        return result;
+    }
+
+    private static Map<String, List<TrackedReference>> groupByObjectClass(
+            final Collection<TrackedReference> references) {
+        Map<String, List<TrackedReference>> result = new HashMap<String, List<TrackedReference>>();
+        for (TrackedReference reference : references) {
+            List<TrackedReference> group = result.get(reference.getObjectClass());
+            if (group == null) {
+                group = new ArrayList<TrackedReference>();
+                result.put(reference.getObjectClass(), group);
+            }
+            group.add(reference);
+        }
+        return result;
+    }
+
+    private static TrackedReference[] remove(final TrackedReference[] original,
+            final Set<TrackedReference> removed) {
+        List<TrackedReference> result = new ArrayList<TrackedReference>(original.length);
+        for (TrackedReference reference : original) {
+            if (!removed.contains(reference)) {
+                result.add(reference);
+            }
+        }
+        return result.toArray(new TrackedReference[result.size()]);
+    }
+
+    /**
+     * Closing references. Their events are not dispatched anymore and their tracked services are removed. The service
+     * listener is unregistered if there is no opened reference anymore.
+     * 
+     * @param references
+     *            The references to close.
+     */
+    public void close(final Collection<TrackedReference> references) {
+        removeFromIndex(references);
+        for (TrackedReference reference : references) {
+            reference.close();
+        }
+    }
+
+    private void dispatch(final ServiceReference<?> serviceReference, final Map<String, TrackedReference[]> index,
+            final TrackedReference[] unindexed, final ServiceEvent event) {
+        String[] objectClasses = (String[]) serviceReference.getProperty(Constants.OBJECTCLASS);
+        for (String objectClass : objectClasses) {
+            TrackedReference[] references = index.get(objectClass);
+            if (references != null) {
+                for (TrackedReference reference : references) {
+                    notify(reference, serviceReference, event);
+                }
+            }
+        }
+        for (TrackedReference reference : unindexed) {
+            notify(reference, serviceReference, event);
+        }
+    }
+
+    private void notify(final TrackedReference reference, final ServiceReference<?> serviceReference,
+            final ServiceEvent event) {
+        if (event != null) {
+            reference.serviceChanged(event);
+        } else {
+            @SuppressWarnings("unchecked")
+            ServiceReference<Object> typedServiceReference = (ServiceReference<Object>) serviceReference;
+            reference.serviceFound(typedServiceReference);
+        }
+    }
+
+    /**
+     * Opening references. The service listener is registered if it is not registered yet and the services that are
+     * already available are queried only once for all of the references. The available services are passed to all of
+     * the references before any of them is tracked, so the service events that arrive while the services are tracked
+     * are not lost.
+     * 
+     * @param references
+     *            The references to open.
+     */
+    public void open(final Collection<TrackedReference> references) {
+        if (references.isEmpty()) {
+            return;
+        }
+        Map<String, List<TrackedReference>> groups = groupByObjectClass(references);
+        List<TrackedReference> unindexedGroup = groups.remove(null);
+        for (TrackedReference reference : references) {
+            reference.open();
+        }
+        mutex.lock();
+        try {
+            Map<String, TrackedReference[]> newIndex = new HashMap<String, TrackedReference[]>(referencesByObjectClass);
+            for (Map.Entry<String, List<TrackedReference>> group : groups.entrySet()) {
+                TrackedReference[] original = newIndex.get(group.getKey());
+                newIndex.put(group.getKey(), append((original != null) ? original : NO_REFERENCES, group.getValue()));
+            }
+            referencesByObjectClass = newIndex;
+            if (unindexedGroup != null) {
+                unindexedReferences = append(unindexedReferences, unindexedGroup);
+            }
+            if (!listening) {
+                bundleContext.addServiceListener(this);
+                listening = true;
+            }
+        } finally {
+            mutex.unlock();
+        }
+
+        ServiceReference<?>[] serviceReferences;
+        try {
+            serviceReferences = bundleContext.getServiceReferences((String) null, null);
+        } catch (InvalidSyntaxException e) {
+            // Cannot happen as there is no filter
+            throw new IllegalStateException(e);
+        }
+        if (serviceReferences == null) {
+            return;
+        }
+        Map<String, TrackedReference[]> openedIndex = new HashMap<String, TrackedReference[]>();
+        for (Map.Entry<String, List<TrackedReference>> group : groups.entrySet()) {
+            openedIndex.put(group.getKey(), group.getValue().toArray(new TrackedReference[group.getValue().size()]));
+        }
+        TrackedReference[] openedUnindexed = (unindexedGroup != null)
+                ? unindexedGroup.toArray(new TrackedReference[unindexedGroup.size()]) : NO_REFERENCES;
+        for (ServiceReference<?> serviceReference : serviceReferences) {
+            dispatch(serviceReference, openedIndex, openedUnindexed, null);
+        }
+        for (TrackedReference reference : references) {
+            reference.trackInitialServices();
+        }
+    }
+
+    /**
+     * Removing references from the index. The service listener is unregistered if there is no opened reference
+     * anymore.
+     * 
+     * @param references
+     *            The references to remove.
+     */
+    private void removeFromIndex(final Collection<TrackedReference> references) {
+        Set<TrackedReference> removed = new HashSet<TrackedReference>(references);
+        mutex.lock();
+        try {
+            Map<String, TrackedReference[]> newIndex = new HashMap<String, TrackedReference[]>();
+            for (Map.Entry<String, TrackedReference[]> entry : referencesByObjectClass.entrySet()) {
+                TrackedReference[] remaining = remove(entry.getValue(), removed);
+                if (remaining.length > 0) {
+                    newIndex.put(entry.getKey(), remaining);
+                }
+            }
+            referencesByObjectClass = newIndex;
+            unindexedReferences = remove(unindexedReferences, removed);
+            if (listening && newIndex.isEmpty() && (unindexedReferences.length == 0)) {
+                bundleContext.removeServiceListener(this);
+                listening = false;
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Replacing an opened reference with an other one that uses the same customizer. The new reference is opened
+     * before the old one is closed so the services that match both of them remain available during the replacement.
+     * 
+     * @param oldReference
+     *            The opened reference.
+     * @param newReference
+     *            The reference that replaces it.
+     */
+    public void replace(final TrackedReference oldReference, final TrackedReference newReference) {
+        open(Collections.singletonList(newReference));
+        removeFromIndex(Collections.singletonList(oldReference));
+        oldReference.stopTracking();
+    }
+
+    @Override
+    public void serviceChanged(final ServiceEvent event) {
+        dispatch(event.getServiceReference(), referencesByObjectClass, unindexedReferences, event);
+    }
+}
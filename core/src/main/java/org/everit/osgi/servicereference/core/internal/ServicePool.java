@@ -0,0 +1,297 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.osgi.framework.ServiceObjects;
+
+/**
+ * A bounded pool of the instances of a prototype scoped service. Every call borrows an instance, so an instance is
+ * used by one call at the same time, and gives it back when it is finished. The instances are created by the
+ * {@link ServiceObjects} of the service when they are needed for the first time. The idle instances are stored in
+ * slots and every thread starts looking for an idle instance at its own slot so threads do not compete for the same
+ * instance and a thread tends to get the instance it used last time. If all of the instances are borrowed, the calls
+ * are parked on a {@link Condition} until an instance is given back.
+ */
+public class ServicePool {
+
+    /**
+     * The service objects that the instances are got from and released to.
+     */
+    private final ServiceObjects<Object> serviceObjects;
+
+    /**
+     * The idle instances. The length of the array is the maximum number of instances.
+     */
+    private final AtomicReferenceArray<Object> idleInstances;
+
+    /**
+     * The time in milliseconds a call waits for an instance if all of them are borrowed. Zero means waiting
+     * indefinitely.
+     */
+    private final long borrowTimeout;
+
+    /**
+     * The number of instances that are got from the {@link #serviceObjects} and not released yet.
+     */
+    private final AtomicInteger instanceCount = new AtomicInteger();
+
+    /**
+     * The lock of {@link #instanceAvailable}.
+     */
+    private final ReentrantLock waitLock = new ReentrantLock();
+
+    /**
+     * The condition that the calls waiting for an instance are parked on.
+     */
+    private final Condition instanceAvailable = waitLock.newCondition();
+
+    /**
+     * The number of calls waiting on {@link #instanceAvailable}. Modified only while {@link #waitLock} is held. Used
+     * to avoid locking when an instance is given back and nobody waits for it.
+     */
+    private volatile int waitingThreadCount = 0;
+
+    /**
+     * True if the service is not tracked anymore and the instances are released.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Simple constructor.
+     * 
+     * @param serviceObjects
+     *            Value of {@link #serviceObjects}.
+     * @param maxSize
+     *            The maximum number of instances.
+     * @param borrowTimeout
+     *            Value of {@link #borrowTimeout}.
+     * @throws IllegalArgumentException
+     *             if the maximum number of instances is not positive.
+     */
+    public ServicePool(final ServiceObjects<Object> serviceObjects, final int maxSize, final long borrowTimeout) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("The size of the pool must be positive");
+        }
+        this.serviceObjects = serviceObjects;
+        this.borrowTimeout = borrowTimeout;
+        idleInstances = new AtomicReferenceArray<Object>(maxSize);
+    }
+
+    /**
+     * Borrowing an instance. If all of the instances are borrowed, the call waits until one is given back or the
+     * {@link #borrowTimeout} expires.
+     * 
+     * @return The instance or null if no instance was available until the timeout or the pool is closed.
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting.
+     */
+    public Object borrow() throws InterruptedException {
+        Object instance = tryBorrow();
+        if ((instance != null) || closed) {
+            return instance;
+        }
+        long remaining = TimeUnit.MILLISECONDS.toNanos(borrowTimeout);
+        waitLock.lock();
+        try {
+            waitingThreadCount++;
+            try {
+                instance = tryBorrow();
+                while ((instance == null) && !closed) {
+                    if (borrowTimeout == 0) {
+                        instanceAvailable.await();
+                    } else if (remaining > 0) {
+                        remaining = instanceAvailable.awaitNanos(remaining);
+                    } else {
+                        return null;
+                    }
+                    instance = tryBorrow();
+                }
+                return instance;
+            } finally {
+                waitingThreadCount--;
+            }
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    /**
+     * Releasing the idle instances and the instances that are given back later. It is called when the service is not
+     * tracked anymore.
+     */
+    public void close() {
+        closed = true;
+        releaseIdleInstances();
+        signalWaitingThreads();
+    }
+
+    /**
+     * Getting an instance from the {@link #serviceObjects} if the maximum number of instances is not reached.
+     * 
+     * @return The new instance or null if the maximum is reached or the service did not provide an instance.
+     */
+    private Object createInstance() {
+        int count = instanceCount.get();
+        do {
+            if (count >= idleInstances.length()) {
+                return null;
+            }
+        } while (!instanceCount.compareAndSet(count, count + 1));
+
+        Object instance = null;
+        try {
+            instance = serviceObjects.getService();
+        } finally {
+            if (instance == null) {
+                instanceCount.decrementAndGet();
+            }
+        }
+        return instance;
+    }
+
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    public int getInstanceCount() {
+        return instanceCount.get();
+    }
+
+    public int getMaxSize() {
+        return idleInstances.length();
+    }
+
+    /**
+     * Giving back a borrowed instance. The instance is stored in the first free slot starting from the own slot of the
+     * thread. There is always a free slot as there are not more instances than slots.
+     * 
+     * @param instance
+     *            The borrowed instance.
+     */
+    public void giveBack(final Object instance) {
+        if (closed) {
+            releaseInstance(instance);
+            return;
+        }
+        int n = idleInstances.length();
+        int slot = homeSlot(n);
+        while (!idleInstances.compareAndSet(slot, null, instance)) {
+            slot = (slot + 1 == n) ? 0 : slot + 1;
+        }
+        if (closed) {
+            // The pool was closed while the instance was stored, it might not have been released by the close.
+            if (idleInstances.compareAndSet(slot, instance, null)) {
+                releaseInstance(instance);
+            }
+            return;
+        }
+        signalWaitingThreads();
+    }
+
+    /**
+     * Getting the slot that the current thread starts looking for an idle instance at.
+     * 
+     * @param n
+     *            The number of slots.
+     * @return The index of the slot.
+     */
+    private static int homeSlot(final int n) {
+        return (int) (Thread.currentThread().getId() % n);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Releasing all of the idle instances. The borrowed instances are not affected and the pool can create new
+     * instances later.
+     * 
+     * @return The number of released instances.
+     */
+    public int releaseIdleInstances() {
+        int releasedCount = 0;
+        for (int i = 0, n = idleInstances.length(); i < n; i++) {
+            Object instance = idleInstances.getAndSet(i, null);
+            if (instance != null) {
+                releaseInstance(instance);
+                releasedCount++;
+            }
+        }
+        if (releasedCount > 0) {
+            // The released instances can be created again by the waiting calls.
+            signalWaitingThreads();
+        }
+        return releasedCount;
+    }
+
+    private void releaseInstance(final Object instance) {
+        instanceCount.decrementAndGet();
+        try {
+            serviceObjects.ungetService(instance);
+        } catch (IllegalStateException e) {
+            // The context of the bundle is not valid anymore so the framework released the instance already.
+        }
+    }
+
+    /**
+     * Waking up all of the calls that wait for an instance.
+     */
+    private void signalWaitingThreads() {
+        if (waitingThreadCount == 0) {
+            return;
+        }
+        waitLock.lock();
+        try {
+            instanceAvailable.signalAll();
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    /**
+     * Borrowing an idle instance or creating a new one without waiting.
+     * 
+     * @return The instance or null if all of the instances are borrowed or the pool is closed.
+     */
+    public Object tryBorrow() {
+        if (closed) {
+            return null;
+        }
+        int n = idleInstances.length();
+        int slot = homeSlot(n);
+        for (int i = 0; i < n; i++) {
+            Object instance = idleInstances.get(slot);
+            if ((instance != null) && idleInstances.compareAndSet(slot, instance, null)) {
+                return instance;
+            }
+            slot = (slot + 1 == n) ? 0 : slot + 1;
+        }
+        return createInstance();
+    }
+}
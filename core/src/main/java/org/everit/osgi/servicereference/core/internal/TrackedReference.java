@@ -0,0 +1,309 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The tracking state of a {@link org.everit.osgi.servicereference.core.Reference} whose service events are delivered
+ * by a shared {@link ServiceEventDispatcher} instead of an own {@link org.osgi.util.tracker.ServiceTracker}. It calls
+ * the {@link ReferenceTrackerCustomizer} of the reference the same way as a service tracker would do: the tracked
+ * services are updated while the lock of this object is held but the customizer is called outside of the lock, as
+ * getting a service object can run any code of a {@link org.osgi.framework.ServiceFactory}.
+ */
+public class TrackedReference {
+
+    /**
+     * The filter that the services are checked against.
+     */
+    private final Filter filter;
+
+    /**
+     * The objectClass that all of the services matching the {@link #filter} must be registered with or null if the
+     * filter does not require a specific objectClass.
+     */
+    private final String objectClass;
+
+    /**
+     * The customizer that is notified about the tracked services.
+     */
+    private final ReferenceTrackerCustomizer customizer;
+
+    /**
+     * Lock that serializes the service events of this reference.
+     */
+    private final ReentrantLock mutex = new ReentrantLock();
+
+    /**
+     * The services that were accepted by the {@link #customizer}. Accessed only while {@link #mutex} is held.
+     */
+    private final Map<ServiceReference<Object>, Object> trackedServices =
+            new HashMap<ServiceReference<Object>, Object>();
+
+    /**
+     * The services that are being added to the {@link #customizer}. If a service is removed from this set while it is
+     * added, it was unregistered or the reference was closed in the meantime. Accessed only while {@link #mutex} is
+     * held.
+     */
+    private final Set<ServiceReference<Object>> addingServices = new HashSet<ServiceReference<Object>>();
+
+    /**
+     * The services that were already registered when this reference was opened and that are not tracked yet. A service
+     * event of a service removes it from this set, the same way as the initial list of a
+     * {@link org.osgi.util.tracker.ServiceTracker} works, so a service that is unregistered before it is tracked is not
+     * tracked at all. Accessed only while {@link #mutex} is held.
+     */
+    private final Set<ServiceReference<Object>> initialServices = new LinkedHashSet<ServiceReference<Object>>();
+
+    /**
+     * True if the events should be processed. Accessed only while {@link #mutex} is held.
+     */
+    private boolean opened = false;
+
+    /**
+     * Simple constructor that sets the fields.
+     * 
+     * @param filter
+     *            Value of {@link #filter}.
+     * @param customizer
+     *            Value of {@link #customizer}.
+     */
+    public TrackedReference(final Filter filter, final ReferenceTrackerCustomizer customizer) {
+        this.filter = filter;
+        this.customizer = customizer;
+        objectClass = ObjectClassFilters.getRequiredObjectClass(filter.toString());
+    }
+
+    /**
+     * Stopping the processing of the service events, removing all of the tracked services from the customizer and
+     * resetting it.
+     */
+    public void close() {
+        stopTracking();
+        customizer.reset();
+    }
+
+    public String getObjectClass() {
+        return objectClass;
+    }
+
+    /**
+     * Starting the processing of the service events. The already registered services must be passed to
+     * {@link #serviceFound(ServiceReference)} and then {@link #trackInitialServices()} must be called after this
+     * function is called.
+     */
+    public void open() {
+        mutex.lock();
+        try {
+            opened = true;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Processing a service event the same way as a {@link org.osgi.util.tracker.ServiceTracker} does.
+     * 
+     * @param event
+     *            The event.
+     */
+    public void serviceChanged(final ServiceEvent event) {
+        @SuppressWarnings("unchecked")
+        ServiceReference<Object> reference = (ServiceReference<Object>) event.getServiceReference();
+        switch (event.getType()) {
+        case ServiceEvent.REGISTERED:
+        case ServiceEvent.MODIFIED:
+            if (filter.match(reference)) {
+                track(reference);
+            } else {
+                untrack(reference);
+            }
+            break;
+        case ServiceEvent.MODIFIED_ENDMATCH:
+        case ServiceEvent.UNREGISTERING:
+            untrack(reference);
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Adding a service that was already registered when this reference was opened to the initial services if it
+     * matches the filter. The service is tracked by {@link #trackInitialServices()} if no service event arrives for it
+     * in the meantime.
+     * 
+     * @param reference
+     *            The reference of the service.
+     */
+    public void serviceFound(final ServiceReference<Object> reference) {
+        if (!filter.match(reference)) {
+            return;
+        }
+        mutex.lock();
+        try {
+            if (opened) {
+                initialServices.add(reference);
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Stopping the processing of the service events and removing all of the tracked services from the customizer
+     * without resetting it. It is used when the filter of the reference is replaced and the customizer is used by an
+     * other tracked reference as well.
+     */
+    public void stopTracking() {
+        List<Entry<ServiceReference<Object>, Object>> removedServices;
+        mutex.lock();
+        try {
+            opened = false;
+            removedServices = new ArrayList<Entry<ServiceReference<Object>, Object>>(trackedServices.entrySet());
+            trackedServices.clear();
+            addingServices.clear();
+            initialServices.clear();
+        } finally {
+            mutex.unlock();
+        }
+        for (Entry<ServiceReference<Object>, Object> entry : removedServices) {
+            customizer.removedService(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void track(final ServiceReference<Object> reference) {
+        Object service;
+        mutex.lock();
+        try {
+            // The event of the service is processed instead of the initial state of the service
+            initialServices.remove(reference);
+            if (!opened || addingServices.contains(reference)) {
+                return;
+            }
+            service = trackedServices.get(reference);
+            if (service == null) {
+                addingServices.add(reference);
+            }
+        } finally {
+            mutex.unlock();
+        }
+        if (service != null) {
+            customizer.modifiedService(reference, service);
+            return;
+        }
+        add(reference);
+    }
+
+    /**
+     * Tracking the initial services one by one the same way as a {@link org.osgi.util.tracker.ServiceTracker} does.
+     * The services that got a service event since they were found or that are already tracked are skipped.
+     */
+    public void trackInitialServices() {
+        while (true) {
+            ServiceReference<Object> reference;
+            mutex.lock();
+            try {
+                Iterator<ServiceReference<Object>> iterator = initialServices.iterator();
+                if (!opened || !iterator.hasNext()) {
+                    return;
+                }
+                reference = iterator.next();
+                iterator.remove();
+                if (trackedServices.containsKey(reference) || addingServices.contains(reference)) {
+                    continue;
+                }
+                addingServices.add(reference);
+            } finally {
+                mutex.unlock();
+            }
+            add(reference);
+        }
+    }
+
+    /**
+     * Passing a service to the customizer. The service must be in {@link #addingServices}.
+     */
+    private void add(final ServiceReference<Object> reference) {
+        Object service = customizer.addingService(reference);
+        if (service == null) {
+            mutex.lock();
+            try {
+                addingServices.remove(reference);
+            } finally {
+                mutex.unlock();
+            }
+            return;
+        }
+        boolean removedWhileAdding;
+        mutex.lock();
+        try {
+            removedWhileAdding = !addingServices.remove(reference);
+            if (!removedWhileAdding) {
+                trackedServices.put(reference, service);
+            }
+        } finally {
+            mutex.unlock();
+        }
+        if (removedWhileAdding) {
+            customizer.removedService(reference, service);
+        } else if (reference.getBundle() == null) {
+            // The service was unregistered before this reference got its event. It can happen with the initial
+            // services and the service object is not got in lazy mode that would show it.
+            untrack(reference);
+        }
+    }
+
+    private void untrack(final ServiceReference<Object> reference) {
+        Object service;
+        mutex.lock();
+        try {
+            if (initialServices.remove(reference)) {
+                // The service is not tracked yet.
+                return;
+            }
+            if (addingServices.remove(reference)) {
+                // The thread that adds the service removes it when the customizer returned.
+                return;
+            }
+            service = trackedServices.remove(reference);
+        } finally {
+            mutex.unlock();
+        }
+        if (service != null) {
+            customizer.removedService(reference, service);
+        }
+    }
+}
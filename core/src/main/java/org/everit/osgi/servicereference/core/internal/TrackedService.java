@@ -0,0 +1,237 @@
+package org.everit.osgi.servicereference.core.internal;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * A service that is tracked by a {@link ReferenceTrackerCustomizer} together with its reference and the number of
+ * calls that are in progress on it. The service object is either got when the service is added or, if the service is
+ * acquired lazily, at the first time it is needed. If the service object is released as it was idle, it is got again
+ * when it is needed the next time.
+ */
+public class TrackedService {
+
+    /**
+     * The reference of the service.
+     */
+    private final ServiceReference<Object> reference;
+
+    /**
+     * The context that the service object is got with.
+     */
+    private final BundleContext bundleContext;
+
+    /**
+     * Lock that makes sure that the service object is got only once at the same time and not after the service is
+     * released.
+     */
+    private final ReentrantLock acquireLock = new ReentrantLock();
+
+    /**
+     * The service object or null if it is not acquired yet.
+     */
+    private volatile Object service;
+
+    /**
+     * True if the service is not tracked anymore. Modified only while {@link #acquireLock} is held.
+     */
+    private boolean released = false;
+
+    /**
+     * The number of calls in progress on the service. Maintained only for the
+     * {@link org.everit.osgi.servicereference.core.DispatchStrategy#LEAST_IN_FLIGHT} strategy.
+     */
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    /**
+     * The number of trackers that track the service. It is more than one only while the filter of the reference is
+     * replaced and the service matches both the old and the new filter. Accessed only while the lock of the
+     * {@link ReferenceTrackerCustomizer} is held.
+     */
+    private int trackerCount = 1;
+
+    /**
+     * Constructor of a service that is acquired lazily.
+     * 
+     * @param bundleContext
+     *            Value of {@link #bundleContext}.
+     * @param reference
+     *            Value of {@link #reference}.
+     */
+    public TrackedService(final BundleContext bundleContext, final ServiceReference<Object> reference) {
+        this(bundleContext, reference, null);
+    }
+
+    /**
+     * Constructor of a service whose service object is already got.
+     * 
+     * @param bundleContext
+     *            Value of {@link #bundleContext}.
+     * @param reference
+     *            Value of {@link #reference}.
+     * @param service
+     *            Value of {@link #service}.
+     */
+    public TrackedService(final BundleContext bundleContext, final ServiceReference<Object> reference,
+            final Object service) {
+        this.bundleContext = bundleContext;
+        this.reference = reference;
+        this.service = service;
+    }
+
+    /**
+     * Getting the service object from the framework. The object is published to all threads at once.
+     * 
+     * @return The service object or null if the service is released or the framework did not return a service object.
+     */
+    private Object acquireService() {
+        acquireLock.lock();
+        try {
+            if ((service == null) && !released) {
+                service = bundleContext.getService(reference);
+            }
+            return service;
+        } finally {
+            acquireLock.unlock();
+        }
+    }
+
+    /**
+     * Recording that an other tracker started tracking the service.
+     */
+    public void addTracker() {
+        trackerCount++;
+    }
+
+    /**
+     * Taking the service object away so the next caller gets it from the framework again. The object is not released
+     * by this call, it either has to be released or given back with {@link #reattach(Object)}.
+     * 
+     * @return The service object or null if it was not acquired.
+     */
+    public Object detach() {
+        acquireLock.lock();
+        try {
+            Object result = service;
+            service = null;
+            return result;
+        } finally {
+            acquireLock.unlock();
+        }
+    }
+
+    /**
+     * Decrementing the {@link #inFlightCount} when a call on the service is finished.
+     */
+    public void callFinished() {
+        inFlightCount.decrementAndGet();
+    }
+
+    /**
+     * Incrementing the {@link #inFlightCount} when a call on the service is started.
+     */
+    public void callStarted() {
+        inFlightCount.incrementAndGet();
+    }
+
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    public ServiceReference<Object> getReference() {
+        return reference;
+    }
+
+    /**
+     * Getting the service object. If the object is not acquired yet, it is got from the framework.
+     * 
+     * @return The service object or null if the service is already released or the framework did not return a service
+     *         object.
+     */
+    public Object getService() {
+        Object result = service;
+        if (result != null) {
+            return result;
+        }
+        return acquireService();
+    }
+
+    /**
+     * Getting the service object without acquiring it.
+     * 
+     * @return The service object or null if it is not acquired yet.
+     */
+    public Object getServiceIfAcquired() {
+        return service;
+    }
+
+    /**
+     * Giving back a service object that was taken away by {@link #detach()}.
+     * 
+     * @param detachedService
+     *            The service object.
+     * @return True if the object is given back, false if the service object was got again meanwhile or the service is
+     *         released in which case the detached object has to be released.
+     */
+    public boolean reattach(final Object detachedService) {
+        acquireLock.lock();
+        try {
+            if ((service != null) || released) {
+                return false;
+            }
+            service = detachedService;
+            return true;
+        } finally {
+            acquireLock.unlock();
+        }
+    }
+
+    /**
+     * Marking the service as not tracked anymore so a lazily acquired service object is not got after this call.
+     * 
+     * @return True if the service object was got from the framework and it has to be released.
+     */
+    public boolean release() {
+        acquireLock.lock();
+        try {
+            released = true;
+            return service != null;
+        } finally {
+            acquireLock.unlock();
+        }
+    }
+
+    /**
+     * Recording that a tracker stopped tracking the service.
+     * 
+     * @return True if no tracker tracks the service anymore.
+     */
+    public boolean removeTracker() {
+        trackerCount--;
+        return trackerCount == 0;
+    }
+}
@@ -25,6 +25,48 @@ import org.junit.Test;
 
 public interface ReferenceTest {
 
+    /**
+     * Testing that the affinity dispatch strategies send the calls of a thread or of an argument to the same service
+     * and that adding or removing a service moves only the calls of the affected service.
+     */
+    @Test
+    void testAffinityDispatch();
+
+    /**
+     * Testing that an {@link org.everit.osgi.servicereference.core.AsyncReference} does not block the caller and
+     * completes the call when the service is registered or fails it when the timeout expires.
+     */
+    @Test
+    void testAsyncCall();
+
+    /**
+     * Testing that the items submitted one by one are processed in batches when the batch is full or when the maximum
+     * delay passes.
+     */
+    @Test
+    void testBatchingReference();
+
+    /**
+     * Testing that the calls of a coalesced method with equal arguments that wait for the service call the service only
+     * once and get the same result.
+     */
+    @Test
+    void testCallCoalescing();
+
+    /**
+     * Testing that the calls fail immediately after consecutive timeouts if the circuit breaker is enabled and that the
+     * circuit is closed when a service is available.
+     */
+    @Test
+    void testCircuitBreaker();
+
+    /**
+     * Testing that the calls above the concurrency limit wait in the queue and the calls above the size of the queue
+     * are rejected, both with the limit of the reference and the limit of a method.
+     */
+    @Test
+    void testConcurrencyLimit();
+
     /**
      * Testing when a custom handler is used. It is tested when it returns a special value as well as when it throws a
      * special exception.
@@ -32,6 +74,20 @@ public interface ReferenceTest {
     @Test
     public void testCustomHandler();
 
+    /**
+     * Testing that the calls are spread over the available services according to the dispatch strategy of the
+     * reference.
+     */
+    @Test
+    void testDispatchStrategy();
+
+    /**
+     * Testing that the filter of an opened reference can be changed while the proxy object remains the same, the calls
+     * in progress finish on the old service and a service that matches both filters is not got again.
+     */
+    @Test
+    void testDynamicFilter();
+
     /**
      * When a service throws an exception via the proxy object it should come back to the caller.
      */
@@ -44,6 +100,44 @@ public interface ReferenceTest {
     @Test
     void testExistingReference();
 
+    /**
+     * Testing that a failed call of a method with failover is repeated on the next ranked service.
+     */
+    @Test
+    void testFailover();
+
+    /**
+     * Testing that a slow call of a hedged method is sent to an other service as well and the first result is used.
+     */
+    @Test
+    void testHedging();
+
+    /**
+     * Testing that the service object is released after the idle timeout and it is got again at the next call.
+     */
+    @Test
+    void testIdleTimeout();
+
+    /**
+     * Testing that the interceptors are called in order around the calls, they can validate and replace the arguments
+     * and repeat the call, and they can be changed only while the reference is stopped.
+     */
+    @Test
+    void testInterceptors();
+
+    /**
+     * Testing that a service object that implements a required interface is accepted even if the service is not
+     * registered with that interface.
+     */
+    @Test
+    void testInterfaceNotInObjectClass();
+
+    /**
+     * Testing that the service object is got only at the first call if the services are acquired lazily.
+     */
+    @Test
+    void testLazyServiceAcquisition();
+
     /**
      * Testing when the service is available only after the method is called on the reference but within the timeout.
      */
@@ -76,12 +170,48 @@ public interface ReferenceTest {
     @Test
     void testNotOpenedReference();
 
+    /**
+     * Testing that the references of a group are opened together and the group future is completed when the quorum of
+     * the references have a service or it fails with the list of the missing references at the timeout.
+     */
+    @Test
+    void testReferenceGroup();
+
+    /**
+     * Testing the references that are created by a registry and get the service events via a shared listener. They are
+     * opened and closed together as well as one by one.
+     */
+    @Test
+    void testReferenceRegistry();
+
+    /**
+     * Testing that the results of a method are cached by the arguments, the least recently used result is evicted, the
+     * results expire and the cache is invalidated when the service is modified.
+     */
+    @Test
+    void testResultCache();
+
     /**
      * Testing service property modifications.
      */
     @Test
     void testServiceModification();
 
+    /**
+     * Testing that the instances of a prototype scoped service are pooled: an instance is not used by two calls at
+     * the same time, at most the pool size instances are created and a call is rejected if all of them are used until
+     * the timeout.
+     */
+    @Test
+    void testServicePooling();
+
+    /**
+     * Testing that the statistics of the calls are collected only when they are enabled and they count the calls and
+     * the timeouts.
+     */
+    @Test
+    void testStatistics();
+
     /**
      * When there is no service available and till the timeout and no custom ServiceUnavailableHandler is used a
      * ServiceUnavailableException is thrown.
@@ -95,6 +225,15 @@ public interface ReferenceTest {
     @Test
     void testWaitForService();
 
+    /**
+     * Testing that thousands of virtual threads that wait for an unavailable service do not pin their carrier threads.
+     * If they did, no other virtual thread could run until the timeout. The test does nothing if the JVM does not
+     * support virtual threads. Pinning events can be printed as well by running the JVM with
+     * -Djdk.tracePinnedThreads=full.
+     */
+    @Test
+    void testVirtualThreadWaiting();
+
     /**
      * Testing the warmup callback fuctionality
      */
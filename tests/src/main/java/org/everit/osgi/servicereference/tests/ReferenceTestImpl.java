@@ -23,24 +23,60 @@ package org.everit.osgi.servicereference.tests;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
-
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.everit.osgi.servicereference.core.AsyncReference;
+import org.everit.osgi.servicereference.core.BatchCall;
+import org.everit.osgi.servicereference.core.BatchingReference;
+import org.everit.osgi.servicereference.core.CallInterceptor;
+import org.everit.osgi.servicereference.core.CircuitOpenException;
+import org.everit.osgi.servicereference.core.ConcurrencyLimit;
+import org.everit.osgi.servicereference.core.ConcurrencyLimitExceededException;
+import org.everit.osgi.servicereference.core.DispatchStrategy;
+import org.everit.osgi.servicereference.core.InterceptedCall;
+import org.everit.osgi.servicereference.core.MethodStatistics;
+import org.everit.osgi.servicereference.core.MissingServicesException;
 import org.everit.osgi.servicereference.core.Reference;
+import org.everit.osgi.servicereference.core.ReferenceClosedException;
+import org.everit.osgi.servicereference.core.ReferenceGroup;
+import org.everit.osgi.servicereference.core.ReferenceRegistry;
+import org.everit.osgi.servicereference.core.ServiceCall;
 import org.everit.osgi.servicereference.core.ServiceUnavailableException;
 import org.everit.osgi.servicereference.core.ServiceUnavailableHandler;
 import org.everit.osgi.servicereference.core.WarmUpListener;
 import org.junit.Assert;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.PrototypeServiceFactory;
+import org.osgi.framework.ServiceFactory;
 import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.Version;
 
 /**
  * Implementation that contains tests for reference holder classes.
@@ -62,6 +98,21 @@ public class ReferenceTestImpl implements ReferenceTest {
         this.bundleContext = bundleContext;
     }
 
+    /**
+     * Creating an executor that starts a new virtual thread for each task.
+     * 
+     * @return The executor or null if the JVM does not support virtual threads.
+     */
+    private ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private Filter createTestFilter() {
         Filter filter = null;
         try {
@@ -72,6 +123,492 @@ public class ReferenceTestImpl implements ReferenceTest {
         return filter;
     }
 
+    /**
+     * Registering a test service that returns its identifier from every call.
+     * 
+     * @param id
+     *            The identifier of the service.
+     * @return The registration of the service.
+     */
+    private ServiceRegistration<?> registerIdentifiedService(final int id) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+        return bundleContext.registerService(Comparable.class.getName(), new Comparable<Integer>() {
+
+            @Override
+            public int compareTo(final Integer o) {
+                return id;
+            }
+        }, properties);
+    }
+
+    /**
+     * Registering a test service with the tenant property.
+     * 
+     * @param tenant
+     *            The value of the tenant property.
+     * @return The registration of the service.
+     */
+    private ServiceRegistration<?> registerTenantService(final String tenant) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+        properties.put("tenant", tenant);
+        return bundleContext.registerService(Comparable.class.getName(), Integer.valueOf(1), properties);
+    }
+
+    @Override
+    public void testAffinityDispatch() {
+        final int keyCount = 100;
+        Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 1);
+        reference.setDispatchStrategy(DispatchStrategy.THREAD_AFFINITY);
+        reference.open();
+        Comparable<Integer> proxyInstance = reference.getProxyInstance();
+        List<ServiceRegistration<?>> registrations = new ArrayList<ServiceRegistration<?>>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                registrations.add(registerIdentifiedService(i));
+            }
+            int threadService = proxyInstance.compareTo(0);
+            for (int i = 1; i < 10; i++) {
+                Assert.assertEquals(threadService, proxyInstance.compareTo(i));
+            }
+
+            reference.setDispatchStrategy(DispatchStrategy.ARGUMENT_AFFINITY);
+            int[] keyServices = new int[keyCount];
+            boolean[] usedServices = new boolean[3];
+            for (int key = 0; key < keyCount; key++) {
+                keyServices[key] = proxyInstance.compareTo(key);
+                usedServices[keyServices[key]] = true;
+                Assert.assertEquals(keyServices[key], proxyInstance.compareTo(key));
+            }
+            Assert.assertTrue(usedServices[0] && usedServices[1] && usedServices[2]);
+
+            // The new service takes over keys only from the others
+            registrations.add(registerIdentifiedService(3));
+            boolean newServiceUsed = false;
+            for (int key = 0; key < keyCount; key++) {
+                int service = proxyInstance.compareTo(key);
+                if (service == 3) {
+                    newServiceUsed = true;
+                } else {
+                    Assert.assertEquals(keyServices[key], service);
+                }
+                keyServices[key] = service;
+            }
+            Assert.assertTrue(newServiceUsed);
+
+            // Only the keys of the removed service are moved
+            registrations.remove(0).unregister();
+            for (int key = 0; key < keyCount; key++) {
+                int service = proxyInstance.compareTo(key);
+                Assert.assertNotEquals(0, service);
+                if (keyServices[key] != 0) {
+                    Assert.assertEquals(keyServices[key], service);
+                }
+            }
+        } finally {
+            for (ServiceRegistration<?> registration : registrations) {
+                registration.unregister();
+            }
+            reference.close();
+        }
+    }
+
+    @Override
+    public void testAsyncCall() {
+        ServiceCall<Comparable<Integer>, Integer> compareToOne = new ServiceCall<Comparable<Integer>, Integer>() {
+
+            @Override
+            public Integer call(final Comparable<Integer> service) {
+                return service.compareTo(1);
+            }
+        };
+
+        Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 2000);
+        reference.open();
+        AsyncReference<Comparable<Integer>> asyncReference = new AsyncReference<Comparable<Integer>>(reference);
+        CompletableFuture<Integer> result = asyncReference.call(compareToOne);
+        Assert.assertFalse(result.isDone());
+
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> existingSR = bundleContext.registerService(Comparable.class,
+                Integer.valueOf(1), properties);
+        try {
+            Assert.assertEquals(Integer.valueOf(0), result.get(1000, TimeUnit.MILLISECONDS));
+            // The service is available so the call is done immediately
+            Assert.assertTrue(asyncReference.call(compareToOne).isDone());
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            existingSR.unregister();
+        }
+        reference.close();
+
+        Reference timeoutReference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 1);
+        timeoutReference.open();
+        CompletableFuture<Integer> timeoutResult =
+                new AsyncReference<Comparable<Integer>>(timeoutReference).call(compareToOne);
+        try {
+            timeoutResult.get(1000, TimeUnit.MILLISECONDS);
+            Assert.fail("Should fail with a ServiceUnavailableException");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ServiceUnavailableException);
+        } catch (InterruptedException | TimeoutException e) {
+            Assert.fail(e.getMessage());
+        }
+        timeoutReference.close();
+
+        // A call that waits for the service without timeout fails when the reference is closed
+        Reference closedReference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 0);
+        closedReference.open();
+        CompletableFuture<Integer> closedResult =
+                new AsyncReference<Comparable<Integer>>(closedReference).call(compareToOne);
+        Assert.assertFalse(closedResult.isDone());
+        closedReference.close();
+        try {
+            closedResult.get(1000, TimeUnit.MILLISECONDS);
+            Assert.fail("Should fail with a ReferenceClosedException");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ReferenceClosedException);
+        } catch (InterruptedException | TimeoutException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Override
+    public void testBatchingReference() {
+        BatchCall<Function<List<Integer>, List<Integer>>, Integer, Integer> applyAll =
+                new BatchCall<Function<List<Integer>, List<Integer>>, Integer, Integer>() {
+
+                    @Override
+                    public List<Integer> call(final Function<List<Integer>, List<Integer>> service,
+                            final List<Integer> items) {
+                        return service.apply(items);
+                    }
+                };
+
+        final List<List<Integer>> batches = new CopyOnWriteArrayList<List<Integer>>();
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Function> existingSR = bundleContext.registerService(Function.class,
+                new Function<List<Integer>, List<Integer>>() {
+
+                    @Override
+                    public List<Integer> apply(final List<Integer> items) {
+                        batches.add(new ArrayList<Integer>(items));
+                        if (items.contains(Integer.valueOf(0))) {
+                            throw new IllegalArgumentException("Zero is not allowed");
+                        }
+                        List<Integer> result = new ArrayList<Integer>();
+                        for (Integer item : items) {
+                            result.add(item * 2);
+                        }
+                        return result;
+                    }
+                }, properties);
+
+        Reference reference = new Reference(bundleContext, new Class<?>[] { Function.class },
+                createTestFilter(), 1000);
+        reference.open();
+        try {
+            // Only full batches are processed as the delay is long
+            BatchingReference<Function<List<Integer>, List<Integer>>, Integer, Integer> sizeBatching =
+                    new BatchingReference<Function<List<Integer>, List<Integer>>, Integer, Integer>(reference,
+                            applyAll, 3, 100000);
+            List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+            for (int i = 1; i <= 6; i++) {
+                results.add(sizeBatching.submit(i));
+            }
+            for (int i = 1; i <= 6; i++) {
+                Assert.assertEquals(Integer.valueOf(i * 2), results.get(i - 1).get(1000, TimeUnit.MILLISECONDS));
+            }
+            Assert.assertEquals(Arrays.asList(Arrays.asList(1, 2, 3), Arrays.asList(4, 5, 6)), batches);
+
+            // The batch is processed after the delay even if it is not full
+            batches.clear();
+            BatchingReference<Function<List<Integer>, List<Integer>>, Integer, Integer> delayBatching =
+                    new BatchingReference<Function<List<Integer>, List<Integer>>, Integer, Integer>(reference,
+                            applyAll, 100, 50);
+            CompletableFuture<Integer> first = delayBatching.submit(1);
+            CompletableFuture<Integer> second = delayBatching.submit(2);
+            Assert.assertEquals(Integer.valueOf(2), first.get(1000, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(Integer.valueOf(4), second.get(1000, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(Arrays.asList(Arrays.asList(1, 2)), batches);
+
+            // A failing batch call fails all of the items of the batch
+            CompletableFuture<Integer> failing = delayBatching.submit(0);
+            CompletableFuture<Integer> failingToo = delayBatching.submit(3);
+            delayBatching.flush();
+            for (CompletableFuture<Integer> result : Arrays.asList(failing, failingToo)) {
+                try {
+                    result.get(1000, TimeUnit.MILLISECONDS);
+                    Assert.fail("Should fail with the exception of the service");
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+                }
+            }
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            existingSR.unregister();
+            reference.close();
+        }
+    }
+
+    @Override
+    public void testCallCoalescing() {
+        final int callerCount = 10;
+        Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 10000);
+        reference.enableCallCoalescing(new Predicate<Method>() {
+
+            @Override
+            public boolean test(final Method method) {
+                return "compareTo".equals(method.getName());
+            }
+        });
+        reference.setStatisticsEnabled(true);
+        reference.open();
+        final Comparable<Integer> proxyInstance = reference.getProxyInstance();
+
+        ExecutorService executor = Executors.newFixedThreadPool(callerCount);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < callerCount; i++) {
+            results.add(executor.submit(new Callable<Integer>() {
+
+                @Override
+                public Integer call() {
+                    return proxyInstance.compareTo(1);
+                }
+            }));
+        }
+
+        try {
+            MethodStatistics methodStatistics = null;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (((methodStatistics == null) || (methodStatistics.getCoalescedCount() < callerCount - 1))
+                    && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10);
+                methodStatistics = reference.getStatistics().getMethodStatistics()
+                        .get("java.lang.Comparable.compareTo(java.lang.Object)");
+            }
+            Assert.assertEquals(callerCount - 1, methodStatistics.getCoalescedCount());
+
+            final AtomicInteger serviceCallCount = new AtomicInteger();
+            Hashtable<String, Object> properties = new Hashtable<String, Object>();
+            properties.put("testservice", "true");
+            @SuppressWarnings("rawtypes")
+            ServiceRegistration<Comparable> existingSR = bundleContext.registerService(Comparable.class,
+                    new Comparable<Integer>() {
+
+                        @Override
+                        public int compareTo(final Integer o) {
+                            return serviceCallCount.incrementAndGet();
+                        }
+                    }, properties);
+            try {
+                for (Future<Integer> result : results) {
+                    Assert.assertEquals(Integer.valueOf(1), result.get(5000, TimeUnit.MILLISECONDS));
+                }
+                Assert.assertEquals(1, serviceCallCount.get());
+
+                // The calls are not coalesced when the service is available
+                Assert.assertEquals(2, proxyInstance.compareTo(1));
+            } finally {
+                existingSR.unregister();
+            }
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+        reference.close();
+    }
+
+    @Override
+    public void testCircuitBreaker() {
+        final long timeout = 200;
+        final long retryInterval = 300;
+        Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), timeout);
+        reference.enableCircuitBreaker(2, retryInterval);
+        reference.setStatisticsEnabled(true);
+        reference.open();
+        Comparable<Integer> proxyInstance = reference.getProxyInstance();
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertFalse(reference.isCircuitOpen());
+            try {
+                proxyInstance.compareTo(1);
+                Assert.fail("Should throw a ServiceUnavailable exception");
+            } catch (CircuitOpenException e) {
+                Assert.fail("Circuit should not be open before reaching the threshold");
+            } catch (ServiceUnavailableException e) {
+                // Good behavior
+            }
+        }
+        Assert.assertTrue(reference.isCircuitOpen());
+
+        long startTime = System.currentTimeMillis();
+        try {
+            proxyInstance.compareTo(1);
+            Assert.fail("Should throw a CircuitOpenException");
+        } catch (CircuitOpenException e) {
+            Assert.assertTrue(System.currentTimeMillis() - startTime < timeout);
+        }
+
+        // An async call does not throw the exception but completes the future exceptionally right away
+        CompletableFuture<Integer> asyncResult = new AsyncReference<Comparable<Integer>>(reference)
+                .call(new ServiceCall<Comparable<Integer>, Integer>() {
+
+                    @Override
+                    public Integer call(final Comparable<Integer> service) {
+                        return service.compareTo(1);
+                    }
+                });
+        Assert.assertTrue(asyncResult.isCompletedExceptionally());
+        try {
+            asyncResult.getNow(null);
+            Assert.fail("Should throw a CompletionException");
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof CircuitOpenException);
+        }
+
+        try {
+            Thread.sleep(retryInterval + 50);
+        } catch (InterruptedException e) {
+            Assert.fail(e.getMessage());
+        }
+        // The probe waits for the service again
+        startTime = System.currentTimeMillis();
+        try {
+            proxyInstance.compareTo(1);
+            Assert.fail("Should throw a ServiceUnavailable exception");
+        } catch (CircuitOpenException e) {
+            Assert.fail("The probe call should wait for the service");
+        } catch (ServiceUnavailableException e) {
+            Assert.assertTrue(System.currentTimeMillis() - startTime >= timeout);
+        }
+        Assert.assertTrue(reference.isCircuitOpen());
+
+        MethodStatistics methodStatistics = reference.getStatistics().getMethodStatistics()
+                .get("java.lang.Comparable.compareTo(java.lang.Object)");
+        Assert.assertEquals(3, methodStatistics.getTimeoutCount());
+        Assert.assertEquals(1, methodStatistics.getFailFastCount());
+
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> existingSR = bundleContext.registerService(Comparable.class,
+                Integer.valueOf(1), properties);
+        try {
+            Assert.assertFalse(reference.isCircuitOpen());
+            Assert.assertEquals(0, proxyInstance.compareTo(1));
+        } finally {
+            existingSR.unregister();
+        }
+        reference.disableCircuitBreaker();
+        Assert.assertFalse(reference.isCircuitOpen());
+        reference.close();
+    }
+
+    @Override
+    public void testConcurrencyLimit() {
+        final AtomicInteger serviceCallCount = new AtomicInteger();
+        final AtomicReference<CountDownLatch> serviceReleased = new AtomicReference<CountDownLatch>();
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> existingSR = bundleContext.registerService(Comparable.class,
+                new Comparable<Integer>() {
+
+                    @Override
+                    public int compareTo(final Integer o) {
+                        serviceCallCount.incrementAndGet();
+                        try {
+                            serviceReleased.get().await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return o;
+                    }
+                }, properties);
+
+        Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 5000);
+        reference.setConcurrencyLimit(ConcurrencyLimit.fixed(1, 1));
+        reference.setStatisticsEnabled(true);
+        reference.open();
+        final Comparable<Integer> proxyInstance = reference.getProxyInstance();
+        Callable<Integer> call = new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+                return proxyInstance.compareTo(1);
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            serviceReleased.set(new CountDownLatch(1));
+            Future<Integer> runningCall = executor.submit(call);
+            Future<Integer> queuedCall = executor.submit(call);
+            Thread.sleep(200);
+            Assert.assertEquals(1, serviceCallCount.get());
+
+            try {
+                proxyInstance.compareTo(1);
+                Assert.fail("Should throw a ConcurrencyLimitExceededException");
+            } catch (ConcurrencyLimitExceededException e) {
+                Assert.assertEquals(createTestFilter().toString(), e.getServiceFilter());
+            }
+
+            serviceReleased.get().countDown();
+            Assert.assertEquals(Integer.valueOf(1), runningCall.get(5000, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(Integer.valueOf(1), queuedCall.get(5000, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(2, serviceCallCount.get());
+
+            // Limit of the method with a handler that gets the rejected calls
+            reference.setConcurrencyLimit(null);
+            reference.setConcurrencyLimit(Comparable.class.getMethod("compareTo", Object.class),
+                    ConcurrencyLimit.fixed(1, 0));
+            reference.setServiceUnavailableHander(new ServiceUnavailableHandler() {
+
+                @Override
+                public Object handle(final String serviceFilter, final Method method, final Object[] args,
+                        final long timeout) {
+                    return -1;
+                }
+            });
+            serviceReleased.set(new CountDownLatch(1));
+            runningCall = executor.submit(call);
+            Thread.sleep(200);
+            Assert.assertEquals(-1, proxyInstance.compareTo(1));
+            serviceReleased.get().countDown();
+            Assert.assertEquals(Integer.valueOf(1), runningCall.get(5000, TimeUnit.MILLISECONDS));
+
+            MethodStatistics methodStatistics = reference.getStatistics().getMethodStatistics()
+                    .get("java.lang.Comparable.compareTo(java.lang.Object)");
+            Assert.assertEquals(2, methodStatistics.getRejectedCount());
+            Assert.assertEquals(1, methodStatistics.getServiceUnavailableHandlerCount());
+        } catch (InterruptedException | ExecutionException | TimeoutException | NoSuchMethodException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            executor.shutdownNow();
+            existingSR.unregister();
+        }
+        reference.close();
+    }
+
     @Override
     public void testCustomHandler() {
         final int testTimeout = 3;
@@ -107,6 +644,165 @@ public class ReferenceTestImpl implements ReferenceTest {
         reference.close();
     }
 
+    @Override
+    public void testDispatchStrategy() {
+        Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 1);
+        Assert.assertEquals(DispatchStrategy.HIGHEST_RANKED, reference.getDispatchStrategy());
+        reference.open();
+        Comparable<Integer> proxyInstance = reference.getProxyInstance();
+
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+        properties.put(Constants.SERVICE_RANKING, 1);
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> bestSR = bundleContext.registerService(Comparable.class,
+                Integer.valueOf(1), properties);
+        properties.put(Constants.SERVICE_RANKING, 0);
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> otherSR = bundleContext.registerService(Comparable.class,
+                Integer.valueOf(2), properties);
+        try {
+            // Integer 1 compared to 1 gives 0, Integer 2 compared to 1 gives 1
+            for (int i = 0; i < 4; i++) {
+                Assert.assertEquals(0, proxyInstance.compareTo(1));
+            }
+
+            reference.setDispatchStrategy(DispatchStrategy.ROUND_ROBIN);
+            int firstResult = proxyInstance.compareTo(1);
+            for (int i = 1; i < 4; i++) {
+                Assert.assertEquals((firstResult + i) % 2, proxyInstance.compareTo(1));
+            }
+
+            reference.setDispatchStrategy(DispatchStrategy.RANDOM);
+            for (int i = 0; i < 4; i++) {
+                int result = proxyInstance.compareTo(1);
+                Assert.assertTrue((result == 0) || (result == 1));
+            }
+
+            // No calls are in progress so the best ranked service is chosen
+            reference.setDispatchStrategy(DispatchStrategy.LEAST_IN_FLIGHT);
+            Assert.assertEquals(0, proxyInstance.compareTo(1));
+
+            bestSR.unregister();
+            bestSR = null;
+            Assert.assertEquals(1, proxyInstance.compareTo(1));
+        } finally {
+            if (bestSR != null) {
+                bestSR.unregister();
+            }
+            otherSR.unregister();
+        }
+
+        try {
+            reference.setDispatchStrategy(null);
+            Assert.fail("Null dispatch strategy should not be accepted");
+        } catch (IllegalArgumentException e) {
+            // Good behavior
+        }
+        reference.close();
+    }
+
+    @Override
+    public void testDynamicFilter() {
+        final AtomicInteger createdServiceCount = new AtomicInteger();
+        final CountDownLatch callStartedLatch = new CountDownLatch(1);
+        final CountDownLatch blockingCallLatch = new CountDownLatch(1);
+        Hashtable<String, Object> tenantAProperties = new Hashtable<String, Object>();
+        tenantAProperties.put("testservice", "true");
+        tenantAProperties.put("tenant", "a");
+        ServiceRegistration<?> tenantASR = bundleContext.registerService(Comparable.class.getName(),
+                new Comparable<Integer>() {
+
+                    @Override
+                    public int compareTo(final Integer o) {
+                        if (o.intValue() == 2) {
+                            callStartedLatch.countDown();
+                            try {
+                                blockingCallLatch.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        return -1;
+                    }
+                }, tenantAProperties);
+        Hashtable<String, Object> tenantBProperties = new Hashtable<String, Object>();
+        tenantBProperties.put("testservice", "true");
+        tenantBProperties.put("tenant", "b");
+        ServiceRegistration<?> tenantBSR = bundleContext.registerService(Comparable.class.getName(),
+                new ServiceFactory<Comparable<Integer>>() {
+
+                    @Override
+                    public Comparable<Integer> getService(final Bundle bundle,
+                            final ServiceRegistration<Comparable<Integer>> registration) {
+                        createdServiceCount.incrementAndGet();
+                        return Integer.valueOf(2);
+                    }
+
+                    @Override
+                    public void ungetService(final Bundle bundle,
+                            final ServiceRegistration<Comparable<Integer>> registration,
+                            final Comparable<Integer> service) {
+                        // Nothing to release
+                    }
+                }, tenantBProperties);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        ReferenceRegistry registry = new ReferenceRegistry(bundleContext);
+        try {
+            Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                    bundleContext.createFilter("(&(testservice=true)(tenant=a))"), 1);
+            reference.open();
+            final Comparable<Integer> proxyInstance = reference.getProxyInstance();
+            Assert.assertEquals(-1, proxyInstance.compareTo(1));
+
+            Future<Integer> inFlightCall = executorService.submit(new Callable<Integer>() {
+
+                @Override
+                public Integer call() {
+                    return proxyInstance.compareTo(2);
+                }
+            });
+            Assert.assertTrue(callStartedLatch.await(5, TimeUnit.SECONDS));
+            Filter tenantBFilter = bundleContext.createFilter("(&(testservice=true)(tenant=b))");
+            reference.setFilter(tenantBFilter);
+            Assert.assertEquals(tenantBFilter, reference.getFilter());
+            Assert.assertSame(proxyInstance, reference.getProxyInstance());
+            Assert.assertEquals(1, proxyInstance.compareTo(1));
+            blockingCallLatch.countDown();
+            Assert.assertEquals(Integer.valueOf(-1), inFlightCall.get());
+
+            // The service of tenant b matches the new filter as well so it is not got again
+            reference.setFilter(bundleContext.createFilter("(&(testservice=true)(!(tenant=a)))"));
+            Assert.assertEquals(1, proxyInstance.compareTo(1));
+            Assert.assertEquals(1, createdServiceCount.get());
+            reference.close();
+
+            // The filter of a closed reference is used when it is opened
+            reference.setFilter(bundleContext.createFilter("(&(testservice=true)(tenant=a))"));
+            reference.open();
+            Assert.assertEquals(-1, proxyInstance.compareTo(1));
+            reference.close();
+
+            Reference registryReference = registry.createReference(new Class<?>[] { Comparable.class },
+                    bundleContext.createFilter("(&(testservice=true)(tenant=a))"), 1);
+            registryReference.open();
+            Comparable<Integer> registryProxyInstance = registryReference.getProxyInstance();
+            Assert.assertEquals(-1, registryProxyInstance.compareTo(1));
+            registryReference.setFilter(tenantBFilter);
+            Assert.assertEquals(1, registryProxyInstance.compareTo(1));
+            registryReference.close();
+        } catch (InvalidSyntaxException | InterruptedException | ExecutionException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            blockingCallLatch.countDown();
+            executorService.shutdown();
+            registry.closeAll();
+            tenantASR.unregister();
+            tenantBSR.unregister();
+        }
+    }
+
     @Override
     public void testException() {
         Hashtable<String, Object> properties = new Hashtable<String, Object>();
@@ -132,32 +828,480 @@ public class ReferenceTestImpl implements ReferenceTest {
             }
             reference.close();
         } finally {
-            existingSR.unregister();
+            existingSR.unregister();
+        }
+    }
+
+    @Override
+    public void testExistingReference() {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<List> existingSR = bundleContext.registerService(List.class,
+                new ArrayList<String>(Arrays.asList("Test")), properties);
+
+        try {
+            Filter filter = createTestFilter();
+            Reference reference = new Reference(bundleContext, new Class<?>[] { List.class }, filter, 1);
+
+            Assert.assertEquals(filter, reference.getFilter());
+
+            reference.open();
+
+            List<String> proxyInstance = reference.getProxyInstance();
+
+            Assert.assertTrue(proxyInstance.contains("Test"));
+
+            reference.close();
+        } finally {
+            existingSR.unregister();
+        }
+    }
+
+    @Override
+    public void testFailover() {
+        Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 1);
+        reference.setStatisticsEnabled(true);
+        reference.open();
+        Comparable<Integer> proxyInstance = reference.getProxyInstance();
+
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+        properties.put(Constants.SERVICE_RANKING, 1);
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> failingSR = bundleContext.registerService(Comparable.class,
+                new Comparable<Integer>() {
+
+                    @Override
+                    public int compareTo(final Integer o) {
+                        throw new IllegalStateException("Failing service");
+                    }
+                }, properties);
+        properties.put(Constants.SERVICE_RANKING, 0);
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> otherSR = bundleContext.registerService(Comparable.class,
+                Integer.valueOf(2), properties);
+        try {
+            try {
+                proxyInstance.compareTo(1);
+                Assert.fail("Should throw the exception of the service without failover");
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("Failing service", e.getMessage());
+            }
+
+            reference.enableFailover(new Predicate<Method>() {
+
+                @Override
+                public boolean test(final Method method) {
+                    return "compareTo".equals(method.getName());
+                }
+            });
+            // Integer 2 compared to 1 gives 1
+            Assert.assertEquals(1, proxyInstance.compareTo(1));
+            MethodStatistics methodStatistics = reference.getStatistics().getMethodStatistics()
+                    .get("java.lang.Comparable.compareTo(java.lang.Object)");
+            Assert.assertEquals(1, methodStatistics.getFailoverCount());
+
+            otherSR.unregister();
+            otherSR = null;
+            try {
+                proxyInstance.compareTo(1);
+                Assert.fail("Should throw the exception of the service if there is no other service");
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("Failing service", e.getMessage());
+            }
+        } finally {
+            failingSR.unregister();
+            if (otherSR != null) {
+                otherSR.unregister();
+            }
+        }
+        reference.disableFailover();
+        reference.close();
+    }
+
+    @Override
+    public void testHedging() {
+        final long slowCallTime = 500;
+        Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        reference.enableHedging(new Predicate<Method>() {
+
+            @Override
+            public boolean test(final Method method) {
+                return "compareTo".equals(method.getName());
+            }
+        }, 0.9, 50, executor);
+        reference.setStatisticsEnabled(true);
+        reference.open();
+        Comparable<Integer> proxyInstance = reference.getProxyInstance();
+
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+        properties.put(Constants.SERVICE_RANKING, 1);
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> slowSR = bundleContext.registerService(Comparable.class,
+                new Comparable<Integer>() {
+
+                    @Override
+                    public int compareTo(final Integer o) {
+                        try {
+                            Thread.sleep(slowCallTime);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return 0;
+                    }
+                }, properties);
+        properties.put(Constants.SERVICE_RANKING, 0);
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> fastSR = bundleContext.registerService(Comparable.class,
+                Integer.valueOf(2), properties);
+        try {
+            long startTime = System.currentTimeMillis();
+            // Integer 2 compared to 1 gives 1
+            Assert.assertEquals(1, proxyInstance.compareTo(1));
+            Assert.assertTrue(System.currentTimeMillis() - startTime < slowCallTime);
+            MethodStatistics methodStatistics = reference.getStatistics().getMethodStatistics()
+                    .get("java.lang.Comparable.compareTo(java.lang.Object)");
+            Assert.assertEquals(1, methodStatistics.getHedgedCount());
+
+            // Without an other service the call waits for the slow one
+            fastSR.unregister();
+            fastSR = null;
+            Assert.assertEquals(0, proxyInstance.compareTo(1));
+        } finally {
+            slowSR.unregister();
+            if (fastSR != null) {
+                fastSR.unregister();
+            }
+            executor.shutdownNow();
+        }
+        reference.disableHedging();
+        reference.close();
+    }
+
+    @Override
+    public void testIdleTimeout() {
+        final long idleTimeout = 100;
+        final AtomicInteger createdServiceCount = new AtomicInteger();
+        final AtomicInteger releasedServiceCount = new AtomicInteger();
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+        ServiceRegistration<?> existingSR = bundleContext.registerService(Comparable.class.getName(),
+                new ServiceFactory<Comparable<Integer>>() {
+
+                    @Override
+                    public Comparable<Integer> getService(final Bundle bundle,
+                            final ServiceRegistration<Comparable<Integer>> registration) {
+                        createdServiceCount.incrementAndGet();
+                        return Integer.valueOf(1);
+                    }
+
+                    @Override
+                    public void ungetService(final Bundle bundle,
+                            final ServiceRegistration<Comparable<Integer>> registration,
+                            final Comparable<Integer> service) {
+                        releasedServiceCount.incrementAndGet();
+                    }
+                }, properties);
+        Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 0);
+        Assert.assertEquals(0, reference.getIdleTimeout());
+        reference.setIdleTimeout(idleTimeout);
+        Assert.assertEquals(idleTimeout, reference.getIdleTimeout());
+        try {
+            reference.open();
+            Comparable<Integer> proxyInstance = reference.getProxyInstance();
+            Assert.assertEquals(0, proxyInstance.compareTo(1));
+            Assert.assertEquals(1, createdServiceCount.get());
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((releasedServiceCount.get() == 0) && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(1, releasedServiceCount.get());
+
+            // The service is tracked so the call gets the service object again without waiting
+            Assert.assertEquals(0, proxyInstance.compareTo(1));
+            Assert.assertEquals(2, createdServiceCount.get());
+
+            // The service object is not released while a call of an async reference is in progress
+            final CountDownLatch callStartedLatch = new CountDownLatch(1);
+            final CountDownLatch finishCallLatch = new CountDownLatch(1);
+            final AsyncReference<Comparable<Integer>> asyncReference =
+                    new AsyncReference<Comparable<Integer>>(reference);
+            ExecutorService executorService = Executors.newSingleThreadExecutor();
+            try {
+                Future<CompletableFuture<Integer>> asyncCall = executorService
+                        .submit(() -> asyncReference.call(new ServiceCall<Comparable<Integer>, Integer>() {
+
+                            @Override
+                            public Integer call(final Comparable<Integer> service) throws Exception {
+                                callStartedLatch.countDown();
+                                finishCallLatch.await();
+                                return service.compareTo(1);
+                            }
+                        }));
+                Assert.assertTrue(callStartedLatch.await(5, TimeUnit.SECONDS));
+                int releasedBeforeCall = releasedServiceCount.get();
+                Thread.sleep(idleTimeout * 3);
+                Assert.assertEquals(releasedBeforeCall, releasedServiceCount.get());
+                finishCallLatch.countDown();
+                Assert.assertEquals(Integer.valueOf(0), asyncCall.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS));
+            } catch (ExecutionException | TimeoutException e) {
+                Assert.fail(e.getMessage());
+            } finally {
+                finishCallLatch.countDown();
+                executorService.shutdown();
+            }
+
+            deadline = System.currentTimeMillis() + 5000;
+            while ((releasedServiceCount.get() < createdServiceCount.get())
+                    && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(createdServiceCount.get(), releasedServiceCount.get());
+
+            Assert.assertEquals(0, proxyInstance.compareTo(1));
+            int createdBeforeClose = createdServiceCount.get();
+            reference.setIdleTimeout(0);
+            Thread.sleep(idleTimeout * 3);
+            Assert.assertEquals(createdBeforeClose - 1, releasedServiceCount.get());
+            reference.close();
+            Assert.assertEquals(createdBeforeClose, releasedServiceCount.get());
+        } catch (InterruptedException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            existingSR.unregister();
+        }
+    }
+
+    @Override
+    public void testInterceptors() {
+        final List<String> events = new CopyOnWriteArrayList<String>();
+        Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 1);
+        CallInterceptor tracingInterceptor = new CallInterceptor() {
+
+            @Override
+            public Object intercept(final InterceptedCall call) throws Throwable {
+                events.add("before " + call.getMethod().getName());
+                try {
+                    return call.proceed();
+                } finally {
+                    events.add("after " + call.getMethod().getName());
+                }
+            }
+        };
+        CallInterceptor validatingInterceptor = new CallInterceptor() {
+
+            @Override
+            public Object intercept(final InterceptedCall call) throws Throwable {
+                Object[] args = call.getArguments();
+                if (args[0] == null) {
+                    throw new IllegalArgumentException("null");
+                }
+                // Comparing negative numbers by their absolute value
+                if (((Integer) args[0]).intValue() < 0) {
+                    args[0] = -((Integer) args[0]).intValue();
+                }
+                events.add("validated " + args[0]);
+                return call.proceed();
+            }
+        };
+        CallInterceptor retryingInterceptor = new CallInterceptor() {
+
+            @Override
+            public Object intercept(final InterceptedCall call) throws Throwable {
+                try {
+                    return call.proceed();
+                } catch (ServiceUnavailableException e) {
+                    events.add("retry");
+                    return call.proceed();
+                }
+            }
+        };
+        reference.addInterceptor(tracingInterceptor);
+        reference.addInterceptor(validatingInterceptor);
+        Assert.assertEquals(Arrays.asList(tracingInterceptor, validatingInterceptor), reference.getInterceptors());
+        reference.open();
+        Comparable<Integer> proxyInstance = reference.getProxyInstance();
+
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> serviceRegistration = bundleContext.registerService(Comparable.class,
+                Integer.valueOf(2), properties);
+        try {
+            Assert.assertEquals(0, proxyInstance.compareTo(-2));
+            Assert.assertEquals(Arrays.asList("before compareTo", "validated 2", "after compareTo"), events);
+
+            events.clear();
+            try {
+                proxyInstance.compareTo(null);
+                Assert.fail("The validating interceptor should reject null");
+            } catch (IllegalArgumentException e) {
+                Assert.assertEquals("null", e.getMessage());
+            }
+            Assert.assertEquals(Arrays.asList("before compareTo", "after compareTo"), events);
+
+            try {
+                reference.addInterceptor(retryingInterceptor);
+                Assert.fail("Interceptors cannot be added to an opened reference");
+            } catch (IllegalStateException e) {
+                // Good behavior
+            }
+            try {
+                reference.removeInterceptor(tracingInterceptor);
+                Assert.fail("Interceptors cannot be removed from an opened reference");
+            } catch (IllegalStateException e) {
+                // Good behavior
+            }
+            reference.close();
+
+            // The changed interceptors are used after the reference is opened again
+            Assert.assertTrue(reference.removeInterceptor(tracingInterceptor));
+            Assert.assertTrue(reference.removeInterceptor(validatingInterceptor));
+            reference.addInterceptor(retryingInterceptor);
+            events.clear();
+            reference.open();
+            Assert.assertEquals(1, proxyInstance.compareTo(1));
+            Assert.assertTrue(events.isEmpty());
+            serviceRegistration.unregister();
+            serviceRegistration = null;
+            try {
+                proxyInstance.compareTo(1);
+                Assert.fail("No service is available");
+            } catch (ServiceUnavailableException e) {
+                Assert.assertEquals(Collections.singletonList("retry"), events);
+            }
+            reference.close();
+
+            // Without interceptors the calls go directly to the service
+            Assert.assertTrue(reference.removeInterceptor(retryingInterceptor));
+            Assert.assertTrue(reference.getInterceptors().isEmpty());
+            reference.open();
+            serviceRegistration = bundleContext.registerService(Comparable.class, Integer.valueOf(2), properties);
+            events.clear();
+            Assert.assertEquals(-1, proxyInstance.compareTo(3));
+            Assert.assertTrue(events.isEmpty());
+        } finally {
+            if (serviceRegistration != null) {
+                serviceRegistration.unregister();
+            }
+            reference.close();
         }
     }
 
     @Override
-    public void testExistingReference() {
+    public void testInterfaceNotInObjectClass() {
         Hashtable<String, Object> properties = new Hashtable<String, Object>();
         properties.put("testservice", "true");
 
         @SuppressWarnings("rawtypes")
-        ServiceRegistration<List> existingSR = bundleContext.registerService(List.class,
-                new ArrayList<String>(Arrays.asList("Test")), properties);
+        ServiceRegistration<Comparable> existingSR = bundleContext.registerService(Comparable.class,
+                Integer.valueOf(1), properties);
 
         try {
-            Filter filter = createTestFilter();
-            Reference reference = new Reference(bundleContext, new Class<?>[] { List.class }, filter, 1);
+            Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class, Serializable.class },
+                    createTestFilter(), 1);
+            reference.open();
+            Comparable<Integer> proxyInstance = reference.getProxyInstance();
+            Assert.assertEquals(0, proxyInstance.compareTo(1));
+            Assert.assertTrue(proxyInstance instanceof Serializable);
+            reference.close();
+        } finally {
+            existingSR.unregister();
+        }
+    }
 
-            Assert.assertEquals(filter, reference.getFilter());
+    @Override
+    public void testLazyServiceAcquisition() {
+        final AtomicInteger createdServiceCount = new AtomicInteger();
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+        ServiceRegistration<?> existingSR = bundleContext.registerService(Comparable.class.getName(),
+                new ServiceFactory<Comparable<Integer>>() {
 
-            reference.open();
+                    @Override
+                    public Comparable<Integer> getService(final Bundle bundle,
+                            final ServiceRegistration<Comparable<Integer>> registration) {
+                        createdServiceCount.incrementAndGet();
+                        return Integer.valueOf(1);
+                    }
 
-            List<String> proxyInstance = reference.getProxyInstance();
+                    @Override
+                    public void ungetService(final Bundle bundle,
+                            final ServiceRegistration<Comparable<Integer>> registration,
+                            final Comparable<Integer> service) {
+                    }
+                }, properties);
+        try {
+            Reference eagerReference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                    createTestFilter(), 0);
+            Assert.assertFalse(eagerReference.isLazyServiceAcquisition());
+            eagerReference.open();
+            Assert.assertEquals(1, createdServiceCount.get());
+            eagerReference.close();
+
+            createdServiceCount.set(0);
+            Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                    createTestFilter(), 0);
+            reference.setLazyServiceAcquisition(true);
+            reference.open();
+            Assert.assertEquals(0, createdServiceCount.get());
+            Assert.assertTrue(reference.waitForService(1));
+            Comparable<Integer> proxyInstance = reference.getProxyInstance();
+            Assert.assertEquals(0, proxyInstance.compareTo(1));
+            Assert.assertEquals(-1, proxyInstance.compareTo(2));
+            Assert.assertEquals(1, createdServiceCount.get());
+            reference.close();
 
-            Assert.assertTrue(proxyInstance.contains("Test"));
+            // Only the first service is got for the warm up listener, the later ones are acquired lazily
+            createdServiceCount.set(0);
+            final AtomicInteger warmingCount = new AtomicInteger();
+            reference.setWarmUpListener(new WarmUpListener() {
 
+                @Override
+                public void warming() {
+                    warmingCount.incrementAndGet();
+                }
+            });
+            reference.open();
+            Assert.assertEquals(1, warmingCount.get());
+            Assert.assertEquals(1, createdServiceCount.get());
+            properties.put(Constants.SERVICE_RANKING, 1);
+            ServiceRegistration<?> laterSR = bundleContext.registerService(Comparable.class.getName(),
+                    new ServiceFactory<Comparable<Integer>>() {
+
+                        @Override
+                        public Comparable<Integer> getService(final Bundle bundle,
+                                final ServiceRegistration<Comparable<Integer>> registration) {
+                            createdServiceCount.incrementAndGet();
+                            return Integer.valueOf(2);
+                        }
+
+                        @Override
+                        public void ungetService(final Bundle bundle,
+                                final ServiceRegistration<Comparable<Integer>> registration,
+                                final Comparable<Integer> service) {
+                        }
+                    }, properties);
+            try {
+                Assert.assertEquals(1, warmingCount.get());
+                Assert.assertEquals(1, createdServiceCount.get());
+                Assert.assertEquals(1, proxyInstance.compareTo(1));
+                Assert.assertEquals(2, createdServiceCount.get());
+            } finally {
+                laterSR.unregister();
+            }
             reference.close();
+        } catch (InterruptedException e) {
+            Assert.fail(e.getMessage());
         } finally {
             existingSR.unregister();
         }
@@ -280,6 +1424,345 @@ public class ReferenceTestImpl implements ReferenceTest {
         }
     }
 
+    @Override
+    public void testReferenceGroup() {
+        List<ServiceRegistration<?>> registrations = new ArrayList<ServiceRegistration<?>>();
+        ReferenceRegistry registry = new ReferenceRegistry(bundleContext);
+        ReferenceGroup group = null;
+        try {
+            Reference tenantAReference = registry.createReference(new Class<?>[] { Comparable.class },
+                    bundleContext.createFilter("(&(testservice=true)(tenant=a))"), 1);
+            Reference tenantBReference = registry.createReference(new Class<?>[] { Comparable.class },
+                    bundleContext.createFilter("(&(testservice=true)(tenant=b))"), 1);
+            Reference tenantCReference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                    bundleContext.createFilter("(&(testservice=true)(tenant=c))"), 1);
+            group = new ReferenceGroup(Arrays.asList(tenantAReference, tenantBReference, tenantCReference));
+            registrations.add(registerTenantService("a"));
+
+            try {
+                group.whenServicesAvailable(0);
+                Assert.fail("The services can be waited for only if the references are opened");
+            } catch (IllegalStateException e) {
+                // Good behavior
+            }
+            try {
+                group.whenServicesAvailable(4, 0);
+                Assert.fail("The quorum cannot be greater than the number of references");
+            } catch (IllegalArgumentException e) {
+                // Good behavior
+            }
+
+            group.open();
+            Assert.assertTrue(tenantAReference.isOpened());
+            Assert.assertTrue(tenantBReference.isOpened());
+            Assert.assertTrue(tenantCReference.isOpened());
+            Assert.assertEquals(Arrays.asList(tenantBReference, tenantCReference), group.getMissingReferences());
+
+            CompletableFuture<Void> quorum = group.whenServicesAvailable(2, 0);
+            Assert.assertFalse(quorum.isDone());
+            registrations.add(registerTenantService("c"));
+            quorum.get(5, TimeUnit.SECONDS);
+
+            try {
+                group.whenServicesAvailable(50).get(5, TimeUnit.SECONDS);
+                Assert.fail("The service of tenant b is not available");
+            } catch (ExecutionException e) {
+                MissingServicesException cause = (MissingServicesException) e.getCause();
+                Assert.assertEquals(Collections.singletonList(tenantBReference), cause.getMissingReferences());
+                Assert.assertEquals(50, cause.getTimeout());
+            }
+
+            CompletableFuture<Void> all = group.whenServicesAvailable(0);
+            Assert.assertFalse(all.isDone());
+            registrations.add(registerTenantService("b"));
+            all.get(5, TimeUnit.SECONDS);
+            Assert.assertTrue(group.whenServicesAvailable(0).isDone());
+            Assert.assertTrue(group.getMissingReferences().isEmpty());
+
+            group.close();
+            Assert.assertFalse(tenantAReference.isOpened());
+            Assert.assertFalse(tenantBReference.isOpened());
+            Assert.assertFalse(tenantCReference.isOpened());
+
+            // Waiting without timeout fails when a reference of the group is closed
+            for (ServiceRegistration<?> registration : registrations) {
+                registration.unregister();
+            }
+            registrations.clear();
+            group.open();
+            CompletableFuture<Void> waiting = group.whenServicesAvailable(0);
+            Assert.assertFalse(waiting.isDone());
+            group.close();
+            try {
+                waiting.get(5, TimeUnit.SECONDS);
+                Assert.fail("Should fail with a ReferenceClosedException");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof ReferenceClosedException);
+            }
+        } catch (InvalidSyntaxException | InterruptedException | ExecutionException | TimeoutException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            if (group != null) {
+                group.close();
+            }
+            for (ServiceRegistration<?> registration : registrations) {
+                registration.unregister();
+            }
+        }
+    }
+
+    @Override
+    public void testReferenceRegistry() {
+        Filter indexedFilter = null;
+        try {
+            indexedFilter = bundleContext.createFilter("(&(objectClass=java.lang.Comparable)(testservice=true))");
+        } catch (InvalidSyntaxException e) {
+            Assert.fail(e.getMessage());
+        }
+        ReferenceRegistry registry = new ReferenceRegistry(bundleContext);
+        Reference indexedReference = registry.createReference(new Class<?>[] { Comparable.class }, indexedFilter, 1);
+        Reference unindexedReference = registry.createReference(new Class<?>[] { Comparable.class },
+                createTestFilter(), 1);
+        Assert.assertEquals(2, registry.getReferences().size());
+        Comparable<Integer> indexedProxy = indexedReference.getProxyInstance();
+        Comparable<Integer> unindexedProxy = unindexedReference.getProxyInstance();
+
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> existingSR = bundleContext.registerService(Comparable.class,
+                Integer.valueOf(1), properties);
+        try {
+            registry.openAll();
+            Assert.assertTrue(indexedReference.isOpened());
+            Assert.assertTrue(unindexedReference.isOpened());
+            Assert.assertEquals(0, indexedProxy.compareTo(1));
+            Assert.assertEquals(0, unindexedProxy.compareTo(1));
+
+            // A service that is registered later is delivered via the shared listener
+            properties.put(Constants.SERVICE_RANKING, 1);
+            @SuppressWarnings("rawtypes")
+            ServiceRegistration<Comparable> laterSR = bundleContext.registerService(Comparable.class,
+                    Integer.valueOf(2), properties);
+            Assert.assertEquals(1, indexedProxy.compareTo(1));
+            Assert.assertEquals(1, unindexedProxy.compareTo(1));
+
+            // Services that do not match any more are removed
+            properties.put("testservice", "false");
+            laterSR.setProperties(properties);
+            Assert.assertEquals(0, indexedProxy.compareTo(1));
+            Assert.assertEquals(0, unindexedProxy.compareTo(1));
+            laterSR.unregister();
+
+            indexedReference.close();
+            Assert.assertFalse(indexedReference.isOpened());
+            Assert.assertEquals(0, unindexedProxy.compareTo(1));
+            try {
+                indexedProxy.compareTo(1);
+                Assert.fail("Closed reference should throw an IllegalStateException");
+            } catch (IllegalStateException e) {
+                // Good behavior
+            }
+
+            indexedReference.open();
+            Assert.assertEquals(0, indexedProxy.compareTo(1));
+        } finally {
+            existingSR.unregister();
+        }
+        try {
+            indexedProxy.compareTo(1);
+            Assert.fail("Should throw a ServiceUnavailable exception");
+        } catch (ServiceUnavailableException e) {
+            // Good behavior
+        }
+
+        // A service factory that uses the registry on an other thread does not deadlock with opening a reference
+        final Reference closedByFactory = indexedReference;
+        final AtomicBoolean closedInTime = new AtomicBoolean(false);
+        Hashtable<String, Object> factoryProperties = new Hashtable<String, Object>();
+        factoryProperties.put("factoryservice", "true");
+        ServiceRegistration<?> factorySR = bundleContext.registerService(Comparable.class.getName(),
+                new ServiceFactory<Comparable<Integer>>() {
+
+                    @Override
+                    public Comparable<Integer> getService(final Bundle bundle,
+                            final ServiceRegistration<Comparable<Integer>> registration) {
+                        Thread closingThread = new Thread(closedByFactory::close);
+                        closingThread.start();
+                        try {
+                            closingThread.join(5000);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        closedInTime.set(!closingThread.isAlive());
+                        return Integer.valueOf(3);
+                    }
+
+                    @Override
+                    public void ungetService(final Bundle bundle,
+                            final ServiceRegistration<Comparable<Integer>> registration,
+                            final Comparable<Integer> service) {
+                        // Nothing to release
+                    }
+                }, factoryProperties);
+        try {
+            Reference factoryReference = registry.createReference(new Class<?>[] { Comparable.class },
+                    bundleContext.createFilter("(factoryservice=true)"), 1);
+            factoryReference.open();
+            Assert.assertTrue(closedInTime.get());
+            Assert.assertFalse(indexedReference.isOpened());
+            Comparable<Integer> factoryProxy = factoryReference.getProxyInstance();
+            Assert.assertEquals(1, factoryProxy.compareTo(2));
+        } catch (InvalidSyntaxException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            factorySR.unregister();
+        }
+
+        registry.closeAll();
+        Assert.assertFalse(indexedReference.isOpened());
+        Assert.assertFalse(unindexedReference.isOpened());
+
+        // A service that is unregistered while the references of the registry are opened is not tracked by a lazy
+        // reference that found it before it was unregistered, so the calls are not dispatched to it
+        final AtomicReference<ServiceRegistration<?>> unregisteredSR = new AtomicReference<ServiceRegistration<?>>();
+        Hashtable<String, Object> unregisteringProperties = new Hashtable<String, Object>();
+        unregisteringProperties.put("unregisteringservice", "true");
+        ServiceRegistration<?> unregisteringSR = bundleContext.registerService(Comparable.class.getName(),
+                new ServiceFactory<Comparable<Integer>>() {
+
+                    @Override
+                    public Comparable<Integer> getService(final Bundle bundle,
+                            final ServiceRegistration<Comparable<Integer>> registration) {
+                        ServiceRegistration<?> serviceRegistration = unregisteredSR.getAndSet(null);
+                        if (serviceRegistration != null) {
+                            serviceRegistration.unregister();
+                        }
+                        return Integer.valueOf(3);
+                    }
+
+                    @Override
+                    public void ungetService(final Bundle bundle,
+                            final ServiceRegistration<Comparable<Integer>> registration,
+                            final Comparable<Integer> service) {
+                        // Nothing to release
+                    }
+                }, unregisteringProperties);
+        Hashtable<String, Object> lazyProperties = new Hashtable<String, Object>();
+        lazyProperties.put("lazyservice", "true");
+        ServiceRegistration<?> remainingSR = bundleContext.registerService(Comparable.class.getName(),
+                Integer.valueOf(2), lazyProperties);
+        lazyProperties.put(Constants.SERVICE_RANKING, 1);
+        unregisteredSR.set(bundleContext.registerService(Comparable.class.getName(), Integer.valueOf(1),
+                lazyProperties));
+        ReferenceRegistry unregisteringRegistry = new ReferenceRegistry(bundleContext);
+        try {
+            unregisteringRegistry.createReference(new Class<?>[] { Comparable.class },
+                    bundleContext.createFilter("(unregisteringservice=true)"), 1);
+            Reference lazyReference = unregisteringRegistry.createReference(new Class<?>[] { Comparable.class },
+                    bundleContext.createFilter("(lazyservice=true)"), 1);
+            lazyReference.setLazyServiceAcquisition(true);
+            unregisteringRegistry.openAll();
+            Assert.assertNull(unregisteredSR.get());
+            Comparable<Integer> lazyProxy = lazyReference.getProxyInstance();
+            Assert.assertEquals(1, lazyProxy.compareTo(1));
+        } catch (InvalidSyntaxException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            unregisteringRegistry.closeAll();
+            remainingSR.unregister();
+            unregisteringSR.unregister();
+        }
+    }
+
+    @Override
+    public void testResultCache() {
+        Method compareToMethod = null;
+        try {
+            compareToMethod = Comparable.class.getMethod("compareTo", Object.class);
+        } catch (NoSuchMethodException e) {
+            Assert.fail(e.getMessage());
+        }
+        Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 1);
+        reference.enableResultCache(compareToMethod, 2, 0);
+        reference.setStatisticsEnabled(true);
+        reference.open();
+        Comparable<Integer> proxyInstance = reference.getProxyInstance();
+
+        final AtomicInteger serviceCallCount = new AtomicInteger();
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> existingSR = bundleContext.registerService(Comparable.class,
+                new Comparable<Integer>() {
+
+                    @Override
+                    public int compareTo(final Integer o) {
+                        return serviceCallCount.incrementAndGet();
+                    }
+                }, properties);
+        try {
+            Assert.assertEquals(1, proxyInstance.compareTo(1));
+            Assert.assertEquals(1, proxyInstance.compareTo(1));
+            Assert.assertEquals(2, proxyInstance.compareTo(2));
+            // The result of compareTo(1) is evicted as the cache is full
+            Assert.assertEquals(3, proxyInstance.compareTo(3));
+            Assert.assertEquals(4, proxyInstance.compareTo(1));
+            Assert.assertEquals(3, proxyInstance.compareTo(3));
+
+            // Modifying the service drops the cached results
+            properties.put("modified", "true");
+            existingSR.setProperties(properties);
+            Assert.assertEquals(5, proxyInstance.compareTo(3));
+
+            MethodStatistics methodStatistics = reference.getStatistics().getMethodStatistics()
+                    .get("java.lang.Comparable.compareTo(java.lang.Object)");
+            Assert.assertEquals(2, methodStatistics.getCacheHitCount());
+
+            reference.enableResultCache(compareToMethod, 2, 50);
+            Assert.assertEquals(6, proxyInstance.compareTo(1));
+            Assert.assertEquals(6, proxyInstance.compareTo(1));
+            Thread.sleep(100);
+            Assert.assertEquals(7, proxyInstance.compareTo(1));
+
+            reference.disableResultCache(compareToMethod);
+            Assert.assertEquals(8, proxyInstance.compareTo(1));
+        } catch (InterruptedException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            existingSR.unregister();
+        }
+        reference.close();
+
+        // Modifying an array after it was passed to a cached call does not modify the cached key
+        Reference arrayReference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 1);
+        arrayReference.enableResultCache(compareToMethod, 2, 0);
+        arrayReference.open();
+        Comparable<int[]> arrayProxyInstance = arrayReference.getProxyInstance();
+        final AtomicInteger arrayCallCount = new AtomicInteger();
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> arraySR = bundleContext.registerService(Comparable.class,
+                new Comparable<int[]>() {
+
+                    @Override
+                    public int compareTo(final int[] o) {
+                        return arrayCallCount.incrementAndGet();
+                    }
+                }, properties);
+        try {
+            int[] argument = new int[] { 1 };
+            Assert.assertEquals(1, arrayProxyInstance.compareTo(argument));
+            argument[0] = 2;
+            Assert.assertEquals(2, arrayProxyInstance.compareTo(argument));
+            Assert.assertEquals(1, arrayProxyInstance.compareTo(new int[] { 1 }));
+        } finally {
+            arraySR.unregister();
+        }
+        arrayReference.close();
+    }
+
     @Override
     public void testServiceModification() {
         // First: doing a normal service call
@@ -330,6 +1813,175 @@ public class ReferenceTestImpl implements ReferenceTest {
         }
     }
 
+    @Override
+    public void testServicePooling() {
+        if (Version.parseVersion(bundleContext.getProperty(Constants.FRAMEWORK_VERSION))
+                .compareTo(new Version(1, 8, 0)) < 0) {
+            // Prototype scoped services are not supported by the framework
+            return;
+        }
+        final AtomicInteger createdServiceCount = new AtomicInteger();
+        final AtomicInteger releasedServiceCount = new AtomicInteger();
+        final AtomicBoolean concurrentUse = new AtomicBoolean();
+        final CountDownLatch blockingCallLatch = new CountDownLatch(1);
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+        ServiceRegistration<?> existingSR = bundleContext.registerService(Comparable.class.getName(),
+                new PrototypeServiceFactory<Comparable<Integer>>() {
+
+                    @Override
+                    public Comparable<Integer> getService(final Bundle bundle,
+                            final ServiceRegistration<Comparable<Integer>> registration) {
+                        createdServiceCount.incrementAndGet();
+                        final AtomicBoolean inUse = new AtomicBoolean();
+                        return new Comparable<Integer>() {
+
+                            @Override
+                            public int compareTo(final Integer o) {
+                                if (!inUse.compareAndSet(false, true)) {
+                                    concurrentUse.set(true);
+                                }
+                                try {
+                                    if (o.intValue() == 2) {
+                                        blockingCallLatch.await();
+                                    } else {
+                                        Thread.sleep(5);
+                                    }
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                } finally {
+                                    inUse.set(false);
+                                }
+                                return 0;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void ungetService(final Bundle bundle,
+                            final ServiceRegistration<Comparable<Integer>> registration,
+                            final Comparable<Integer> service) {
+                        releasedServiceCount.incrementAndGet();
+                    }
+                }, properties);
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                    createTestFilter(), 5000);
+            reference.setServicePoolSize(2);
+            Assert.assertEquals(2, reference.getServicePoolSize());
+            reference.open();
+            final Comparable<Integer> proxyInstance = reference.getProxyInstance();
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executorService.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 10; j++) {
+                            Assert.assertEquals(0, proxyInstance.compareTo(1));
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            Assert.assertFalse(concurrentUse.get());
+            Assert.assertTrue(createdServiceCount.get() <= 2);
+            reference.close();
+            Assert.assertEquals(createdServiceCount.get(), releasedServiceCount.get());
+
+            // The only instance is used by a blocked call so the other call is rejected after the timeout
+            Reference smallPoolReference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                    createTestFilter(), 100);
+            smallPoolReference.setServicePoolSize(1);
+            smallPoolReference.open();
+            final Comparable<Integer> smallPoolProxyInstance = smallPoolReference.getProxyInstance();
+            Future<?> blockedCall = executorService.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    smallPoolProxyInstance.compareTo(2);
+                }
+            });
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((createdServiceCount.get() == releasedServiceCount.get())
+                    && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10);
+            }
+            try {
+                smallPoolProxyInstance.compareTo(1);
+                Assert.fail();
+            } catch (ConcurrencyLimitExceededException e) {
+                // Good behavior
+            }
+            // The asynchronous calls are rejected with the same exception as the calls on the proxy object
+            CompletableFuture<Integer> rejectedAsyncCall = new AsyncReference<Comparable<Integer>>(smallPoolReference)
+                    .call(service -> service.compareTo(1));
+            try {
+                rejectedAsyncCall.get();
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof ConcurrencyLimitExceededException);
+            }
+            blockingCallLatch.countDown();
+            blockedCall.get();
+            Assert.assertEquals(0, smallPoolProxyInstance.compareTo(1));
+            Assert.assertFalse(concurrentUse.get());
+            smallPoolReference.close();
+            Assert.assertEquals(createdServiceCount.get(), releasedServiceCount.get());
+        } catch (InterruptedException | ExecutionException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            blockingCallLatch.countDown();
+            executorService.shutdown();
+            existingSR.unregister();
+        }
+    }
+
+    @Override
+    public void testStatistics() {
+        Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 1);
+        Assert.assertNull(reference.getStatistics());
+        reference.setStatisticsEnabled(true);
+        reference.open();
+        Comparable<Integer> proxyInstance = reference.getProxyInstance();
+        try {
+            proxyInstance.compareTo(1);
+            Assert.fail("Should throw a ServiceUnavailable exception");
+        } catch (ServiceUnavailableException e) {
+            // Good behavior
+        }
+
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("testservice", "true");
+
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> existingSR = bundleContext.registerService(Comparable.class,
+                Integer.valueOf(1), properties);
+        try {
+            Assert.assertEquals(0, proxyInstance.compareTo(1));
+            Assert.assertEquals(0, proxyInstance.compareTo(1));
+
+            MethodStatistics methodStatistics = reference.getStatistics().getMethodStatistics()
+                    .get("java.lang.Comparable.compareTo(java.lang.Object)");
+            Assert.assertNotNull(methodStatistics);
+            Assert.assertEquals(3, methodStatistics.getCallCount());
+            Assert.assertEquals(1, methodStatistics.getWaitCount());
+            Assert.assertEquals(1, methodStatistics.getTimeoutCount());
+            Assert.assertEquals(0, methodStatistics.getServiceUnavailableHandlerCount());
+            Assert.assertEquals(2, methodStatistics.getServiceTime().getCount());
+        } finally {
+            existingSR.unregister();
+        }
+
+        reference.setStatisticsEnabled(false);
+        Assert.assertNull(reference.getStatistics());
+        reference.close();
+    }
+
     @Override
     public void testTimeout() {
         Filter testFilter = createTestFilter();
@@ -355,6 +2007,61 @@ public class ReferenceTestImpl implements ReferenceTest {
         reference.close();
     }
 
+    @Override
+    public void testVirtualThreadWaiting() {
+        ExecutorService executor = createVirtualThreadExecutor();
+        if (executor == null) {
+            // Virtual threads are not supported by this JVM
+            return;
+        }
+        // More callers than the number of carrier threads the scheduler could ever compensate with
+        final int callerCount = 1000;
+        Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },
+                createTestFilter(), 10000);
+        reference.open();
+        final Comparable<Integer> proxyInstance = reference.getProxyInstance();
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < callerCount; i++) {
+            results.add(executor.submit(new Callable<Integer>() {
+
+                @Override
+                public Integer call() {
+                    return proxyInstance.compareTo(1);
+                }
+            }));
+        }
+
+        @SuppressWarnings("rawtypes")
+        ServiceRegistration<Comparable> existingSR = null;
+        try {
+            // If the waiting callers pinned their carrier threads this task could not run until they time out.
+            Future<Boolean> probe = executor.submit(new Callable<Boolean>() {
+
+                @Override
+                public Boolean call() {
+                    return Boolean.TRUE;
+                }
+            });
+            Assert.assertTrue(probe.get(2000, TimeUnit.MILLISECONDS));
+
+            Hashtable<String, Object> properties = new Hashtable<String, Object>();
+            properties.put("testservice", "true");
+            existingSR = bundleContext.registerService(Comparable.class, Integer.valueOf(1), properties);
+
+            for (Future<Integer> result : results) {
+                Assert.assertEquals(Integer.valueOf(0), result.get(2000, TimeUnit.MILLISECONDS));
+            }
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            Assert.fail(e.toString());
+        } finally {
+            if (existingSR != null) {
+                existingSR.unregister();
+            }
+            executor.shutdownNow();
+            reference.close();
+        }
+    }
+
     @Override
     public void testWaitForService() {
         Reference reference = new Reference(bundleContext, new Class<?>[] { Comparable.class },